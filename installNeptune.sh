@@ -144,6 +144,18 @@ maintenanceInterval=15
 # Decrease this value to reduce the time between selecting a stream and starting playback.
 # Increase this value if nothing plays back after selecting a stream for playback.
 waitBeforeSendingPlaylist=750
+
+# Number of search results kept in the search cache. Set to 0 to disable the cache.
+searchCacheSize=1000
+
+# Megabytes of document JSON kept ready to send to clients. Set to 0 to disable the cache.
+jsonCacheSize=64
+
+# Milliseconds after which a search returns what it found so far. Set to 0 for no limit.
+searchTimeout=10000
+
+# Local copy of the index, read at startup instead of the whole database. Comment out to always read the database.
+snapshotFile=${thisDirectory}/nep-tune.snapshot
 EOF
 
 ################################Service######################################
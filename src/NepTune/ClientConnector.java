@@ -21,6 +21,7 @@ import java.io.OutputStream;
 import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpHandler;
 import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
 import java.io.DataOutputStream;
 import java.io.File;
@@ -28,10 +29,13 @@ import java.io.FileInputStream;
 import java.io.FileReader;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.io.RandomAccessFile;
 import java.io.UnsupportedEncodingException;
 import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
 import java.net.URLDecoder;
 import java.nio.channels.FileChannel;
 import java.nio.channels.FileLock;
@@ -40,12 +44,15 @@ import java.util.List;
 import org.bson.Document;
 import org.bson.json.*;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.ExecutionException;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.function.IntConsumer;
+import java.util.function.IntPredicate;
 
 /** 
  * Handles the interaction with the client by way of HTTP GET requests
@@ -61,7 +68,9 @@ public class ClientConnector implements HttpHandler, Runnable {
     private static final String CHARSET = java.nio.charset.StandardCharsets.UTF_8.name(); // UTF8 is used for NepTune
     private static final int STATUS_OK = 200; 
     private final static String CRLF = "\r\n"; // html new line
+    private static final byte[] SEPARATOR = ("," + CRLF).getBytes(java.nio.charset.StandardCharsets.UTF_8); // after each document
     DataStoreSingleton dataStore = DataStoreSingleton.getInstance();
+    JsonCacheSingleton jsonCache = JsonCacheSingleton.getInstance();
     ConfigReaderSingleton properties = ConfigReaderSingleton.getInstance();
     private final int waitBeforeSendingPlaylist; 
     
@@ -109,6 +118,28 @@ public class ClientConnector implements HttpHandler, Runnable {
      * search: searches for string in data set
      * http://<serverUrl>:<serverPort>?mode=search&searchString=%20search terms%20
      * (search terms enclosed in "" are treated as single string)
+     * Terms of the form field:value (e.g. artist:beatles or album:"abbey road")
+     * only search the values of that metadata field.
+     * Lyrics are only searched by terms scoped to them, e.g. lyrics:love.
+     * Terms of the form field>value (or >=, <, <=) compare numbers or dates,
+     * e.g. duration>10m or Last-Modified>=now-7d.
+     * Terms can be combined with AND, OR and NOT, and grouped with brackets,
+     * e.g. searchString=beatles AND (abbey OR help) AND NOT live 
+     * (see QueryParser). Terms without an operator in between are OR-ed.
+     * Optional fields (comma separated) only return these fields of each
+     * document, e.g. fields=_id,fileName,title,artist. Also for mode=data.
+     * Optional offset and limit parameters return a single page of results, e.g.
+     * http://<serverUrl>:<serverPort>?mode=search&searchString=beatles&offset=50&limit=25
+     * With sort=relevance, the best matches (BM25) come first. With
+     * sort=<field> or sort=<field>:desc, they are ordered by that field.
+     * Sorting by field also works for mode=data.
+     * With fuzzy=1 or fuzzy=2, words also find words within that many typos.
+     * With explain=1, returns how the query was evaluated (see QueryPlanner),
+     * with estimates, matches and timings of each stage, instead of the
+     * results.
+     * Searches stop after searchTimeout ms (config file), or timeout ms if
+     * given and shorter, or when the client disconnects. A last entry {"incomplete" : true}
+     * marks a result cut short.
      * 
      * playlist: returns m3u8 playlist used for HTTP live streaming
      * http://<serverUrl>:<serverPort>?mode=playlist&objectId=57ae33d69041ea0bef07490a
@@ -118,6 +149,34 @@ public class ClientConnector implements HttpHandler, Runnable {
      * If request ends with .ts, returns HLS files from tmp directory, e.g.
      * http://<serverUrl>:<serverPort>?mode=file&objectId=af56cc43.ts
      * 
+     * facets: returns the number of documents per value of metadata fields
+     * as JSON, most frequent first, optionally only of the documents found
+     * by a searchString, and at most limit values per field
+     * http://<serverUrl>:<serverPort>?mode=facets&fields=Content-Type,artist,genre&searchString=beatles&limit=20
+     * 
+     * suggest: returns up to 10 completions of artist, album, title and file
+     * name values for what the user typed so far, most frequent first
+     * http://<serverUrl>:<serverPort>?mode=suggest&prefix=abb&limit=5
+     * 
+     * subscribe: registers a standing query, and returns its subscription
+     * id and the sequence number of its last event (0) as JSON
+     * http://<serverUrl>:<serverPort>?mode=subscribe&searchString=beatles
+     * 
+     * events: returns the documents added to and removed from the results of
+     * a standing query after the event with sequence number after, waiting
+     * up to timeout ms (default 30s) for one if there are none yet. "missed"
+     * is true if some were dropped since (only the last 1000 are kept).
+     * http://<serverUrl>:<serverPort>?mode=events&subscription=1&after=0&timeout=60000
+     * With stream=1, the events are sent as Server Sent Events instead, for
+     * as long as the client stays connected.
+     * Subscriptions not asked for events for 10 minutes are removed.
+     * 
+     * unsubscribe: removes a standing query
+     * http://<serverUrl>:<serverPort>?mode=unsubscribe&subscription=1
+     * 
+     * stats: returns server statistics (e.g. search cache hits and misses) as JSON
+     * http://<serverUrl>:<serverPort>?mode=stats
+     * 
      * helloWorld: returns string Welcome! Can be used to check connection
      * http://<serverUrl>:<serverPort>?mode=helloWorld
      */ 
@@ -134,7 +193,7 @@ public class ClientConnector implements HttpHandler, Runnable {
         LOG.DEBUG("Connection to " + connectionDetails.substring(connectionDetails.indexOf(":") + 2));
         Map<String, String> urlParameters = parseUrl(line);
         LOG.DEBUG("Request from client was: " + urlParameters);
-        List<Document> docs = null;
+        Query query = null;
         String status = null;
         String contentType = null;
         String encoding = "charset: " + "UTF-8" + CRLF;
@@ -145,7 +204,6 @@ public class ClientConnector implements HttpHandler, Runnable {
         /**Returns the whole data set */
         if ( mode.equals("data") )
         {
-            docs = dataStore.getList();
             status = "HTTP/1.1 200 OK" + CRLF; 
             contentType = "Content-type: " + "application/x-mpegURL" + CRLF;
         }
@@ -155,28 +213,9 @@ public class ClientConnector implements HttpHandler, Runnable {
         {
             String searchString = URLDecoder.decode(urlParameters.get("searchString"), CHARSET);
             LOG.DEBUG("Search string is " + searchString);
-            List<String> searchList = new ArrayList<String>();
-            Pattern regex = Pattern.compile("[^\\s\"']+|\"([^\"]*)\"|'([^']*)'");
-            Matcher regexMatcher = regex.matcher(searchString); //http://stackoverflow.com/questions/366202/regex-for-splitting-a-string-using-space-when-not-surrounded-by-single-or-double
-            while (regexMatcher.find()) 
-            {
-                if (regexMatcher.group(1) != null) 
-                {
-                    // Add double-quoted string without the quotes, e.g. "apple pie"
-                    searchList.add(regexMatcher.group(1));
-                } 
-                else if (regexMatcher.group(2) != null) 
-                {
-                    // Add single-quoted string without the quotes, e.g. 'apple pie'
-                    searchList.add(regexMatcher.group(2));
-                } else 
-                {
-                    // Add unquoted word, e.g. apple pie (two words, "apple", and "pie", separated by space)
-                    searchList.add(regexMatcher.group());
-                }
-            } 
-            searchList.stream().forEach((String string) -> {LOG.DEBUG("Search term: " + string);}) ;
-            docs = search(searchList);
+            int fuzzy = Math.min(2, intParameter(urlParameters, "fuzzy", 0));
+            query = QueryParser.parse(searchString, SearchIndexSingleton.getInstance(), fuzzy);
+            LOG.DEBUG("Query is " + query);
             status = "HTTP/1.1 200 OK" + CRLF; 
             //contentType = "Content-type: " + "text/html; charset=UTF-8" + CRLF + CRLF; // for testing in browser
             contentType = "Content-type: " + "application/x-mpegURL" + CRLF; // proper json type
@@ -185,11 +224,18 @@ public class ClientConnector implements HttpHandler, Runnable {
         /**Returns an m3u8 playlist, and starts the transcoding process */
         else if (mode.equals("playlist"))
         {
-            String objectId = URLDecoder.decode(urlParameters.get("objectId"), CHARSET); //http://stackoverflow.com/questions/15235400/java-url-param-replace-20-with-space
-            Document doc = dataStore.getMap().get(objectId);
-            String path = (String) doc.get("filePath");
-            String file = (String) doc.get("fileName");
-            String type = (String) doc.get("fileType");
+            String objectId = objectIdParameter(urlParameters);
+            DataSnapshot snapshot = dataStore.getSnapshot();
+            int ordinal = snapshot.getOrdinal(objectId);
+            if (ordinal < 0)
+            {
+                new ErrorSender("Unknown objectId", socket, ostream).sendError(); // To client
+                LOG.ERROR("Playlist requested for unknown id " + objectId); // To log file
+                return;
+            }
+            String path = (String) snapshot.getValue(ordinal, "filePath");
+            String file = (String) snapshot.getValue(ordinal, "fileName");
+            String type = (String) snapshot.getValue(ordinal, "fileType");
             String filePath = path + file + "." + type;                    
             String expectedPlaylistPath = properties.getTempDirectory() + objectId + ".m3u8";
             LOG.DEBUG("Requested objectId is " + objectId);
@@ -268,7 +314,7 @@ public class ClientConnector implements HttpHandler, Runnable {
         else if (mode.equals("file"))    
         {
             String filePath;
-            String objectId = URLDecoder.decode(urlParameters.get("objectId"), CHARSET);
+            String objectId = objectIdParameter(urlParameters);
             if (objectId.endsWith(".ts")) // HLS parts
             {
                 String expectedFilePath = properties.getTempDirectory() + objectId;
@@ -292,11 +338,18 @@ public class ClientConnector implements HttpHandler, Runnable {
             }
             else // Requested was a file from the index
             {
-                Document doc = dataStore.getMap().get(objectId);
-                String path = (String) doc.get("filePath");
-                String file = (String) doc.get("fileName");
-                String type = (String) doc.get("fileType");
-                contentType = "Content-type: " + doc.get("Content-Type") + ";" + CRLF + CRLF;
+                DataSnapshot snapshot = dataStore.getSnapshot();
+                int ordinal = snapshot.getOrdinal(objectId);
+                if (ordinal < 0)
+                {
+                    new ErrorSender("Unknown objectId", socket, ostream).sendError(); // To client
+                    LOG.ERROR("File requested for unknown id " + objectId); // To log file
+                    return;
+                }
+                String path = (String) snapshot.getValue(ordinal, "filePath");
+                String file = (String) snapshot.getValue(ordinal, "fileName");
+                String type = (String) snapshot.getValue(ordinal, "fileType");
+                contentType = "Content-type: " + snapshot.getValue(ordinal, "Content-Type") + ";" + CRLF + CRLF;
                 filePath = path + file + "." + type;
             }
             try
@@ -314,6 +367,168 @@ public class ClientConnector implements HttpHandler, Runnable {
             }
         }
         
+        /** Number of documents per value of metadata fields, optionally of a search result */
+        else if (mode.equals("facets"))
+        {
+            List<String> fieldNames = new ArrayList<>();
+            if (urlParameters.containsKey("fields"))
+            {
+                for (String name : URLDecoder.decode(urlParameters.get("fields"), CHARSET).split(","))
+                {
+                    if (!name.trim().isEmpty())
+                    {
+                        fieldNames.add(name.trim());
+                    }
+                }
+            }
+            int[] ordinals = null; // all documents
+            boolean incomplete = false;
+            if (urlParameters.containsKey("searchString"))
+            {
+                String searchString = URLDecoder.decode(urlParameters.get("searchString"), CHARSET);
+                int fuzzy = Math.min(2, intParameter(urlParameters, "fuzzy", 0));
+                SearchDeadline deadline = new SearchDeadline(SearchDeadline.limit(longParameter(urlParameters, "timeout", 0)), () -> clientDisconnected(istream));
+                ordinals = allMatches(QueryParser.parse(searchString, SearchIndexSingleton.getInstance(), fuzzy), deadline);
+                incomplete = deadline.isStopped();
+            }
+            Document facets = new Document("documents", ordinals == null ? dataStore.getSize() : ordinals.length)
+                    .append("facets", facets(fieldNames, ordinals, intParameter(urlParameters, "limit", Integer.MAX_VALUE)));
+            if (incomplete)
+            {
+                facets.append("incomplete", true);
+            }
+            status = "HTTP/1.1 200 OK" + CRLF; 
+            contentType = "Content-type: " + "application/json" + CRLF + CRLF;
+            
+            ostream.write(status.getBytes(Charset.forName("UTF-8")));
+            ostream.write(contentType.getBytes(Charset.forName("UTF-8")));
+            ostream.write(facets.toJson(new JsonWriterSettings(JsonMode.STRICT)).getBytes(Charset.forName("UTF-8")));
+            ostream.close();
+            breader.close();
+            return;
+        }
+        
+        /** Completions for what the user is typing, cheap enough for every keystroke */
+        else if (mode.equals("suggest"))
+        {
+            String prefix = urlParameters.containsKey("prefix") ? URLDecoder.decode(urlParameters.get("prefix"), CHARSET) : "";
+            int limit = Math.min(SuggestIndexSingleton.MAX_SUGGESTIONS, intParameter(urlParameters, "limit", SuggestIndexSingleton.MAX_SUGGESTIONS));
+            Document suggestions = new Document("prefix", prefix)
+                    .append("suggestions", SuggestIndexSingleton.getInstance().suggest(prefix, limit));
+            status = "HTTP/1.1 200 OK" + CRLF; 
+            contentType = "Content-type: " + "application/json" + CRLF + CRLF;
+            
+            ostream.write(status.getBytes(Charset.forName("UTF-8")));
+            ostream.write(contentType.getBytes(Charset.forName("UTF-8")));
+            ostream.write(suggestions.toJson(new JsonWriterSettings(JsonMode.STRICT)).getBytes(Charset.forName("UTF-8")));
+            ostream.close();
+            breader.close();
+            return;
+        }
+        
+        /** Registers a standing query, whose changes are then sent with mode=events */
+        else if (mode.equals("subscribe"))
+        {
+            String searchString = URLDecoder.decode(urlParameters.get("searchString"), CHARSET);
+            int fuzzy = Math.min(2, intParameter(urlParameters, "fuzzy", 0));
+            StandingQueriesSingleton.Subscription subscription = StandingQueriesSingleton.getInstance()
+                    .subscribe(searchString, QueryParser.parse(searchString, SearchIndexSingleton.getInstance(), fuzzy));
+            Document result = new Document("subscription", subscription.id)
+                    .append("sequence", subscription.getSequence());
+            status = "HTTP/1.1 200 OK" + CRLF; 
+            contentType = "Content-type: " + "application/json" + CRLF + CRLF;
+            
+            ostream.write(status.getBytes(Charset.forName("UTF-8")));
+            ostream.write(contentType.getBytes(Charset.forName("UTF-8")));
+            ostream.write(result.toJson(new JsonWriterSettings(JsonMode.STRICT)).getBytes(Charset.forName("UTF-8")));
+            ostream.close();
+            breader.close();
+            return;
+        }
+        
+        /** Changes to the results of a standing query, by long poll or as a stream */
+        else if (mode.equals("events"))
+        {
+            String id = urlParameters.containsKey("subscription") ? URLDecoder.decode(urlParameters.get("subscription"), CHARSET) : "";
+            StandingQueriesSingleton.Subscription subscription = StandingQueriesSingleton.getInstance().getSubscription(id);
+            if (subscription == null)
+            {
+                new ErrorSender("No subscription " + id, socket, ostream).sendError();
+                return;
+            }
+            long after = longParameter(urlParameters, "after", 0);
+            status = "HTTP/1.1 200 OK" + CRLF; 
+            if (intParameter(urlParameters, "stream", 0) == 1)
+            {
+                contentType = "Content-type: " + "text/event-stream" + CRLF + "Cache-Control: no-cache" + CRLF + CRLF;
+                ostream.write(status.getBytes(Charset.forName("UTF-8")));
+                ostream.write(contentType.getBytes(Charset.forName("UTF-8")));
+                streamEvents(subscription, after, new PrintWriter(new OutputStreamWriter(ostream, CHARSET)));
+            }
+            else
+            {
+                long timeout = Math.min(StandingQueriesSingleton.MAX_WAIT_MS, longParameter(urlParameters, "timeout", StandingQueriesSingleton.DEFAULT_WAIT_MS));
+                List<StandingQueriesSingleton.Event> events = subscription.await(after, timeout);
+                List<Document> eventDocuments = new ArrayList<>();
+                for (StandingQueriesSingleton.Event event : events)
+                {
+                    eventDocuments.add(eventDocument(event));
+                }
+                Document result = new Document("subscription", subscription.id)
+                        .append("sequence", events.isEmpty() ? after : events.get(events.size() - 1).sequence)
+                        .append("missed", subscription.hasMissed(after))
+                        .append("events", eventDocuments);
+                contentType = "Content-type: " + "application/json" + CRLF + CRLF;
+                ostream.write(status.getBytes(Charset.forName("UTF-8")));
+                ostream.write(contentType.getBytes(Charset.forName("UTF-8")));
+                ostream.write(result.toJson(new JsonWriterSettings(JsonMode.STRICT)).getBytes(Charset.forName("UTF-8")));
+            }
+            ostream.close();
+            breader.close();
+            return;
+        }
+        
+        /** Removes a standing query */
+        else if (mode.equals("unsubscribe"))
+        {
+            String id = urlParameters.containsKey("subscription") ? URLDecoder.decode(urlParameters.get("subscription"), CHARSET) : "";
+            Document result = new Document("subscription", id)
+                    .append("removed", StandingQueriesSingleton.getInstance().unsubscribe(id));
+            status = "HTTP/1.1 200 OK" + CRLF; 
+            contentType = "Content-type: " + "application/json" + CRLF + CRLF;
+            
+            ostream.write(status.getBytes(Charset.forName("UTF-8")));
+            ostream.write(contentType.getBytes(Charset.forName("UTF-8")));
+            ostream.write(result.toJson(new JsonWriterSettings(JsonMode.STRICT)).getBytes(Charset.forName("UTF-8")));
+            ostream.close();
+            breader.close();
+            return;
+        }
+        
+        /** Statistics, e.g. for monitoring the search cache */
+        else if (mode.equals("stats"))
+        {
+            SearchCacheSingleton cache = SearchCacheSingleton.getInstance();
+            Document stats = new Document("documents", dataStore.getSize())
+                    .append("searchCacheSize", cache.getSize())
+                    .append("searchCacheHits", cache.getHits())
+                    .append("searchCacheMisses", cache.getMisses())
+                    .append("jsonCacheSize", jsonCache.getSize())
+                    .append("jsonCacheBytes", jsonCache.getBytes())
+                    .append("jsonCacheHits", jsonCache.getHits())
+                    .append("jsonCacheMisses", jsonCache.getMisses())
+                    .append("standingQueries", StandingQueriesSingleton.getInstance().getSize());
+            status = "HTTP/1.1 200 OK" + CRLF; 
+            contentType = "Content-type: " + "application/json" + CRLF + CRLF;
+            
+            ostream.write(status.getBytes(Charset.forName("UTF-8")));
+            ostream.write(contentType.getBytes(Charset.forName("UTF-8")));
+            ostream.write(stats.toJson(new JsonWriterSettings(JsonMode.STRICT)).getBytes(Charset.forName("UTF-8")));
+            ostream.close();
+            breader.close();
+            return;
+        }
+        
         /** Just to say hello - use to check connection */
         else if (mode.equals("helloWorld"))
         {
@@ -341,19 +556,71 @@ public class ClientConnector implements HttpHandler, Runnable {
         ostream.write(CRLF.getBytes(Charset.forName(CHARSET))); // end of header
         
         //finalizing the JSON object for sending
-        if (mode.equals("search"))
+        if (mode.equals("data"))
+        {
+            OutputStream out = new BufferedOutputStream(ostream);
+            Projection projection = urlParameters.containsKey("fields") 
+                    ? new Projection(URLDecoder.decode(urlParameters.get("fields"), CHARSET), SearchIndexSingleton.getInstance()) : null;
+            DataSnapshot snapshot = dataStore.getSnapshot();
+            int[] ordinals = SearchIndexSingleton.getInstance().allDocuments().toArray();
+            if (urlParameters.containsKey("sort"))
             {
-            PrintWriter writer = new PrintWriter(ostream);
-            JsonWriterSettings settings = new JsonWriterSettings(JsonMode.STRICT); // must be strict
-            writer.write("[");
-            try 
+                ordinals = sortByField(ordinals, URLDecoder.decode(urlParameters.get("sort"), CHARSET), Integer.MAX_VALUE);
+            }
+            try
             {
-                for (Document doc : docs )
+                out.write('[');
+                for (int ordinal : ordinals)
                 {
-                    writer.print(doc.toJson(settings));
-                    writer.write(",");
-                    writer.write(CRLF);
+                    writeDocument(out, snapshot, ordinal, projection);
                 }
+                out.write(']');
+                out.flush();
+            }
+            catch(IOException e)
+            {
+                LOG.DEBUG("Client gone while sending data: " + e.toString());
+            }
+        }
+        else if (mode.equals("search"))
+            {
+            OutputStream out = new BufferedOutputStream(ostream);
+            JsonWriterSettings settings = new JsonWriterSettings(JsonMode.STRICT); // must be strict
+            Projection projection = urlParameters.containsKey("fields") 
+                    ? new Projection(URLDecoder.decode(urlParameters.get("fields"), CHARSET), SearchIndexSingleton.getInstance()) : null;
+            int offset = intParameter(urlParameters, "offset", 0);
+            int limit = intParameter(urlParameters, "limit", Integer.MAX_VALUE);
+            String sort = urlParameters.containsKey("sort") ? URLDecoder.decode(urlParameters.get("sort"), CHARSET) : null;
+            SearchDeadline deadline = new SearchDeadline(SearchDeadline.limit(longParameter(urlParameters, "timeout", 0)), () -> clientDisconnected(istream));
+            if (intParameter(urlParameters, "explain", 0) == 1)
+            {
+                out.write(explain(query, offset, limit, sort, deadline).toJson(settings).getBytes(Charset.forName(CHARSET)));
+                out.flush();
+                ostream.close();
+                breader.close();
+                socket.close();
+                return;
+            }
+            DataSnapshot snapshot = dataStore.getSnapshot();
+            out.write('[');
+            try 
+            {
+                // Each document is written as soon as it is found
+                int[] written = {0};
+                search(query, offset, limit, sort, deadline, snapshot, (int ordinal) -> {
+                    try
+                    {
+                        writeDocument(out, snapshot, ordinal, projection);
+                        if (++written[0] % 64 == 0) // not for every document
+                        {
+                            out.flush();
+                        }
+                    }
+                    catch(IOException e)
+                    {
+                        deadline.stop(); // client gone
+                    }
+                });
             }
             catch(Exception e)
             {
@@ -361,9 +628,19 @@ public class ClientConnector implements HttpHandler, Runnable {
             }
             finally
             {
-                writer.write("]");
-                writer.flush();
-                writer.close();
+                try
+                {
+                    if (deadline.isStopped())
+                    {
+                        out.write("{\"incomplete\" : true}".getBytes(Charset.forName(CHARSET))); // last entry, so clients can tell
+                    }
+                    out.write(']');
+                    out.flush();
+                }
+                catch(IOException e)
+                {
+                    LOG.DEBUG("Client gone while sending search results: " + e.toString());
+                }
             }
         }
         
@@ -406,13 +683,515 @@ public class ClientConnector implements HttpHandler, Runnable {
         return result;
     }
     
-    /**Searches a document for searchStrings */
-    private List<Document> search(List<String> searchStrings) throws InterruptedException, ExecutionException
+    /**
+     * Searches a document for a query, and passes one page of the 
+     * matching documents to out, in the order they are held in the data store
+     * or, if ranked, best match first.
+     * @param query The parsed search string
+     * @param offset Number of matching documents to skip
+     * @param limit Maximum number of documents to pass on
+     * @param sort Null for the order of the data store, relevance to rank
+     * the documents by relevance (BM25), or a field name, optionally followed
+     * by :desc, to order them by its values. All matches have to be found to
+     * sort them, so sorted results are not streamed as found.
+     * @param deadline When to give up scanning. Documents found until then
+     * are still passed on.
+     * @param snapshot The version of the data store to pass on documents
+     * of, skipping those it does not hold
+     * @param out Receives the ordinals of the documents
+     */
+    private void search(Query query, int offset, int limit, String sort, SearchDeadline deadline, DataSnapshot snapshot, IntConsumer out) throws InterruptedException, ExecutionException
     {
         //return simpleSearch(searchStrings); //slow search, single threaded on values (handy for testing)
+        SearchCacheSingleton cache = SearchCacheSingleton.getInstance();
+        String cacheKey = query.toString();
+        ResultPage page = new ResultPage(offset, limit, snapshot, out);
+        List<SearchTerm> searchTerms = query.disjunctionTerms();
+        int[] ordinals = cache.get(cacheKey);
+        if (ordinals == null && (sort != null || searchTerms == null)) // needs all matches anyway
+        {
+            ordinals = allMatches(query, deadline);
+        }
+        else if (ordinals == null)
+        {
+            long version = dataStore.getVersion(); // before searching, so a concurrent change is never cached
+            int wanted = (int) Math.min(Integer.MAX_VALUE, (long) offset + limit);
+            ordinals = SearchIndexSingleton.getInstance().search(searchTerms, wanted);
+            if (ordinals == null)
+            {
+                scan(searchTerms, page, deadline, cacheKey, version);
+                return;
+            }
+            if (ordinals.length < wanted) // else the index may have stopped early
+            {
+                cache.put(cacheKey, version, ordinals);
+            }
+        }
+        int wanted = (int) Math.min(Integer.MAX_VALUE, (long) offset + limit);
+        if ("relevance".equals(sort))
+        {
+            ordinals = SearchIndexSingleton.getInstance().rank(ordinals, query, wanted);
+        }
+        else if (sort != null)
+        {
+            ordinals = sortByField(ordinals, sort, wanted);
+        }
+        for (int ordinal : ordinals)
+        {
+            if (!page.test(ordinal))
+            {
+                break;
+            }
+        }
+        LOG.DEBUG("Search found " + ordinals.length + " entries");
+    }
+    
+    /**
+     * Evaluates a query as a search would, but bypassing the search cache,
+     * recording the stages. Queries using AND or NOT are evaluated by the
+     * QueryEvaluator, terms joined by OR (or a single term) are found as by
+     * search(): from the index if it covers them all, else by a scan.
+     * @param query The parsed search string
+     * @param offset As for search
+     * @param limit As for search
+     * @param sort As for search
+     * @param deadline When to give up
+     * @return The query, the stages of its evaluation with estimated and
+     * actual matches and milliseconds, and the number of matches
+     */
+    private Document explain(Query query, int offset, int limit, String sort, SearchDeadline deadline) throws InterruptedException, ExecutionException
+    {
+        long start = System.nanoTime();
+        QueryEvaluator evaluator = new QueryEvaluator(deadline, true);
+        List<SearchTerm> searchTerms = query.disjunctionTerms();
+        int wanted = (int) Math.min(Integer.MAX_VALUE, (long) offset + limit);
+        int[] ordinals;
+        boolean incomplete = false;
+        if (searchTerms == null) // uses AND or NOT
+        {
+            try
+            {
+                ordinals = evaluator.evaluate(query).toArray();
+            }
+            catch(CancellationException e)
+            {
+                ordinals = new int[0];
+                incomplete = true;
+            }
+        }
+        else
+        {
+            int needed = sort == null ? wanted : Integer.MAX_VALUE; // sorting needs all matches
+            long stepStart = System.nanoTime();
+            ordinals = SearchIndexSingleton.getInstance().search(searchTerms, needed);
+            if (ordinals != null)
+            {
+                evaluator.getPlanner().record("index", query, stepStart, ordinals.length);
+            }
+            else
+            {
+                int[] found = {0};
+                ordinals = scan(searchTerms, (int ordinal) -> ++found[0] < needed, deadline, null, 0);
+                evaluator.getPlanner().record("scan", query, stepStart, ordinals.length);
+                incomplete = deadline.isStopped();
+            }
+        }
+        int matches = ordinals.length;
+        if (sort != null)
+        {
+            long sortStart = System.nanoTime();
+            ordinals = "relevance".equals(sort) ? SearchIndexSingleton.getInstance().rank(ordinals, query, wanted) : sortByField(ordinals, sort, wanted);
+            evaluator.getPlanner().record("sort " + sort, sortStart);
+        }
+        Document explanation = new Document("query", query.toString())
+                .append("plan", evaluator.getPlanner().getStages())
+                .append("matches", matches)
+                .append("ms", (System.nanoTime() - start) / 1e6);
+        if (incomplete)
+        {
+            explanation.append("incomplete", true);
+        }
+        return explanation;
+    }
+    
+    /**
+     * Orders documents by the values of a metadata field, using the
+     * presorted ordinals of its column.
+     * @param ordinals The documents, ascending
+     * @param sort Field name, resolved as for field:value terms, optionally
+     * followed by :desc (or :asc)
+     * @param wanted Number of documents needed
+     * @return The first wanted documents in order, or all of them unchanged
+     * if there is no such field
+     */
+    private int[] sortByField(int[] ordinals, String sort, int wanted)
+    {
+        boolean descending = sort.endsWith(":desc");
+        String name = descending || sort.endsWith(":asc") ? sort.substring(0, sort.lastIndexOf(':')) : sort;
+        List<String> keys = SearchIndexSingleton.getInstance().resolveField(name);
+        if (keys.isEmpty())
+        {
+            LOG.DEBUG("Cannot sort by unknown field " + name);
+            return ordinals;
+        }
+        Collections.sort(keys);
+        String key = keys.get(0);
+        for (String candidate : keys)
+        {
+            if (candidate.equalsIgnoreCase(name)) // title rather than dc:title
+            {
+                key = candidate;
+            }
+        }
+        return ColumnStore.getCurrent().getColumn(key).sort(ordinals, descending, wanted);
+    }
+    
+    /**
+     * Finds all documents matching a query, from the search cache if
+     * possible, else caching them.
+     * @param query The parsed search string
+     * @param deadline When to give up scanning. The result is incomplete
+     * if it stopped the search.
+     * @return Ordinals of the matching documents in ascending order
+     */
+    private int[] allMatches(Query query, SearchDeadline deadline) throws InterruptedException, ExecutionException
+    {
+        SearchCacheSingleton cache = SearchCacheSingleton.getInstance();
+        String cacheKey = query.toString();
+        int[] ordinals = cache.get(cacheKey);
+        if (ordinals != null)
+        {
+            return ordinals;
+        }
+        long version = dataStore.getVersion(); // before searching, so a concurrent change is never cached
+        List<SearchTerm> searchTerms = query.disjunctionTerms();
+        if (searchTerms == null) // uses AND or NOT
+        {
+            try
+            {
+                ordinals = new QueryEvaluator(deadline).evaluate(query).toArray();
+            }
+            catch(CancellationException e)
+            {
+                return new int[0]; // parts of the query could not be evaluated
+            }
+        }
+        else
+        {
+            ordinals = SearchIndexSingleton.getInstance().search(searchTerms, Integer.MAX_VALUE);
+            if (ordinals == null)
+            {
+                return scan(searchTerms, (int ordinal) -> true, deadline, cacheKey, version); // caches itself
+            }
+        }
+        cache.put(cacheKey, version, ordinals);
+        return ordinals;
+    }
+    
+    /**
+     * Counts the documents per value of metadata fields, from the columns
+     * of the ColumnStore. Values of all keys a field name resolves to (e.g.
+     * title and dc:title) are counted together.
+     * @param fieldNames Field names as supplied by the client
+     * @param ordinals The documents to count, null for all
+     * @param limit Maximum number of values per field, most frequent first
+     * @return Counts by value by field name
+     */
+    private Document facets(List<String> fieldNames, int[] ordinals, int limit)
+    {
+        ColumnStore columns = ColumnStore.getCurrent();
+        Document facets = new Document();
+        for (String name : fieldNames)
+        {
+            Map<String, Integer> counts = new HashMap<>();
+            for (String key : SearchIndexSingleton.getInstance().resolveField(name))
+            {
+                FieldColumn column = columns.getColumn(key);
+                int[] columnCounts = column.count(ordinals);
+                for (int code = 0; code < columnCounts.length; code++)
+                {
+                    if (columnCounts[code] > 0)
+                    {
+                        counts.merge(column.getValue(code).toString(), columnCounts[code], Integer::sum);
+                    }
+                }
+            }
+            List<Map.Entry<String, Integer>> sorted = new ArrayList<>(counts.entrySet());
+            sorted.sort((a, b) -> !a.getValue().equals(b.getValue()) ? Integer.compare(b.getValue(), a.getValue()) : a.getKey().compareTo(b.getKey()));
+            Document values = new Document(); // keeps the order
+            for (int ii = 0; ii < sorted.size() && ii < limit; ii++)
+            {
+                values.append(sorted.get(ii).getKey(), sorted.get(ii).getValue());
+            }
+            facets.append(name, values);
+        }
+        return facets;
+    }
+    
+    /**
+     * Searches for terms not covered by the index, passing documents on to
+     * the page as they are found, and caching the result if neither the page
+     * nor the deadline stopped the search early.
+     * @param cacheKey Canonical form of the query, or null not to cache the
+     * result
+     * @return Ordinals of the matching documents found
+     */
+    private int[] scan(List<SearchTerm> searchTerms, IntPredicate page, SearchDeadline deadline, String cacheKey, long version) throws InterruptedException, ExecutionException
+    {
+        LOG.DEBUG("Search terms not covered by index, scanning");
+        List<SearchTerm> scoped = new ArrayList<>(); // these can always be answered by the index
+        List<String> unscoped = new ArrayList<>();
+        for (SearchTerm term : searchTerms)
+        {
+            if (term.isScoped())
+            {
+                scoped.add(term);
+            }
+            else
+            {
+                unscoped.add(term.text);
+            }
+        }
+        OrdinalBitmap scopedMatches = SearchIndexSingleton.getInstance().findScoped(scoped);
         SpeedyGonzales sg = new SpeedyGonzales(); //fast, multithreaded search 
         sg.setPriority(Thread.MAX_PRIORITY); // ensure search is always fast
-        return sg.findString(searchStrings);
+        List<Integer> found = new ArrayList<>();
+        boolean complete = sg.findOrdinals(unscoped, scopedMatches, (int ordinal) -> {
+            found.add(ordinal);
+            return page.test(ordinal);
+        }, deadline);
+        LOG.DEBUG("Scan found " + found.size() + " entries");
+        int[] ordinals = found.stream().mapToInt(Integer::intValue).toArray();
+        if (complete && cacheKey != null)
+        {
+            SearchCacheSingleton.getInstance().put(cacheKey, version, ordinals);
+        }
+        return ordinals;
+    }
+    
+    /**
+     * Checks whether the client closed the connection while we search,
+     * by trying to read from it: requests are complete once parsed, so
+     * reading only ends (with -1) or fails when the client has gone.
+     * @param istream The socket's input stream
+     * @return True if the client is gone
+     */
+    private boolean clientDisconnected(InputStream istream)
+    {
+        try
+        {
+            socket.setSoTimeout(1);
+            return istream.read() < 0;
+        }
+        catch(SocketTimeoutException e)
+        {
+            return false; // still there, just quiet
+        }
+        catch(IOException e)
+        {
+            return true;
+        }
+        finally
+        {
+            try
+            {
+                socket.setSoTimeout(0);
+            }
+            catch(SocketException e)
+            {
+                LOG.DEBUG("Could not reset socket timeout: " + e.toString());
+            }
+        }
+    }
+    
+    /**
+     * Writes the JSON of a document, followed by a comma and line break.
+     * Whole documents are written as cached by the JsonCacheSingleton, so
+     * they are not serialized again for every request.
+     * @param out The response body
+     * @param snapshot The version of the data store to read the document of
+     * @param ordinal Ordinal of the document, which is skipped if the
+     * snapshot does not hold it
+     * @param projection The fields to write, or null for all of them
+     * @throws IOException If the client has gone
+     */
+    private void writeDocument(OutputStream out, DataSnapshot snapshot, int ordinal, Projection projection) throws IOException
+    {
+        byte[] json;
+        if (projection == null)
+        {
+            json = jsonCache.get(snapshot, ordinal);
+        }
+        else
+        {
+            json = snapshot.contains(ordinal) ? projection.toJson(ordinal, snapshot).getBytes(Charset.forName(CHARSET)) : null;
+        }
+        if (json != null)
+        {
+            out.write(json);
+            out.write(SEPARATOR);
+        }
+    }
+    
+    /**
+     * Passes on the documents of one page of a search result, skipping 
+     * documents that the snapshot searched does not hold, e.g. as they have
+     * been removed from the data store meanwhile.
+     */
+    private class ResultPage implements IntPredicate {
+        
+        private int skip;
+        private int remaining;
+        private final DataSnapshot snapshot;
+        private final IntConsumer out;
+        
+        ResultPage(int offset, int limit, DataSnapshot snapshot, IntConsumer out)
+        {
+            skip = offset;
+            remaining = limit;
+            this.snapshot = snapshot;
+            this.out = out;
+        }
+        
+        /**
+         * @param ordinal Ordinal of the next matching document
+         * @return False once the page is full
+         */
+        @Override
+        public boolean test(int ordinal)
+        {
+            if (remaining <= 0)
+            {
+                return false;
+            }
+            if (!snapshot.contains(ordinal))
+            {
+                return true;
+            }
+            if (skip > 0)
+            {
+                skip--;
+                return true;
+            }
+            out.accept(ordinal);
+            remaining--;
+            return remaining > 0;
+        }
+    }
+
+    /**
+     * Reads the objectId parameter from the URL. ObjectIds are hex digits
+     * only, so they need no URL decoding (and no copy of the string), and
+     * only anything else, e.g. the name of a HLS part, is decoded.
+     * @param urlParameters Parameters as returned by parseUrl
+     * @return The objectId
+     * @throws UnsupportedEncodingException
+     */
+    private String objectIdParameter(Map<String, String> urlParameters) throws UnsupportedEncodingException
+    {
+        String objectId = urlParameters.get("objectId");
+        return ObjectIdMap.isObjectId(objectId) ? objectId : URLDecoder.decode(objectId, CHARSET); //http://stackoverflow.com/questions/15235400/java-url-param-replace-20-with-space
+    }
+
+    /**
+     * Reads an optional, non-negative int parameter from the URL.
+     * @param urlParameters Parameters as returned by parseUrl
+     * @param name Name of the parameter
+     * @param defaultValue Used if the parameter is missing or invalid
+     * @return The value
+     */
+    private int intParameter(Map<String, String> urlParameters, String name, int defaultValue)
+    {
+        String value = urlParameters.get(name);
+        if (value == null || value.isEmpty())
+        {
+            return defaultValue;
+        }
+        try
+        {
+            return Math.max(0, Integer.parseInt(value));
+        }
+        catch(NumberFormatException e)
+        {
+            LOG.WARNING("Ignoring invalid " + name + " parameter " + value);
+            return defaultValue;
+        }
+    }
+
+    /**
+     * Reads an optional, non-negative long parameter from the URL.
+     * @param urlParameters Parameters as returned by parseUrl
+     * @param name Name of the parameter
+     * @param defaultValue Used if the parameter is missing or invalid
+     * @return The value
+     */
+    private long longParameter(Map<String, String> urlParameters, String name, long defaultValue)
+    {
+        String value = urlParameters.get(name);
+        if (value == null || value.isEmpty())
+        {
+            return defaultValue;
+        }
+        try
+        {
+            return Math.max(0, Long.parseLong(value));
+        }
+        catch(NumberFormatException e)
+        {
+            LOG.WARNING("Ignoring invalid " + name + " parameter " + value);
+            return defaultValue;
+        }
+    }
+
+    /**
+     * @param event A change to the results of a standing query
+     * @return The event as sent to the client, e.g.
+     * {"sequence" : 4, "added" : {the document}} or
+     * {"sequence" : 5, "removed" : "57ae33d69041ea0bef07490a"}
+     */
+    private static Document eventDocument(StandingQueriesSingleton.Event event)
+    {
+        return new Document("sequence", event.sequence)
+                .append(event.type, event.type.equals("added") ? event.doc : event.id);
+    }
+
+    /**
+     * Sends the events of a subscription as Server Sent Events, until the
+     * client disconnects or the subscription is removed. Each event has the
+     * sequence number as id, added or removed as event name, and the event
+     * as JSON as data. A comment is sent every so often when nothing
+     * happens, to find out whether the client is still there.
+     * @param subscription The subscription
+     * @param after Sequence number of the last event the client has seen
+     * @param writer For the response body
+     */
+    private void streamEvents(StandingQueriesSingleton.Subscription subscription, long after, PrintWriter writer) throws InterruptedException
+    {
+        JsonWriterSettings settings = new JsonWriterSettings(JsonMode.STRICT);
+        if (subscription.hasMissed(after))
+        {
+            writer.write("event: missed" + "\n" + "data: {}" + "\n\n");
+        }
+        while (!subscription.isClosed())
+        {
+            List<StandingQueriesSingleton.Event> events = subscription.await(after, StandingQueriesSingleton.DEFAULT_WAIT_MS);
+            for (StandingQueriesSingleton.Event event : events)
+            {
+                writer.write("id: " + event.sequence + "\n");
+                writer.write("event: " + event.type + "\n");
+                writer.write("data: " + eventDocument(event).toJson(settings) + "\n\n");
+                after = event.sequence;
+            }
+            if (events.isEmpty())
+            {
+                writer.write(": keep-alive" + "\n\n");
+            }
+            if (writer.checkError()) // flushes
+            {
+                break; // client gone
+            }
+        }
+        writer.close();
     }
 
     
@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2016 Toby Scholz 2016
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package NepTune;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Column representation of the documents in the DataStoreSingleton: a
+ * FieldColumn per metadata key, built the first time the key is needed.
+ * Like the SearchCorpus, a column store is never changed once made. When
+ * the data store publishes a version, it makes the store of that version
+ * from the current one and the documents changed (update()), on its own
+ * thread, while readers keep using the current store until then.
+ */
+final class ColumnStore {
+
+    private static volatile ColumnStore current = new ColumnStore(DataSnapshot.EMPTY);
+
+    private final DataSnapshot snapshot;  // the version this is of
+    private final ConcurrentHashMap<String, FieldColumn> columns = new ConcurrentHashMap<>(); // by metadata key
+
+    /**
+     * @return The column store for the current state of the data store
+     */
+    static ColumnStore getCurrent()
+    {
+        return current;
+    }
+
+    /**
+     * Makes the store of a new version current, with the columns built so
+     * far carried over. Columns are made afresh after the data store has
+     * encoded its documents anew, so they also drop the values that are no
+     * longer used. Only called by the writer, before the version is
+     * published (see DataStoreSingleton.publish()).
+     * @param next The new version
+     * @param changed Ordinals of the documents changed since the current
+     * version, ascending
+     */
+    static void update(DataSnapshot next, int[] changed)
+    {
+        ColumnStore previous = current;
+        ColumnStore store = new ColumnStore(next);
+        boolean recoded = previous.snapshot.getCodec() != next.getCodec();
+        for (Map.Entry<String, FieldColumn> entry : previous.columns.entrySet())
+        {
+            store.columns.put(entry.getKey(), recoded ? entry.getValue().afresh(next) : entry.getValue().next(next, changed));
+        }
+        current = store;
+    }
+
+    private ColumnStore(DataSnapshot snapshot)
+    {
+        this.snapshot = snapshot;
+    }
+
+    /**
+     * @param ordinal Document ordinal
+     * @return True if the document was in the data store when this was built
+     */
+    boolean covers(int ordinal)
+    {
+        return snapshot.contains(ordinal);
+    }
+
+    /**
+     * @param key A metadata key
+     * @return Its column, built first if needed
+     */
+    FieldColumn getColumn(String key)
+    {
+        return columns.computeIfAbsent(key, this::build);
+    }
+
+    private FieldColumn build(String key)
+    {
+        long start = System.currentTimeMillis();
+        FieldColumn column = new FieldColumn(key, snapshot);
+        LOG.DEBUG("Column " + key + " with " + column.getValueCount() + " values built in " + (System.currentTimeMillis() - start) + "ms");
+        return column;
+    }
+}
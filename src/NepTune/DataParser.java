@@ -22,7 +22,9 @@ import java.util.HashMap;
 import org.bson.Document;
 import com.mongodb.Block;
 import com.mongodb.client.FindIterable;
+import java.io.File;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.List;
 import java.util.Set;
 import jcifs.smb.SmbException;
@@ -43,6 +45,7 @@ public class DataParser {
     DataStoreSingleton dataStore = DataStoreSingleton.getInstance();
     private final MongoConnectorSingleton db = MongoConnectorSingleton.getInstance();
     private List<Document> docList = new ArrayList<>();
+    private static final int REPLAY_BATCH = 1000; // documents fetched per query when catching up with the database
     
     
     SambaConnector samba = new SambaConnector(
@@ -156,9 +159,28 @@ public class DataParser {
     /**
      * As opposed to storeData(), this method retrieves data previously stored
      * in the database, and writes it to the DataStoreSingleton.
+     * If there is a snapshot file (see SnapshotFile), the data (and search
+     * index) is read from there, and only the changes since are read from
+     * the database.
      * It should only be used when the program is run in '--daemon' mode.
      */
     public void readDb()
+    {
+        File snapshot = SnapshotFile.getFile();
+        if (snapshot != null && snapshot.exists() && SnapshotFile.load(snapshot))
+        {
+            replayDb();
+        }
+        else
+        {
+            readAllDb();
+        }
+    }
+    
+    /**
+     * Reads all documents from the database.
+     */
+    private void readAllDb()
     {
         FindIterable<Document> iterable = db.readCollection("files");           
         iterable.forEach(new Block<Document>() 
@@ -170,9 +192,67 @@ public class DataParser {
             }
         }
         );
+        dataStore.publish(); // all at once
         LOG.INFO(dataStore.getSize() + " documents added to dataStore");
     }
     
+    /**
+     * Brings the data store, as read from the snapshot file, up to date with
+     * the database: adds the documents added to the database since the 
+     * snapshot was written, and removes those removed since, in the search 
+     * index as well (see DataStoreSingleton.publish). Documents are never
+     * changed in the database 
+     * (Maintenance replaces a modified file's document with a new one, with
+     * a new id), so only the ids need to be compared, and only the new 
+     * documents read.
+     */
+    private void replayDb()
+    {
+        final BitSet found = new BitSet(); // ordinals of the documents still in the database
+        final List<Object> missing = new ArrayList<>(); // _id of those not in the snapshot
+        db.readIds("files").forEach(new Block<Document>() 
+        {
+            @Override
+            public void apply(final Document document) 
+            {
+                int ordinal = dataStore.getOrdinal(document.get("_id").toString());
+                if (ordinal >= 0)
+                {
+                    found.set(ordinal);
+                }
+                else
+                {
+                    missing.add(document.get("_id"));
+                }
+            }
+        }
+        );
+        for (int from = 0; from < missing.size(); from += REPLAY_BATCH)
+        {
+            db.readDocuments("files", missing.subList(from, Math.min(from + REPLAY_BATCH, missing.size()))).forEach(new Block<Document>() 
+            {
+                @Override
+                public void apply(final Document document) 
+                {
+                    dataStore.addItem(document.get("_id").toString(), document);
+                }
+            }
+            );
+        }
+        DataSnapshot snapshot = dataStore.getSnapshot();
+        int removed = 0;
+        for (int ordinal = 0; ordinal < snapshot.getOrdinalCount(); ordinal++)
+        {
+            if (snapshot.contains(ordinal) && !found.get(ordinal))
+            {
+                dataStore.removeItem(snapshot.getId(ordinal));
+                removed++;
+            }
+        }
+        dataStore.publish();
+        LOG.INFO(missing.size() + " documents added to and " + removed + " removed from dataStore since the snapshot");
+    }
+    
     /**
      * Transfers data from the DataStoreSingleton to the database.
      * Should only be used in '--init', or '--update' mode.
@@ -0,0 +1,254 @@
+/*
+ * Copyright (C) 2016 Toby Scholz 2016
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package NepTune;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import org.bson.Document;
+
+/**
+ * A version of the contents of the DataStoreSingleton, which never changes
+ * once published, so any number of threads can read it without locking
+ * while Maintenance prepares the next one.
+ * Documents are held by ordinal in pages of PAGE_SIZE. A new version only
+ * copies the pages that changed, and shares all others with the previous
+ * one, so publishing a few changes is cheap even for a large store.
+ * Each document is held encoded (see DocumentCodec), and only rebuilt as a
+ * Document by getDocument(); code that needs just a value or two should use
+ * getValue() instead.
+ */
+final class DataSnapshot {
+
+    static final int PAGE_BITS = 10;
+    static final int PAGE_SIZE = 1 << PAGE_BITS;
+    static final DataSnapshot EMPTY = new DataSnapshot(0, new int[0][][], new String[0][], 0, 0, null, new DocumentCodec());
+
+    private final long version;
+    private final int[][][] rowPages;         // by ordinal, encoded documents, null once removed
+    private final String[][] idPages;         // by ordinal, null once removed
+    private final int ordinalCount;
+    private final int size;
+    private final ObjectIdMap ordinals;          // id -> ordinal, shared with later versions
+    private final DocumentCodec codec;           // shared with later versions, up to a compaction
+
+    DataSnapshot(long version, int[][][] rowPages, String[][] idPages, int ordinalCount, int size, ObjectIdMap ordinals, DocumentCodec codec)
+    {
+        this.version = version;
+        this.rowPages = rowPages;
+        this.idPages = idPages;
+        this.ordinalCount = ordinalCount;
+        this.size = size;
+        this.ordinals = ordinals;
+        this.codec = codec;
+    }
+
+    /**
+     * @return Number of this version, counting up with every publish, so
+     * derived data (e.g. cached search results) knows when it is out of date.
+     */
+    long getVersion()
+    {
+        return version;
+    }
+
+    /**
+     * @param ordinal Document ordinal
+     * @return The document, newly built, or null if it had been removed
+     * (or not yet been added) in this version
+     */
+    Document getDocument(int ordinal)
+    {
+        int[] row = getRow(ordinal);
+        return row == null ? null : codec.decode(row);
+    }
+
+    /**
+     * @param ordinal Document ordinal
+     * @param key A metadata key
+     * @return The document's value of the key, null if it has none or
+     * there is no document as for getDocument
+     */
+    Object getValue(int ordinal, String key)
+    {
+        int[] row = getRow(ordinal);
+        return row == null ? null : codec.getValue(row, key);
+    }
+
+    /**
+     * @param ordinal Document ordinal
+     * @return Whether there is a document at the ordinal in this version
+     */
+    boolean contains(int ordinal)
+    {
+        return getRow(ordinal) != null;
+    }
+
+    /**
+     * @param ordinal Document ordinal
+     * @return The document as encoded by the DocumentCodec, or null as for
+     * getDocument
+     */
+    int[] getRow(int ordinal)
+    {
+        if (ordinal < 0 || ordinal >= ordinalCount)
+        {
+            return null;
+        }
+        return rowPages[ordinal >>> PAGE_BITS][ordinal & (PAGE_SIZE - 1)];
+    }
+
+    /**
+     * @param ordinal Document ordinal
+     * @return The object id of the document, or null as for getDocument
+     */
+    String getId(int ordinal)
+    {
+        if (ordinal < 0 || ordinal >= ordinalCount)
+        {
+            return null;
+        }
+        return idPages[ordinal >>> PAGE_BITS][ordinal & (PAGE_SIZE - 1)];
+    }
+
+    /**
+     * @param id The object id of a document
+     * @return Its ordinal, or -1 if the document is not held in this version
+     */
+    int getOrdinal(CharSequence id)
+    {
+        int ordinal = ordinals == null ? -1 : ordinals.get(id);
+        String held = getId(ordinal);
+        return held != null && held.contentEquals(id) ? ordinal : -1;
+    }
+
+    /** @return The codec the documents of this version are encoded with */
+    DocumentCodec getCodec()
+    {
+        return codec;
+    }
+
+    /** @return Upper bound (exclusive) of the ordinals in this version */
+    int getOrdinalCount()
+    {
+        return ordinalCount;
+    }
+
+    /** @return Number of documents held */
+    int getSize()
+    {
+        return size;
+    }
+
+    /**
+     * @return The documents by object id, in the order they were added. The
+     * map is a read-only view of this version.
+     */
+    Map<String, Document> asMap()
+    {
+        return new AbstractMap<String, Document>()
+        {
+            @Override
+            public Document get(Object id)
+            {
+                return id instanceof String ? getDocument(getOrdinal((String) id)) : null;
+            }
+
+            @Override
+            public boolean containsKey(Object id)
+            {
+                return get(id) != null;
+            }
+
+            @Override
+            public int size()
+            {
+                return size;
+            }
+
+            @Override
+            public Set<Map.Entry<String, Document>> entrySet()
+            {
+                return new AbstractSet<Map.Entry<String, Document>>()
+                {
+                    @Override
+                    public int size()
+                    {
+                        return size;
+                    }
+
+                    @Override
+                    public Iterator<Map.Entry<String, Document>> iterator()
+                    {
+                        return new Iterator<Map.Entry<String, Document>>()
+                        {
+                            private int next = skipRemoved(0);
+
+                            @Override
+                            public boolean hasNext()
+                            {
+                                return next < ordinalCount;
+                            }
+
+                            @Override
+                            public Map.Entry<String, Document> next()
+                            {
+                                if (!hasNext())
+                                {
+                                    throw new NoSuchElementException();
+                                }
+                                Map.Entry<String, Document> entry = new AbstractMap.SimpleImmutableEntry<>(getId(next), getDocument(next));
+                                next = skipRemoved(next + 1);
+                                return entry;
+                            }
+                        };
+                    }
+                };
+            }
+        };
+    }
+
+    /** @return The documents, in the order they were added */
+    List<Document> getList()
+    {
+        List<Document> list = new ArrayList<>(size);
+        for (int ordinal = 0; ordinal < ordinalCount; ordinal++)
+        {
+            Document doc = getDocument(ordinal);
+            if (doc != null)
+            {
+                list.add(doc);
+            }
+        }
+        return list;
+    }
+
+    /** @return The first ordinal from this one with a document */
+    private int skipRemoved(int ordinal)
+    {
+        while (ordinal < ordinalCount && !contains(ordinal))
+        {
+            ordinal++;
+        }
+        return ordinal;
+    }
+}
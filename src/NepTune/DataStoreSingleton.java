@@ -16,8 +16,8 @@
  */
 package NepTune;
 
-import java.util.ArrayList;
-import java.util.LinkedHashMap;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.List;
 import java.util.Map;
 import org.bson.Document;
@@ -30,15 +30,49 @@ import org.bson.Document;
  * In '--daemon' mode, reads the metadata from the database, and has it ready
  * for queries from the connected clients.
  *
+ * The data is held as versions (DataSnapshot) that never change once
+ * published. All reading methods read the current version, without
+ * locking, and code that reads more than one thing and needs them to agree
+ * (e.g. iterating over all documents) should take a snapshot with
+ * getSnapshot() and read that instead.
+ * There is a single writer (the thread reading the database, then
+ * Maintenance): addItem and removeItem prepare the next version, and
+ * publish() makes it the current one, so a batch of changes appears at
+ * once and readers never see a half-made change.
+ * publish() also brings the search index, the suggestions, the columns
+ * (ColumnStore) and the search corpus up to date with the changes before
+ * the new version becomes current, so a reader that sees a version number
+ * sees the index of that version or a later one (which the search cache
+ * relies on, see SearchCacheSingleton), and no reader waits for any of
+ * them to be rebuilt.
+ *
+ * Documents are not held as such but encoded as arrays of key and value
+ * codes into shared dictionaries (DocumentCodec), which takes a fraction of
+ * the memory, as keys and many values are the same for most documents.
+ * Values stay in the codec after their documents are removed, so once a
+ * good part of them is unused, publish() encodes the documents anew with a
+ * codec of their values only (compact()).
+ * getDocument() rebuilds a document when it is needed in full (e.g. to
+ * serialize it), while getValue() reads a single value.
  */
 
 public class DataStoreSingleton {
     
-  //private static List<Document> LIST_OF_DOCS = new ArrayList<>();
-  private static Map<String,Document> MAP_OF_DOCS = new LinkedHashMap<>();
   private static DataStoreSingleton instance = null;
+  private static final int COMPACT_MIN = 65536; // unused values in the codec before it is compacted
+  private volatile DataSnapshot current = DataSnapshot.EMPTY;
+  private final ObjectIdMap ordinals = new ObjectIdMap(); // id -> ordinal, of all versions
+  private DocumentCodec codec = new DocumentCodec(); // of the next version, and those since the last compaction
+  // The next version, only touched by the writer
+  private int[][][] rowPages = new int[0][][];
+  private String[][] idPages = new String[0][];
+  private boolean[] pageCopied = new boolean[0]; // since the last publish, so not shared with any version
+  private final BitSet changedOrdinals = new BitSet(); // since the last publish, for the index
+  private int ordinalCount = 0;
+  private int size = 0;
+  private boolean changed = false;
 
-  public static DataStoreSingleton getInstance()
+  public static synchronized DataStoreSingleton getInstance()
   {
     if(instance==null)
     {
@@ -47,6 +81,15 @@ public class DataStoreSingleton {
     return instance;
   }
   
+  /**
+   * @return The current version of the data, which does not change
+   * while it is read.
+   */
+  DataSnapshot getSnapshot()
+  {
+      return current;
+  }
+  
   /**
    * Returns the list of metadata documents, for example for writing to 
    * the database.
@@ -54,41 +97,231 @@ public class DataStoreSingleton {
    */
   public List<Document> getList()
   {
-      List<Document> list = new ArrayList<>();
-      for (Map.Entry<String, Document> entry: MAP_OF_DOCS.entrySet() )
-      {
-          list.add(entry.getValue());
-      }
-      return list;
+      return current.getList();
   }
   
     /**
    * Returns the map of metadata documents, for example for use by 
-   * Speedy Gonzales.
-   * @return List of metadata bson documents
+   * Maintenance. It is a read-only view of the current version, so it can
+   * be iterated while the data store is changed.
+   * @return Map of metadata bson documents by object id
    */
   public Map<String,Document> getMap()
   {
-      return MAP_OF_DOCS;
+      return current.asMap();
   }
   
 
   
   /**
-   * Adds a document of file metadata to the list of documents.
-   * Should only be used in '--init' mode.
+   * Adds a document of file metadata to the list of documents, or replaces
+   * the document with the same id. Only visible once published.
    * @param doc The document to be added.
    */
-  public void addItem(String id, Document doc)
+  public synchronized void addItem(String id, Document doc)
   {
-      //LIST_OF_DOCS.add(doc);
       //LOG.DEBUG("Adding " + id.toString() + ", " + doc.toString() + "to data store");
-      MAP_OF_DOCS.put(id, doc);
+      int ordinal = ordinals.get(id);
+      if (ordinal < 0 || pending(ordinal) == null)
+      {
+          ordinal = ordinalCount++; // ordinals are never re-used
+          ordinals.put(id, ordinal);
+          size++;
+      }
+      set(ordinal, id, codec.encode(doc));
+  }
+  
+  /**
+   * Removes a document. Only visible once published.
+   * @param id The object id of the document
+   */
+  public synchronized void removeItem(String id)
+  {
+      int ordinal = ordinals.get(id);
+      if (ordinal >= 0 && pending(ordinal) != null)
+      {
+          set(ordinal, null, null);
+          size--;
+      }
   }
   
-  public void removeItem(String id)
+  /**
+   * Fills the empty data store with documents already encoded, e.g. as read
+   * from a snapshot file (see SnapshotFile). Only visible once published.
+   * @param keys The keys of the documents, by key code
+   * @param values The values of each key, by key code, then value code
+   * @param ids The object ids of the documents
+   * @param rows The documents, as encoded with above codes
+   */
+  synchronized void load(String[] keys, Object[][] values, String[] ids, int[][] rows)
+  {
+      if (ordinalCount > 0)
+      {
+          throw new IllegalStateException("Data store is not empty");
+      }
+      codec.load(keys, values);
+      for (int ii = 0; ii < ids.length; ii++)
+      {
+          ordinals.put(ids[ii], ordinalCount);
+          set(ordinalCount++, ids[ii], rows[ii]);
+          size++;
+      }
+      changedOrdinals.clear(); // the index is read with them (see SnapshotFile)
+  }
+  
+  /**
+   * Makes the changes since the last call visible to readers, as a new
+   * version. The search index, suggestions, columns and search corpus are
+   * updated first, from the documents changed between the current version
+   * and the new one.
+   * @return The new current version
+   */
+  public synchronized DataSnapshot publish()
+  {
+      if (changed)
+      {
+          int unused = codec.getUnusedCount();
+          if (unused >= COMPACT_MIN && unused >= codec.getValueCount() / 4)
+          {
+              compact();
+          }
+          DataSnapshot next = new DataSnapshot(current.getVersion() + 1, rowPages.clone(), idPages.clone(), ordinalCount, size, ordinals, codec);
+          int[] changedInNext = changedOrdinals.stream().toArray();
+          SearchIndexSingleton.getInstance().update(current, next, changedInNext);
+          SuggestIndexSingleton.getInstance().update(current, next, changedInNext);
+          ColumnStore.update(next, changedInNext);
+          SearchCorpus.update(next);
+          current = next;
+          Arrays.fill(pageCopied, false);
+          changedOrdinals.clear();
+          changed = false;
+      }
+      return current;
+  }
+  
+  /**
+   * Encodes the documents of the next version anew, with a new codec that
+   * only has the values they use. Published versions keep the codec they
+   * were encoded with.
+   */
+  private void compact()
+  {
+      long start = System.currentTimeMillis();
+      DocumentCodec old = codec;
+      codec = new DocumentCodec();
+      for (int page = 0; page < rowPages.length; page++)
+      {
+          if (rowPages[page] == null)
+          {
+              continue;
+          }
+          int[][] rows = new int[DataSnapshot.PAGE_SIZE][];
+          for (int slot = 0; slot < rows.length; slot++)
+          {
+              if (rowPages[page][slot] != null)
+              {
+                  rows[slot] = codec.encode(old.decode(rowPages[page][slot]));
+                  codec.retain(rows[slot]);
+              }
+          }
+          rowPages[page] = rows;
+          if (!pageCopied[page])
+          {
+              idPages[page] = idPages[page].clone();
+              pageCopied[page] = true;
+          }
+      }
+      LOG.INFO("Data store values compacted from " + old.getValueCount() + " to " + codec.getValueCount() + " in " + (System.currentTimeMillis() - start) + "ms");
+  }
+  
+  /** @return The encoded document at an ordinal in the next version */
+  private int[] pending(int ordinal)
+  {
+      return ordinal < ordinalCount ? rowPages[ordinal >>> DataSnapshot.PAGE_BITS][ordinal & (DataSnapshot.PAGE_SIZE - 1)] : null;
+  }
+  
+  /** Sets the id and encoded document at an ordinal in the next version */
+  private void set(int ordinal, String id, int[] row)
+  {
+      int page = ordinal >>> DataSnapshot.PAGE_BITS;
+      if (page >= rowPages.length)
+      {
+          int pages = Math.max(page + 1, rowPages.length * 2);
+          rowPages = Arrays.copyOf(rowPages, pages);
+          idPages = Arrays.copyOf(idPages, pages);
+          pageCopied = Arrays.copyOf(pageCopied, pages);
+      }
+      if (!pageCopied[page]) // shared with published versions, copy on write
+      {
+          rowPages[page] = rowPages[page] == null ? new int[DataSnapshot.PAGE_SIZE][] : rowPages[page].clone();
+          idPages[page] = idPages[page] == null ? new String[DataSnapshot.PAGE_SIZE] : idPages[page].clone();
+          pageCopied[page] = true;
+      }
+      int[] replaced = rowPages[page][ordinal & (DataSnapshot.PAGE_SIZE - 1)];
+      if (replaced != null)
+      {
+          codec.release(replaced);
+      }
+      if (row != null)
+      {
+          codec.retain(row);
+      }
+      rowPages[page][ordinal & (DataSnapshot.PAGE_SIZE - 1)] = row;
+      idPages[page][ordinal & (DataSnapshot.PAGE_SIZE - 1)] = id;
+      changedOrdinals.set(ordinal);
+      changed = true;
+  }
+  
+  /**
+   * @return Number of the current version, which changes whenever 
+   * documents have been added or removed, so derived data (e.g. cached
+   * search results) knows when it is out of date.
+   */
+  public long getVersion()
+  {
+      return current.getVersion();
+  }
+  
+  /**
+   * Every document gets a stable int ordinal when it is added, which the 
+   * search index uses instead of the id string.
+   * Looking it up allocates nothing, so the id can be taken straight from
+   * a request.
+   * @param id The object id of the document
+   * @return The ordinal, or -1 if the document is not held
+   */
+  public int getOrdinal(CharSequence id)
+  {
+      return current.getOrdinal(id);
+  }
+  
+  /**
+   * @param ordinal Ordinal as returned by getOrdinal()
+   * @return The document, newly built, or null if it has been removed since
+   */
+  public Document getDocument(int ordinal)
+  {
+      return current.getDocument(ordinal);
+  }
+  
+  /**
+   * Reads one value of a document, without building the whole document.
+   * @param ordinal Ordinal as returned by getOrdinal()
+   * @param key A metadata key
+   * @return The value, or null if the document has none or has been removed
+   */
+  public Object getValue(int ordinal, String key)
+  {
+      return current.getValue(ordinal, key);
+  }
+  
+  /**
+   * @return Upper bound (exclusive) of the ordinals handed out so far, 
+   * including those of removed documents.
+   */
+  public int getOrdinalCount()
   {
-      MAP_OF_DOCS.remove(id);
+      return current.getOrdinalCount();
   }
   
 
@@ -98,7 +331,7 @@ public class DataStoreSingleton {
    */
   public void printDocs() 
   {
-      for (Map.Entry<String, Document> entry : MAP_OF_DOCS.entrySet())
+      for (Map.Entry<String, Document> entry : getMap().entrySet())
       {
           LOG.DEBUG("Document is " + entry.getKey() + ",  " + entry.getValue().toString() + System.lineSeparator());
       }
@@ -112,6 +345,6 @@ public class DataStoreSingleton {
    */
   public int getSize()
   {
-      return MAP_OF_DOCS.size();
+      return current.getSize();
   }
 }
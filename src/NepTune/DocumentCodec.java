@@ -0,0 +1,468 @@
+/*
+ * Copyright (C) 2016 Toby Scholz 2016
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package NepTune;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import org.bson.Document;
+
+/**
+ * Compact encoding of the documents in the DataStoreSingleton. Most keys
+ * and many values repeat from document to document (the Tika keys,
+ * "audio/mpeg", artists, sample rates), so each key is held once (interned),
+ * each field has a dictionary of its distinct values, and a document is
+ * just an int array of key and value codes, in the order of its keys:
+ * { key code, value code, key code, value code, ... }.
+ * Documents are only rebuilt from these when needed, e.g. to serialize
+ * them; single values can be read without that (getValue).
+ * Fields whose values are (nearly) all different, e.g. _id, fileName and
+ * hash, gain nothing from a dictionary but the cost of its lookup map, so
+ * once a field turns out that way, its values are stored raw: every value
+ * gets a code of its own, without looking for an equal one.
+ *
+ * There is a single writer (see DataStoreSingleton), and readers only ever
+ * decode codes handed out before the snapshot they read was published.
+ * Codes are never re-used, so the writer counts the documents of the next
+ * version using each value (retain and release), and once many values are
+ * unused, the data store encodes its documents anew with a new codec (see
+ * DataStoreSingleton.compact). Published versions keep their codec.
+ *
+ * For searching, dictionaries also keep the lower case text of their values
+ * (see SearchCorpus), so a value shared by many documents is only turned
+ * into text once. Raw values are turned into text when needed, so each key
+ * also records which characters its texts have, and a search skips the
+ * values of keys that lack a character of every term (mayContain), e.g.
+ * the hexadecimal _id and hash for most words.
+ */
+final class DocumentCodec {
+
+    private static final int NULL_VALUE = -1;
+    private static final int RAW_CHECK = 1024; // values a dictionary needs before it can turn raw
+
+    private final Map<String, Integer> keyCodes = new ConcurrentHashMap<>();
+    private volatile String[] keys = new String[16];                      // by key code
+    private volatile String[] keyTexts = new String[16];                  // by key code, lower case
+    private volatile FieldDictionary[] dictionaries = new FieldDictionary[16]; // by key code
+    private volatile int keyCount = 0;
+
+    /**
+     * @param doc A document
+     * @return Its encoding, to be retained if it becomes part of the data
+     */
+    synchronized int[] encode(Document doc)
+    {
+        int[] row = new int[doc.size() * 2];
+        int pos = 0;
+        for (Map.Entry<String, Object> entry : doc.entrySet())
+        {
+            int keyCode = keyCode(entry.getKey());
+            row[pos++] = keyCode;
+            row[pos++] = entry.getValue() == null ? NULL_VALUE : dictionaries[keyCode].code(entry.getValue());
+        }
+        return row;
+    }
+
+    /**
+     * Counts a document of the next version as using its values.
+     * @param row A document as encoded
+     */
+    synchronized void retain(int[] row)
+    {
+        for (int pos = 0; pos < row.length; pos += 2)
+        {
+            if (row[pos + 1] != NULL_VALUE)
+            {
+                dictionaries[row[pos]].retain(row[pos + 1]);
+            }
+        }
+    }
+
+    /**
+     * No longer counts a document as using its values, e.g. once it has
+     * been removed from the next version.
+     * @param row A document as encoded, and retained before
+     */
+    synchronized void release(int[] row)
+    {
+        for (int pos = 0; pos < row.length; pos += 2)
+        {
+            if (row[pos + 1] != NULL_VALUE)
+            {
+                dictionaries[row[pos]].release(row[pos + 1]);
+            }
+        }
+    }
+
+    /**
+     * @param row A document as encoded
+     * @return The document, newly built
+     */
+    Document decode(int[] row)
+    {
+        String[] keyNames = keys;
+        FieldDictionary[] values = dictionaries;
+        Document doc = new Document();
+        for (int pos = 0; pos < row.length; pos += 2)
+        {
+            doc.append(keyNames[row[pos]], row[pos + 1] == NULL_VALUE ? null : values[row[pos]].get(row[pos + 1]));
+        }
+        return doc;
+    }
+
+    /**
+     * @param row A document as encoded
+     * @param key A metadata key
+     * @return The document's value of the key, null if it has none
+     */
+    Object getValue(int[] row, String key)
+    {
+        Integer keyCode = keyCodes.get(key);
+        if (keyCode == null)
+        {
+            return null;
+        }
+        for (int pos = 0; pos < row.length; pos += 2)
+        {
+            if (row[pos] == keyCode)
+            {
+                return row[pos + 1] == NULL_VALUE ? null : dictionaries[keyCode].get(row[pos + 1]);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Sets the keys and dictionaries, e.g. as read from a snapshot file, which
+     * the codes of the documents added with them refer to.
+     * Only for a codec that has not encoded anything yet.
+     * @param keyNames The keys, by key code
+     * @param values The values of each key, by key code, then value code
+     */
+    synchronized void load(String[] keyNames, Object[][] values)
+    {
+        if (keyCount > 0)
+        {
+            throw new IllegalStateException("Codec is in use already");
+        }
+        String[] loadedKeys = Arrays.copyOf(keyNames, Math.max(keyNames.length, 16));
+        String[] loadedTexts = new String[loadedKeys.length];
+        FieldDictionary[] loadedDictionaries = new FieldDictionary[loadedKeys.length];
+        for (int code = 0; code < keyNames.length; code++)
+        {
+            loadedKeys[code] = keyNames[code].intern();
+            loadedTexts[code] = SearchIndexSingleton.searchableValue(keyNames[code]);
+            loadedDictionaries[code] = new FieldDictionary(values[code]);
+        }
+        keys = loadedKeys;
+        keyTexts = loadedTexts;
+        dictionaries = loadedDictionaries;
+        keyCount = keyNames.length;
+        for (int code = 0; code < keyNames.length; code++)
+        {
+            keyCodes.put(loadedKeys[code], code);
+        }
+    }
+
+    /** @return Number of keys, which have the codes 0 to this (exclusive) */
+    int getKeyCount()
+    {
+        return keyCount;
+    }
+
+    /**
+     * @param key A metadata key
+     * @return Its code, -1 if no document has had it
+     */
+    int getKeyCode(String key)
+    {
+        Integer keyCode = keyCodes.get(key);
+        return keyCode == null ? -1 : keyCode;
+    }
+
+    /**
+     * @param keyCode Code of a key
+     * @return The key
+     */
+    String getKey(int keyCode)
+    {
+        return keys[keyCode];
+    }
+
+    /**
+     * @param keyCode Code of a key
+     * @return Number of values of the key, which have the codes 0 to this
+     * (exclusive)
+     */
+    int getValueCount(int keyCode)
+    {
+        return dictionaries[keyCode].count;
+    }
+
+    /**
+     * @param keyCode Code of a key
+     * @param valueCode Code of one of its values
+     * @return The value
+     */
+    Object getValue(int keyCode, int valueCode)
+    {
+        return dictionaries[keyCode].get(valueCode);
+    }
+
+    /**
+     * @param keyCode Code of a key
+     * @return The key in lower case, as searched (see
+     * SearchIndexSingleton.searchableText)
+     */
+    String getKeyText(int keyCode)
+    {
+        return keyTexts[keyCode];
+    }
+
+    /**
+     * @param keyCode Code of a key
+     * @param valueCode Code of one of its values, as found in a row
+     * @return The value in lower case, as searched
+     */
+    String getText(int keyCode, int valueCode)
+    {
+        return valueCode == NULL_VALUE ? SearchIndexSingleton.searchableValue(null) : dictionaries[keyCode].getText(valueCode);
+    }
+
+    /**
+     * @param keyCode Code of a key
+     * @param term Search term, in lower case
+     * @return False if no value of the key can contain the term, as the
+     * term has a character none of them has
+     */
+    boolean mayContain(int keyCode, String term)
+    {
+        return dictionaries[keyCode].mayContain(term);
+    }
+
+    /**
+     * @param keyCode Code of a key
+     * @return True if the values of the key are stored raw, so every
+     * document has a code of its own
+     */
+    boolean isRaw(int keyCode)
+    {
+        return dictionaries[keyCode].raw;
+    }
+
+    /** @return Number of values of all keys */
+    synchronized int getValueCount()
+    {
+        int count = 0;
+        for (int code = 0; code < keyCount; code++)
+        {
+            count += dictionaries[code].count;
+        }
+        return count;
+    }
+
+    /** @return Number of values no document of the next version uses */
+    synchronized int getUnusedCount()
+    {
+        int unused = 0;
+        for (int code = 0; code < keyCount; code++)
+        {
+            unused += dictionaries[code].unused;
+        }
+        return unused;
+    }
+
+    /** @return Code of a key, added if new */
+    private int keyCode(String key)
+    {
+        Integer code = keyCodes.get(key);
+        if (code == null)
+        {
+            code = keyCount;
+            if (code == keys.length)
+            {
+                dictionaries = Arrays.copyOf(dictionaries, code * 2);
+                keyTexts = Arrays.copyOf(keyTexts, code * 2);
+                keys = Arrays.copyOf(keys, code * 2);
+            }
+            dictionaries[code] = new FieldDictionary();
+            keyTexts[code] = SearchIndexSingleton.searchableValue(key);
+            keys[code] = key.intern();
+            keys = keys; // volatile write, publishes the new entries
+            keyTexts = keyTexts;
+            dictionaries = dictionaries;
+            keyCount = code + 1; // last, as readers go by it
+            keyCodes.put(keys[code], code);
+        }
+        return code;
+    }
+
+    /** The distinct values of one key, or all its values if raw */
+    private static final class FieldDictionary {
+
+        private Map<Object, Integer> codes = new HashMap<>();  // only used by the writer, null if raw, or until needed if loaded
+        private int[] uses = new int[4];                      // only used by the writer, documents by code
+        private int retained = 0;                             // retain calls so far, to decide on raw
+        private int unused = 0;                               // codes with no uses
+        private long lowChars = 0;                            // characters 0 to 63 in the texts of the values, as bits
+        private long highChars = 0;                           // characters 64 to 127
+        private boolean otherChars = false;                   // any other character
+        private volatile boolean raw = false;
+        private volatile Object[] values = new Object[4];     // by code
+        private volatile String[] texts = new String[4];      // by code, lower case, filled when first needed; none if raw
+        private volatile int count = 0;
+
+        FieldDictionary()
+        {
+        }
+
+        /** @param loaded The values, by code */
+        FieldDictionary(Object[] loaded)
+        {
+            codes = null; // most loaded dictionaries are never added to
+            for (Object value : loaded)
+            {
+                addChars(value);
+            }
+            count = loaded.length;
+            unused = loaded.length; // until the documents are retained
+            values = Arrays.copyOf(loaded, Math.max(loaded.length, 4));
+            texts = new String[values.length];
+            uses = new int[values.length];
+        }
+
+        /** @return Code of a value, added if new or raw */
+        int code(Object value)
+        {
+            if (!raw)
+            {
+                if (codes == null)
+                {
+                    codes = new HashMap<>(count * 2);
+                    for (int code = 0; code < count; code++)
+                    {
+                        codes.put(values[code], code);
+                    }
+                }
+                Integer code = codes.get(value);
+                if (code != null)
+                {
+                    return code;
+                }
+            }
+            int code = count;
+            if (code == values.length)
+            {
+                uses = Arrays.copyOf(uses, code * 2);
+                texts = raw ? texts : Arrays.copyOf(texts, code * 2);
+            }
+            addChars(value);
+            Object[] grown = code == values.length ? Arrays.copyOf(values, code * 2) : values;
+            grown[code] = value;
+            values = grown; // volatile write, publishes the new value and its characters
+            count = code + 1;
+            unused++;
+            if (!raw)
+            {
+                codes.put(value, code);
+            }
+            return code;
+        }
+
+        void retain(int code)
+        {
+            if (uses[code]++ == 0)
+            {
+                unused--;
+            }
+            retained++;
+            if (!raw && count >= RAW_CHECK && retained % RAW_CHECK == 0 && count >= retained - retained / 16)
+            {
+                raw = true; // nearly every document brought a value of its own
+                codes = null;
+                texts = new String[0];
+            }
+        }
+
+        void release(int code)
+        {
+            if (--uses[code] == 0)
+            {
+                unused++;
+            }
+        }
+
+        private void addChars(Object value)
+        {
+            String text = SearchIndexSingleton.searchableValue(value);
+            for (int ii = 0; ii < text.length(); ii++)
+            {
+                char c = text.charAt(ii);
+                if (c < 64)
+                {
+                    lowChars |= 1L << c;
+                }
+                else if (c < 128)
+                {
+                    highChars |= 1L << c; // shifts go by the low 6 bits
+                }
+                else
+                {
+                    otherChars = true;
+                }
+            }
+        }
+
+        boolean mayContain(String term)
+        {
+            if (count == 0) // volatile read, so the characters of the values so far are seen
+            {
+                return false;
+            }
+            for (int ii = 0; ii < term.length(); ii++)
+            {
+                char c = term.charAt(ii);
+                if (c < 64 ? (lowChars & 1L << c) == 0 : c < 128 ? (highChars & 1L << c) == 0 : !otherChars)
+                {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        Object get(int code)
+        {
+            return values[code];
+        }
+
+        String getText(int code)
+        {
+            String[] cached = texts;
+            String text = code < cached.length ? cached[code] : null;
+            if (text == null)
+            {
+                text = SearchIndexSingleton.searchableValue(values[code]);
+                if (code < cached.length)
+                {
+                    cached[code] = text; // if two threads get here, both make the same
+                }
+            }
+            return text;
+        }
+    }
+}
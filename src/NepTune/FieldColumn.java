@@ -0,0 +1,578 @@
+/*
+ * Copyright (C) 2016 Toby Scholz 2016
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package NepTune;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.bson.Document;
+import org.bson.json.JsonMode;
+import org.bson.json.JsonWriterSettings;
+
+/**
+ * The values of one metadata key for all documents, dictionary encoded:
+ * every distinct value is held once, and each document only has the
+ * number (code) of its value. Counting or comparing values then works on
+ * an int array rather than on the Document maps, and each value only needs
+ * to be turned into JSON once.
+ * For sorting, the column also keeps the ordinals of its documents in the
+ * order of their values, computed when first needed. Columns whose values
+ * are all numbers or dates (even when stored as text) also get a
+ * TypedColumn for range queries, and sort by value rather than text.
+ *
+ * A column never changes once made. The column of the next version is made
+ * from it and the documents changed in between (next()): the codes are held
+ * in pages as the documents are (see DataSnapshot), and only pages with
+ * changes are copied; new values are added to the dictionary, which the
+ * columns share; and the sort order, typed values and JSON are carried
+ * over by merging in the changes rather than being built again.
+ */
+final class FieldColumn {
+
+    static final int MISSING = -1; // code of documents without the key
+    private static final JsonWriterSettings SETTINGS = new JsonWriterSettings(JsonMode.STRICT);
+
+    private final String key;
+    private final Map<Object, Integer> dictionary; // value -> code, shared with later columns, only used to make them
+    private final Object[] values;   // by code, shared with later columns, which may add after valueCount
+    private final int valueCount;
+    private final int[][] codePages; // code by ordinal, in pages of DataSnapshot.PAGE_SIZE
+    private final int size;          // ordinals covered
+    private volatile String[] jsonMembers = null; // by code, built when first needed
+    private volatile int[] ranks = null;           // position of each code in value order
+    private volatile int[] sortedOrdinals = null;  // documents with a value, in value order
+    private volatile boolean typed = false;        // typedColumn has been looked for
+    private volatile TypedColumn typedColumn = null;
+    private int[] notTyped = null;                 // by type, code of a value in use that is not of it, if typedColumn is null
+
+    /**
+     * @param key The metadata key
+     * @param snapshot The documents
+     */
+    FieldColumn(String key, DataSnapshot snapshot)
+    {
+        this(key, null, snapshot, null);
+    }
+
+    /**
+     * @param key The metadata key
+     * @param previous Column of an earlier version, null to start afresh
+     * @param snapshot The documents
+     * @param changed Ordinals of the documents changed since previous
+     */
+    private FieldColumn(String key, FieldColumn previous, DataSnapshot snapshot, int[] changed)
+    {
+        this.key = key;
+        size = snapshot.getOrdinalCount();
+        int pages = (size + DataSnapshot.PAGE_SIZE - 1) >>> DataSnapshot.PAGE_BITS;
+        dictionary = previous == null ? new HashMap<>() : previous.dictionary;
+        Object[] distinct = previous == null ? new Object[16] : previous.values;
+        int count = previous == null ? 0 : previous.valueCount;
+        codePages = previous == null ? new int[pages][] : Arrays.copyOf(previous.codePages, pages);
+        boolean[] copied = new boolean[pages]; // pages shared with previous are copied on write
+        int changes = previous == null ? size : changed.length;
+        for (int ii = 0; ii < changes; ii++)
+        {
+            int ordinal = previous == null ? ii : changed[ii];
+            int page = ordinal >>> DataSnapshot.PAGE_BITS;
+            if (!copied[page])
+            {
+                if (codePages[page] == null)
+                {
+                    codePages[page] = new int[DataSnapshot.PAGE_SIZE];
+                    Arrays.fill(codePages[page], MISSING);
+                }
+                else
+                {
+                    codePages[page] = codePages[page].clone();
+                }
+                copied[page] = true;
+            }
+            Object value = snapshot.getValue(ordinal, key);
+            int code = MISSING;
+            if (value != null)
+            {
+                Integer known = dictionary.get(value);
+                if (known == null)
+                {
+                    if (count == distinct.length)
+                    {
+                        distinct = Arrays.copyOf(distinct, count * 2);
+                    }
+                    distinct[count] = value; // beyond what earlier columns read
+                    known = count++;
+                    dictionary.put(value, known);
+                }
+                code = known;
+            }
+            codePages[page][ordinal & (DataSnapshot.PAGE_SIZE - 1)] = code;
+        }
+        values = distinct;
+        valueCount = count;
+    }
+
+    /**
+     * Makes the column of a later version, from this one and the documents
+     * changed since, with what this one has built so far (sort order, typed
+     * values, JSON) brought up to date.
+     * @param snapshot The later version
+     * @param changed Ordinals of the documents changed since this column's
+     * version, ascending
+     * @return The column of the later version
+     */
+    FieldColumn next(DataSnapshot snapshot, int[] changed)
+    {
+        FieldColumn column = new FieldColumn(key, this, snapshot, changed);
+        List<Integer> moved = new ArrayList<>(); // documents whose code changed
+        for (int ordinal : changed)
+        {
+            if (getCode(ordinal) != column.getCode(ordinal))
+            {
+                moved.add(ordinal);
+            }
+        }
+        int[] movedOrdinals = moved.stream().mapToInt(Integer::intValue).toArray();
+        String[] members = jsonMembers;
+        if (members != null)
+        {
+            members = Arrays.copyOf(members, column.valueCount);
+            for (int code = valueCount; code < column.valueCount; code++)
+            {
+                members[code] = jsonMember(key, column.values[code]);
+            }
+            column.jsonMembers = members;
+        }
+        if (!typed)
+        {
+            return column; // nothing sorted yet either, as sorting looks for the typed values first
+        }
+        boolean lookAgain = false;
+        if (typedColumn != null)
+        {
+            column.typedColumn = typedColumn.next(column, movedOrdinals);
+            lookAgain = column.typedColumn == null;
+        }
+        else
+        {
+            for (int ordinal : movedOrdinals) // untyped while the values that made it so are still in use
+            {
+                for (int code : notTyped)
+                {
+                    lookAgain |= code == MISSING ? column.getCode(ordinal) != MISSING : code == getCode(ordinal);
+                }
+            }
+            column.notTyped = notTyped;
+        }
+        if (lookAgain)
+        {
+            column.findTypedColumn();
+        }
+        column.typed = true;
+        if ((typedColumn == null) != (column.typedColumn == null))
+        {
+            if (sortedOrdinals != null) // sorted by value rather than text now, or the other way round
+            {
+                column.getSortedOrdinals();
+            }
+            else if (ranks != null)
+            {
+                column.getRanks();
+            }
+            return column;
+        }
+        if (ranks == null)
+        {
+            return column;
+        }
+        column.ranks = column.mergeRanks(ranks, valueCount);
+        if (sortedOrdinals != null)
+        {
+            column.sortedOrdinals = column.mergeSortedOrdinals(sortedOrdinals, movedOrdinals);
+        }
+        return column;
+    }
+
+    /**
+     * Makes the column of a later version from its documents alone, e.g. to
+     * drop values no longer used, and builds what this one has built so far
+     * (sort order, typed values, JSON), so that is not left to a reader.
+     * @param snapshot The later version
+     * @return The column of the later version
+     */
+    FieldColumn afresh(DataSnapshot snapshot)
+    {
+        FieldColumn column = new FieldColumn(key, snapshot);
+        if (jsonMembers != null && column.valueCount > 0)
+        {
+            column.getJsonMember(0);
+        }
+        if (typed)
+        {
+            column.getTypedColumn();
+        }
+        if (sortedOrdinals != null)
+        {
+            column.getSortedOrdinals();
+        }
+        else if (ranks != null)
+        {
+            column.getRanks();
+        }
+        return column;
+    }
+
+    /** @return Number of distinct values */
+    int getValueCount()
+    {
+        return valueCount;
+    }
+
+    /**
+     * @param code Code of a value
+     * @return The value
+     */
+    Object getValue(int code)
+    {
+        return values[code];
+    }
+
+    /** @return Number of documents covered, removed ones included */
+    int getSize()
+    {
+        return size;
+    }
+
+    /**
+     * @return The values as numbers or dates, parsed when first needed; null
+     * if they are not all one or the other
+     */
+    TypedColumn getTypedColumn()
+    {
+        if (!typed)
+        {
+            synchronized (this)
+            {
+                if (!typed)
+                {
+                    findTypedColumn();
+                    typed = true;
+                }
+            }
+        }
+        return typedColumn;
+    }
+
+    private void findTypedColumn()
+    {
+        int[] notOfType = new int[TypedColumn.Type.values().length];
+        typedColumn = TypedColumn.of(this, count(null), notOfType);
+        notTyped = typedColumn == null ? notOfType : null;
+        LOG.DEBUG("Column " + key + (typedColumn == null ? " is not typed" : " typed as " + typedColumn.type));
+    }
+
+    /**
+     * @param code Code of a value
+     * @return The key and value as they appear in the JSON of a document,
+     * e.g. "fileName" : "Help!"
+     */
+    String getJsonMember(int code)
+    {
+        String[] members = jsonMembers;
+        if (members == null)
+        {
+            members = new String[valueCount];
+            for (int ii = 0; ii < valueCount; ii++)
+            {
+                members[ii] = jsonMember(key, values[ii]);
+            }
+            jsonMembers = members; // if two threads get here, both build the same
+        }
+        return members[code];
+    }
+
+    /**
+     * @param key A metadata key
+     * @param value Its value
+     * @return The key and value as they appear in the JSON of a document
+     */
+    static String jsonMember(String key, Object value)
+    {
+        String json = new Document(key, value).toJson(SETTINGS); // { "key" : value }
+        return json.substring(2, json.length() - 2);
+    }
+
+    /**
+     * @param ordinal Document ordinal
+     * @return Code of the document's value, MISSING if it has none or is
+     * not covered
+     */
+    int getCode(int ordinal)
+    {
+        return ordinal < size ? codePages[ordinal >>> DataSnapshot.PAGE_BITS][ordinal & (DataSnapshot.PAGE_SIZE - 1)] : MISSING;
+    }
+
+    /**
+     * Orders documents by their value, and equal values by ordinal, so
+     * descending is the exact reverse of ascending. Documents without a
+     * value come last, in either direction.
+     * For large results this walks the presorted ordinals of the column and
+     * picks those in the result, stopping once it has enough; for small ones
+     * it sorts the result by the rank of its values.
+     * @param ordinals The documents to order, ascending
+     * @param descending Largest value first
+     * @param wanted Number of documents needed, only these are ordered
+     * @return The first wanted documents in order
+     */
+    int[] sort(int[] ordinals, boolean descending, int wanted)
+    {
+        int[] rank = getRanks();
+        int[] sorted = getSortedOrdinals();
+        wanted = Math.min(wanted, ordinals.length);
+        int[] result = new int[wanted];
+        int count = 0;
+        // a walk covers about wanted * (column / result) entries, sorting result * log(result)
+        double walk = (double) wanted * sorted.length / Math.max(1, ordinals.length);
+        if (walk <= ordinals.length * (1 + Math.log(ordinals.length + 1)))
+        {
+            OrdinalBitmap matches = OrdinalBitmap.of(ordinals);
+            for (int ii = 0; ii < sorted.length && count < wanted; ii++)
+            {
+                int ordinal = sorted[descending ? sorted.length - 1 - ii : ii];
+                if (matches.contains(ordinal))
+                {
+                    result[count++] = ordinal;
+                }
+            }
+        }
+        else
+        {
+            Integer[] withValue = Arrays.stream(ordinals).filter(ordinal -> getCode(ordinal) != MISSING).boxed().toArray(Integer[]::new);
+            Comparator<Integer> byValue = Comparator.<Integer>comparingInt(ordinal -> rank[getCode(ordinal)]).thenComparing(Comparator.naturalOrder());
+            Arrays.sort(withValue, descending ? byValue.reversed() : byValue);
+            for (int ii = 0; ii < withValue.length && count < wanted; ii++)
+            {
+                result[count++] = withValue[ii];
+            }
+        }
+        for (int ii = 0; ii < ordinals.length && count < wanted; ii++) // then those without a value
+        {
+            if (getCode(ordinals[ii]) == MISSING)
+            {
+                result[count++] = ordinals[ii];
+            }
+        }
+        return count == wanted ? result : Arrays.copyOf(result, count);
+    }
+
+    /** @return Position of each code when the values are sorted */
+    private int[] getRanks()
+    {
+        int[] rank = ranks;
+        if (rank == null)
+        {
+            Integer[] order = new Integer[valueCount];
+            for (int code = 0; code < order.length; code++)
+            {
+                order[code] = code;
+            }
+            Arrays.sort(order, valueOrder());
+            rank = new int[valueCount];
+            for (int ii = 0; ii < order.length; ii++)
+            {
+                rank[order[ii]] = ii;
+            }
+            ranks = rank; // if two threads get here, both build the same
+        }
+        return rank;
+    }
+
+    /** @return Order of codes by their values */
+    private Comparator<Integer> valueOrder()
+    {
+        TypedColumn typedValues = getTypedColumn();
+        Comparator<Integer> byValue = (a, b) -> compareValues(values[a], values[b]);
+        if (typedValues != null) // e.g. durations stored as text
+        {
+            byValue = Comparator.<Integer>comparingDouble(typedValues::getValue).thenComparing(byValue);
+        }
+        return byValue;
+    }
+
+    /**
+     * @param previous Ranks of the codes of an earlier column, whose values
+     * are the first of this one
+     * @param previousCount Number of values then
+     * @return Ranks of the codes of this column, the values added since
+     * sorted on their own and merged in
+     */
+    private int[] mergeRanks(int[] previous, int previousCount)
+    {
+        int[] order = new int[valueCount];
+        for (int code = 0; code < previousCount; code++)
+        {
+            order[previous[code]] = code;
+        }
+        Comparator<Integer> byValue = valueOrder();
+        Integer[] added = new Integer[valueCount - previousCount];
+        for (int ii = 0; ii < added.length; ii++)
+        {
+            added[ii] = previousCount + ii;
+        }
+        Arrays.sort(added, byValue);
+        int[] rank = new int[valueCount];
+        int from = 0;
+        int next = 0;
+        for (int ii = 0; ii < valueCount; ii++)
+        {
+            int code = next == added.length || (from < previousCount && byValue.compare(order[from], added[next]) <= 0) ? order[from++] : added[next++];
+            rank[code] = ii;
+        }
+        return rank;
+    }
+
+    /** @return Ordinals of the documents with a value, by value, then ordinal */
+    private int[] getSortedOrdinals()
+    {
+        int[] sorted = sortedOrdinals;
+        if (sorted == null)
+        {
+            int[] rank = getRanks();
+            int[] start = new int[valueCount + 1]; // counting sort by rank
+            for (int ordinal = 0; ordinal < size; ordinal++)
+            {
+                int code = getCode(ordinal);
+                if (code != MISSING)
+                {
+                    start[rank[code] + 1]++;
+                }
+            }
+            for (int ii = 1; ii < start.length; ii++)
+            {
+                start[ii] += start[ii - 1];
+            }
+            sorted = new int[start[valueCount]];
+            for (int ordinal = 0; ordinal < size; ordinal++)
+            {
+                int code = getCode(ordinal);
+                if (code != MISSING)
+                {
+                    sorted[start[rank[code]]++] = ordinal;
+                }
+            }
+            sortedOrdinals = sorted;
+        }
+        return sorted;
+    }
+
+    /**
+     * @param previous Sorted ordinals of an earlier column, in the order of
+     * this one's ranks, as the order of earlier values does not change
+     * @param moved Documents whose code changed since
+     * @return Sorted ordinals of this column, without the moved documents'
+     * old places and with their new ones merged in
+     */
+    private int[] mergeSortedOrdinals(int[] previous, int[] moved)
+    {
+        int[] rank = ranks;
+        BitSet isMoved = new BitSet();
+        List<Integer> added = new ArrayList<>();
+        for (int ordinal : moved)
+        {
+            isMoved.set(ordinal);
+            if (getCode(ordinal) != MISSING)
+            {
+                added.add(ordinal);
+            }
+        }
+        Comparator<Integer> byValue = Comparator.<Integer>comparingInt(ordinal -> rank[getCode(ordinal)]).thenComparing(Comparator.naturalOrder());
+        added.sort(byValue);
+        int[] sorted = new int[previous.length + added.size()];
+        int count = 0;
+        int next = 0;
+        for (int ordinal : previous)
+        {
+            if (isMoved.get(ordinal))
+            {
+                continue;
+            }
+            while (next < added.size() && byValue.compare(added.get(next), ordinal) < 0)
+            {
+                sorted[count++] = added.get(next++);
+            }
+            sorted[count++] = ordinal;
+        }
+        while (next < added.size())
+        {
+            sorted[count++] = added.get(next++);
+        }
+        return count == sorted.length ? sorted : Arrays.copyOf(sorted, count);
+    }
+
+    /**
+     * Numbers and dates compare by value, anything else by its text,
+     * ignoring case.
+     */
+    private static int compareValues(Object a, Object b)
+    {
+        if (a instanceof Number && b instanceof Number)
+        {
+            return Double.compare(((Number) a).doubleValue(), ((Number) b).doubleValue());
+        }
+        if (a instanceof Date && b instanceof Date)
+        {
+            return ((Date) a).compareTo((Date) b);
+        }
+        int result = String.CASE_INSENSITIVE_ORDER.compare(a.toString(), b.toString());
+        return result != 0 ? result : a.toString().compareTo(b.toString());
+    }
+
+    /**
+     * Counts the documents per value.
+     * @param ordinals The documents to count, null for all
+     * @return Number of documents by code
+     */
+    int[] count(int[] ordinals)
+    {
+        int[] counts = new int[valueCount];
+        if (ordinals == null)
+        {
+            for (int ordinal = 0; ordinal < size; ordinal++)
+            {
+                int code = getCode(ordinal);
+                if (code != MISSING)
+                {
+                    counts[code]++;
+                }
+            }
+            return counts;
+        }
+        for (int ordinal : ordinals)
+        {
+            int code = getCode(ordinal);
+            if (code != MISSING)
+            {
+                counts[code]++;
+            }
+        }
+        return counts;
+    }
+}
@@ -0,0 +1,313 @@
+/*
+ * Copyright (C) 2016 Toby Scholz 2016
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package NepTune;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
+
+/**
+ * Index of the values of a single metadata key (e.g. xmpDM:artist),
+ * mapping every distinct (lower case) value to the documents having it.
+ * Values repeat a lot (artists, albums, content types), so a scoped search
+ * only has to look at a small dictionary rather than every document.
+ * Some keys have a different value for nearly every document (fileName,
+ * title), so texts of three or more characters are not looked for in every
+ * value, but only in those containing the text's rarest trigram (see
+ * ValueTrigrams). That index is only built for keys actually searched.
+ * Not thread safe, SearchIndexSingleton takes care of locking: several
+ * threads may find at once, but only one adds or removes.
+ */
+class FieldIndex {
+
+    private final Map<String, PostingList> values = new HashMap<>();
+    private int documents = 0; // with a value, for query planning
+    private volatile ValueTrigrams valueTrigrams = null; // built by the first find that needs it
+
+    void add(String value, int ordinal)
+    {
+        PostingList postings = values.get(value);
+        if (postings == null)
+        {
+            postings = new PostingList();
+            values.put(value, postings);
+            if (valueTrigrams != null)
+            {
+                valueTrigrams.add(value);
+            }
+        }
+        int before = postings.size();
+        postings.add(ordinal);
+        documents += postings.size() - before;
+    }
+
+    void remove(String value, int ordinal)
+    {
+        PostingList postings = values.get(value);
+        if (postings != null)
+        {
+            int before = postings.size();
+            postings.remove(ordinal);
+            documents -= before - postings.size();
+            if (postings.isEmpty())
+            {
+                values.remove(value);
+                if (valueTrigrams != null && !valueTrigrams.remove(value))
+                {
+                    valueTrigrams = null; // mostly removed values, build it afresh when next needed
+                }
+            }
+        }
+    }
+
+    /**
+     * Adds the documents with a value containing the text to the matches.
+     * @param text Lower case text to find
+     * @param matches Ordinals of matching documents
+     */
+    void find(String text, BitSet matches)
+    {
+        if (text.length() >= 3)
+        {
+            getValueTrigrams().find(text, value -> add(values.get(value), matches));
+            return;
+        }
+        for (Map.Entry<String, PostingList> entry : values.entrySet())
+        {
+            if (entry.getKey().contains(text))
+            {
+                add(entry.getValue(), matches);
+            }
+        }
+    }
+
+    private static void add(PostingList postings, BitSet matches)
+    {
+        for (int ii = 0; ii < postings.size(); ii++)
+        {
+            matches.set(postings.get(ii));
+        }
+    }
+
+    /**
+     * @param text Lower case text to find
+     * @return Number of values find looks at for the text, for query planning
+     */
+    int getLookupCost(String text)
+    {
+        return text.length() >= 3 ? getValueTrigrams().getCandidateCount(text) : values.size();
+    }
+
+    private ValueTrigrams getValueTrigrams()
+    {
+        ValueTrigrams index = valueTrigrams;
+        if (index == null)
+        {
+            synchronized (this) // finding threads may get here together
+            {
+                index = valueTrigrams;
+                if (index == null)
+                {
+                    index = new ValueTrigrams();
+                    for (String value : values.keySet())
+                    {
+                        index.add(value);
+                    }
+                    valueTrigrams = index;
+                }
+            }
+        }
+        return index;
+    }
+
+    boolean isEmpty()
+    {
+        return values.isEmpty();
+    }
+
+    /** @return Number of documents with a value */
+    int getDocumentCount()
+    {
+        return documents;
+    }
+
+    /** @return Number of distinct values */
+    int getValueCount()
+    {
+        return values.size();
+    }
+
+    /**
+     * Writes the index to a snapshot file (see SnapshotFile).
+     * @param out The file
+     * @param newOrdinals The ordinal each ordinal has in the file, -1 for
+     * documents left out
+     * @throws IOException
+     */
+    void write(DataOutputStream out, int[] newOrdinals) throws IOException
+    {
+        PostingList.writeIndex(out, values, newOrdinals);
+    }
+
+    /**
+     * @param in A snapshot file
+     * @return The index as written by write()
+     * @throws IOException
+     */
+    static FieldIndex read(SnapshotFile.Input in) throws IOException
+    {
+        FieldIndex field = new FieldIndex();
+        PostingList.readIndex(in, field.values);
+        for (PostingList postings : field.values.values())
+        {
+            field.documents += postings.size(); // one value per document
+        }
+        return field;
+    }
+
+    /**
+     * @param value Metadata value of a document
+     * @return The value as it is indexed and searched
+     */
+    static String normalize(Object value)
+    {
+        return String.valueOf(value).toLowerCase();
+    }
+
+    /**
+     * The values of three or more characters, numbered in the order they
+     * were added, with the numbers of the values containing each trigram.
+     */
+    private static final class ValueTrigrams {
+
+        private String[] byNumber = new String[16]; // null once removed
+        private int count = 0;
+        private int removed = 0;
+        private final Map<Long, PostingList> trigrams = new HashMap<>();
+
+        void add(String value)
+        {
+            if (value.length() < 3)
+            {
+                return; // cannot contain a text that is looked up here
+            }
+            if (count == byNumber.length)
+            {
+                byNumber = Arrays.copyOf(byNumber, count * 2);
+            }
+            byNumber[count] = value;
+            for (Long trigram : SearchIndexSingleton.trigrams(value))
+            {
+                PostingList numbers = trigrams.get(trigram);
+                if (numbers == null)
+                {
+                    numbers = new PostingList();
+                    trigrams.put(trigram, numbers);
+                }
+                numbers.add(count);
+            }
+            count++;
+        }
+
+        /**
+         * @return False if most values have been removed, so building the
+         * index afresh would save memory
+         */
+        boolean remove(String value)
+        {
+            Set<Long> valueTrigrams = SearchIndexSingleton.trigrams(value);
+            if (valueTrigrams.isEmpty())
+            {
+                return true;
+            }
+            PostingList first = trigrams.get(valueTrigrams.iterator().next());
+            int number = -1;
+            for (int ii = 0; first != null && ii < first.size() && number < 0; ii++)
+            {
+                number = value.equals(byNumber[first.get(ii)]) ? first.get(ii) : -1;
+            }
+            if (number < 0)
+            {
+                return true;
+            }
+            for (Long trigram : valueTrigrams)
+            {
+                PostingList numbers = trigrams.get(trigram);
+                numbers.remove(number);
+                if (numbers.isEmpty())
+                {
+                    trigrams.remove(trigram);
+                }
+            }
+            byNumber[number] = null;
+            removed++;
+            return removed < 1024 || removed < count / 2;
+        }
+
+        /**
+         * Passes on each value containing the text, which has three or more
+         * characters.
+         */
+        void find(String text, Consumer<String> found)
+        {
+            PostingList shortest = shortest(text);
+            for (int ii = 0; shortest != null && ii < shortest.size(); ii++)
+            {
+                String value = byNumber[shortest.get(ii)];
+                if (value.contains(text))
+                {
+                    found.accept(value);
+                }
+            }
+        }
+
+        /** @return Number of values find looks at for the text */
+        int getCandidateCount(String text)
+        {
+            PostingList shortest = shortest(text);
+            return shortest == null ? 0 : shortest.size();
+        }
+
+        /**
+         * @return The numbers of the values containing the rarest trigram
+         * of the text, null if a trigram is in no value, so neither is the
+         * text
+         */
+        private PostingList shortest(String text)
+        {
+            PostingList shortest = null;
+            for (Long trigram : SearchIndexSingleton.trigrams(text))
+            {
+                PostingList numbers = trigrams.get(trigram);
+                if (numbers == null)
+                {
+                    return null;
+                }
+                if (shortest == null || numbers.size() < shortest.size())
+                {
+                    shortest = numbers;
+                }
+            }
+            return shortest;
+        }
+    }
+}
@@ -0,0 +1,175 @@
+/*
+ * Copyright (C) 2016 Toby Scholz 2016
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package NepTune;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import org.bson.json.JsonMode;
+import org.bson.json.JsonWriterSettings;
+
+/**
+ * Least recently used cache of the JSON of documents, as UTF-8 bytes ready
+ * to be written to a client, so a document found by many searches is only
+ * serialized once.
+ * Every entry remembers the encoded document (see DataSnapshot.getRow) it
+ * was serialized from, and is only returned for that same one, so a
+ * document changed by Maintenance is never sent out of date. Maintenance
+ * also removes the entries of documents it removes, so they do not take up
+ * space until evicted.
+ * The size is set with 'jsonCacheSize' in the config file, in megabytes of
+ * JSON (default 64, 0 disables the cache).
+ */
+public class JsonCacheSingleton {
+
+    private static final int DEFAULT_SIZE = 64;
+    private static final int ENTRY_OVERHEAD = 96; // bytes per entry besides the JSON, roughly
+    private static final JsonWriterSettings SETTINGS = new JsonWriterSettings(JsonMode.STRICT); // must be strict
+    private static JsonCacheSingleton instance = null;
+
+    private final long maxBytes;
+    private final Map<Integer, CachedJson> entries = new LinkedHashMap<>(16, 0.75f, true); // access order, eldest is least recently used
+    private long bytes = 0;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    DataStoreSingleton ds = DataStoreSingleton.getInstance();
+
+    public static synchronized JsonCacheSingleton getInstance()
+    {
+        if(instance==null)
+        {
+            instance = new JsonCacheSingleton();
+        }
+        return instance;
+    }
+
+    JsonCacheSingleton()
+    {
+        int size = DEFAULT_SIZE;
+        String property = ConfigReaderSingleton.getInstance().getProperty("jsonCacheSize");
+        if (property != null && !property.isEmpty())
+        {
+            try
+            {
+                size = Integer.parseInt(property.trim());
+            }
+            catch(NumberFormatException e)
+            {
+                LOG.WARNING("Invalid jsonCacheSize " + property + ", using " + DEFAULT_SIZE);
+            }
+        }
+        maxBytes = (long) size << 20;
+    }
+
+    /**
+     * @param snapshot The version of the data store to read the document of
+     * @param ordinal Ordinal of the document
+     * @return The document as strict JSON in UTF-8, cached or newly
+     * serialized, or null if there is no such document in the version. The
+     * bytes are shared and must not be changed.
+     */
+    byte[] get(DataSnapshot snapshot, int ordinal)
+    {
+        int[] row = snapshot.getRow(ordinal);
+        if (row == null)
+        {
+            return null;
+        }
+        synchronized (this)
+        {
+            CachedJson entry = entries.get(ordinal);
+            if (entry != null && entry.row == row)
+            {
+                hits.incrementAndGet();
+                return entry.json;
+            }
+        }
+        misses.incrementAndGet();
+        byte[] json = snapshot.getDocument(ordinal).toJson(SETTINGS).getBytes(StandardCharsets.UTF_8); // outside the lock
+        put(ordinal, new CachedJson(row, json));
+        return json;
+    }
+
+    /**
+     * Removes the cached JSON of a document, e.g. when it is removed from
+     * the data store. Must be called before the data store forgets the id.
+     * @param id The object id of the document
+     */
+    synchronized void removeDocument(String id)
+    {
+        CachedJson entry = entries.remove(ds.getOrdinal(id));
+        if (entry != null)
+        {
+            bytes -= entry.size();
+        }
+    }
+
+    private synchronized void put(int ordinal, CachedJson entry)
+    {
+        if (entry.size() > maxBytes)
+        {
+            return; // also if disabled
+        }
+        CachedJson replaced = entries.put(ordinal, entry);
+        bytes += entry.size() - (replaced == null ? 0 : replaced.size());
+        Iterator<CachedJson> eldest = entries.values().iterator();
+        while (bytes > maxBytes)
+        {
+            bytes -= eldest.next().size();
+            eldest.remove();
+        }
+    }
+
+    public long getHits()
+    {
+        return hits.get();
+    }
+
+    public long getMisses()
+    {
+        return misses.get();
+    }
+
+    public synchronized int getSize()
+    {
+        return entries.size();
+    }
+
+    /** @return Bytes taken by the cache, roughly */
+    public synchronized long getBytes()
+    {
+        return bytes;
+    }
+
+    private static class CachedJson {
+        final int[] row;
+        final byte[] json;
+
+        CachedJson(int[] row, byte[] json)
+        {
+            this.row = row;
+            this.json = json;
+        }
+
+        long size()
+        {
+            return json.length + ENTRY_OVERHEAD;
+        }
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright (C) 2016 Toby Scholz 2016
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package NepTune;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Accepts the strings within a number of edits (insertions, deletions,
+ * substitutions and transpositions of adjacent characters) of a term.
+ *
+ * The automaton is run over a sorted dictionary, one character at a time,
+ * so strings sharing a prefix share the work for it. Its state after a
+ * prefix is a row of edit distances, one per prefix of the term. Once no
+ * entry of the row is within the maximum, no string starting with that
+ * prefix can match, and the whole range of them is skipped with a binary
+ * search, so most of the dictionary is never looked at.
+ */
+final class LevenshteinAutomaton {
+
+    private final String term;
+    private final int maxEdits;
+
+    /**
+     * @param term The term, in lower case
+     * @param maxEdits Maximum number of edits
+     */
+    LevenshteinAutomaton(String term, int maxEdits)
+    {
+        this.term = term;
+        this.maxEdits = maxEdits;
+    }
+
+    /**
+     * @param sortedDictionary Distinct strings in ascending order
+     * @return The strings of the dictionary the automaton accepts, in order
+     */
+    List<String> intersect(String[] sortedDictionary)
+    {
+        List<String> result = new ArrayList<>();
+        int[][] rows = new int[16][];
+        rows[0] = new int[term.length() + 1];
+        for (int jj = 0; jj <= term.length(); jj++)
+        {
+            rows[0][jj] = Math.min(jj, maxEdits + 1);
+        }
+        String previous = "";
+        int valid = 0; // rows[0..valid] belong to prefixes of previous
+        int ii = 0;
+        while (ii < sortedDictionary.length)
+        {
+            String word = sortedDictionary[ii];
+            int depth = 0;
+            int common = Math.min(valid, word.length());
+            while (depth < common && previous.charAt(depth) == word.charAt(depth))
+            {
+                depth++;
+            }
+            boolean dead = false;
+            while (depth < word.length())
+            {
+                if (depth + 1 >= rows.length)
+                {
+                    rows = Arrays.copyOf(rows, rows.length * 2);
+                }
+                rows[depth + 1] = step(depth == 0 ? null : rows[depth - 1], rows[depth], depth == 0 ? 0 : word.charAt(depth - 1), word.charAt(depth), rows[depth + 1]);
+                depth++;
+                if (!canMatch(rows[depth]))
+                {
+                    dead = true;
+                    break;
+                }
+            }
+            previous = word;
+            valid = depth;
+            if (dead) // skip every word starting with this prefix
+            {
+                int next = Arrays.binarySearch(sortedDictionary, ii + 1, sortedDictionary.length, word.substring(0, depth) + Character.MAX_VALUE);
+                ii = next >= 0 ? next : -(next + 1);
+                continue;
+            }
+            if (rows[depth][term.length()] <= maxEdits)
+            {
+                result.add(word);
+            }
+            ii++;
+        }
+        return result;
+    }
+
+    /**
+     * Computes the row after the next character of the candidate.
+     * @param before Row before the previous character, null at the start
+     * @param row Row after the previous character
+     * @param previous The previous character, for transpositions
+     * @param c The next character
+     * @param reuse Array to write to, may be null
+     * @return The new row; distances above the maximum are capped
+     */
+    private int[] step(int[] before, int[] row, char previous, char c, int[] reuse)
+    {
+        int[] next = reuse != null && reuse != row && reuse != before ? reuse : new int[row.length];
+        next[0] = Math.min(row[0] + 1, maxEdits + 1);
+        for (int jj = 1; jj < row.length; jj++)
+        {
+            int cost = term.charAt(jj - 1) == c ? 0 : 1;
+            int distance = Math.min(Math.min(row[jj] + 1, next[jj - 1] + 1), row[jj - 1] + cost);
+            if (before != null && jj > 1 && term.charAt(jj - 1) == previous && term.charAt(jj - 2) == c)
+            {
+                distance = Math.min(distance, before[jj - 2] + 1);
+            }
+            next[jj] = Math.min(distance, maxEdits + 1);
+        }
+        return next;
+    }
+
+    /** @return True if some continuation of the prefix may still match */
+    private boolean canMatch(int[] row)
+    {
+        for (int distance : row)
+        {
+            if (distance <= maxEdits)
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+}
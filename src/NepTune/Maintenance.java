@@ -35,6 +35,8 @@ import static NepTune.DataParser.properties;
  */
 public class Maintenance implements Runnable {
     
+    private static final int PUBLISH_BATCH = 100; // files added per version published
+    
     /**
      * The possible cases:
      * 1) File is deleted from SMB, still exists in datastore
@@ -49,6 +51,8 @@ public class Maintenance implements Runnable {
             properties.getProperty("sambaPath"));
     
     DataStoreSingleton ds = DataStoreSingleton.getInstance();
+    StandingQueriesSingleton standingQueries = StandingQueriesSingleton.getInstance();
+    JsonCacheSingleton jsonCache = JsonCacheSingleton.getInstance();
     MongoConnectorSingleton mongo = MongoConnectorSingleton.getInstance();
     
     /**
@@ -88,9 +92,12 @@ public class Maintenance implements Runnable {
     {
         for( String entry : docs)
         {
+            standingQueries.documentRemoved(entry); // these need the document, so must go first
+            jsonCache.removeDocument(entry);
             ds.removeItem(entry);
             LOG.INFO("Maintenance removed id " + entry + " from document store");
         }
+        ds.publish(); // readers see all removals at once, in the index too
     }
     
     /**
@@ -99,62 +106,96 @@ public class Maintenance implements Runnable {
      * and live data store.
      * If an existing item was modified, remove it from the database and the 
      * live datastore, and re-introduce as a new item.
+     * Changes are published for every PUBLISH_BATCH files added, and at the
+     * end of the pass, each batch as one new version together with its
+     * index updates (see DataStoreSingleton.publish).
      * @throws NoSuchAlgorithmException
      * @throws SmbException 
      */
     void addEntryIfWasAddedToSambaOrIfExistingEntryMatchesFile() throws NoSuchAlgorithmException, SmbException 
     {
         Map<String,Document> existingEntries = ds.getMap();
-        for (String ii : samba.populatePathSet() )
+        List<String> added = new ArrayList<>();
+        try
         {
-            boolean found = false;
-            String entryToRemove = null;
-            String path = null;
-            String file = null;
-            String type = null;
-            for ( Map.Entry<String, Document> entry : existingEntries.entrySet() )
+            for (String ii : samba.populatePathSet() )
             {
-                path = (String) entry.getValue().get("filePath");
-                file = (String) entry.getValue().get("fileName");
-                type = (String) entry.getValue().get("fileType");
-                String filePath = path + file + "." + type;
-                if (ii.equals(filePath)) // we found the file in the db also in the datastore. Has it been modified?
+                boolean found = false;
+                String entryToRemove = null;
+                String path = null;
+                String file = null;
+                String type = null;
+                for ( Map.Entry<String, Document> entry : existingEntries.entrySet() )
                 {
-                    try 
+                    path = (String) entry.getValue().get("filePath");
+                    file = (String) entry.getValue().get("fileName");
+                    type = (String) entry.getValue().get("fileType");
+                    String filePath = path + file + "." + type;
+                    if (ii.equals(filePath)) // we found the file in the db also in the datastore. Has it been modified?
                     {
-                        found = compareFiles(entry.getValue().get("hash").toString(), ii); // if found is false, it has been modified.
+                        try 
+                        {
+                            found = compareFiles(entry.getValue().get("hash").toString(), ii); // if found is false, it has been modified.
+                        }
+                        catch (Exception e)
+                        {
+                            LOG.ERROR("Exception comparing file " + e.toString());
+                            found = false;
+                        }
+                        entryToRemove = entry.getKey();
+                        break;
                     }
-                    catch (Exception e)
-                    {
-                        LOG.ERROR("Exception comparing file " + e.toString());
-                        found = false;
-                    }
-                    entryToRemove = entry.getKey();
-                    break;
                 }
-            }
-            if (!found)
-                /* Because mongodb creates the unique id of an entry, it is
-                necessary to commit the new entry to db first, and then query the 
-                db to get the object id in order to add it to the live data store.
-                */
-            {
-                if (entryToRemove != null)
-                // entry already exists, but has been modified.    
+                if (!found)
+                    /* Because mongodb creates the unique id of an entry, it is
+                    necessary to commit the new entry to db first, and then query the 
+                    db to get the object id in order to add it to the live data store.
+                    */
                 {
-                    ds.removeItem(entryToRemove); // remove from live data store
-                    mongo.removeEntry("files", file, path, type); // remove from db
+                    if (entryToRemove != null)
+                    // entry already exists, but has been modified.    
+                    {
+                        standingQueries.documentRemoved(entryToRemove); // tell subscribers
+                        jsonCache.removeDocument(entryToRemove);
+                        ds.removeItem(entryToRemove); // remove from live data store, and search index once published
+                        mongo.removeEntry("files", file, path, type); // remove from db
+                    }
+                    DataParser dp = new DataParser();
+                    Map<String, String> fileDetails = dp.splitPath(ii);
+                    Document doc = dp.parseSingleDoc(ii); // parse the new document
+                    mongo.addRecord(doc); // add it to db
+                    doc = mongo.getDocument("files", fileDetails.get("name"), fileDetails.get("path"), fileDetails.get("type")); // retrieve it from db
+                    String id = doc.get("_id").toString(); 
+                    ds.addItem(id, doc); // add it tolive data store
+                    added.add(id);
+                    LOG.INFO("Maintenance added document " + doc.toString());
+                    if (added.size() >= PUBLISH_BATCH)
+                    {
+                        publish(added);
+                    }
                 }
-                DataParser dp = new DataParser();
-                Map<String, String> fileDetails = dp.splitPath(ii);
-                Document doc = dp.parseSingleDoc(ii); // parse the new document
-                mongo.addRecord(doc); // add it to db
-                doc = mongo.getDocument("files", fileDetails.get("name"), fileDetails.get("path"), fileDetails.get("type")); // retrieve it from db
-                String id = doc.get("_id").toString(); 
-                ds.addItem(id, doc); // add it tolive data store
-                LOG.INFO("Maintenance added document " + doc.toString());
             }
         }
+        finally
+        {
+            publish(added);
+        }
+    }
+    
+    /**
+     * Publishes the changes made so far, which makes them searchable, and
+     * tells subscribers about the documents added.
+     * @param added Object ids of the documents added since the last call,
+     * cleared
+     */
+    private void publish(List<String> added)
+    {
+        ds.publish(); // together with the removals of old versions
+        for (String id : added)
+        {
+            standingQueries.documentAdded(id); // tell subscribers
+        }
+        added.clear();
     }
     
     /**
@@ -212,6 +253,7 @@ public class Maintenance implements Runnable {
      */
     @Override
     public void run() {
+        SnapshotFile.save(); // the data as read at startup, if not from the snapshot file, for the next start
         while(true)
         {
             LOG.INFO("Starting Maintenance");
@@ -225,6 +267,7 @@ public class Maintenance implements Runnable {
                 LOG.ERROR("Error during file maintenance");
             }
             checkIfDBEntryNoLongerExistsOnSamba(); // Must come after addEntry... 
+            SnapshotFile.save(); // if anything changed, for a quick restart
             clearTempDirectory((14400)*1000); // older than four hours
             LOG.INFO("Maintenance completed");
             try 
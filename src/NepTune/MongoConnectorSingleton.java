@@ -28,6 +28,7 @@ import org.bson.Document;
 import com.mongodb.client.FindIterable;
 import static com.mongodb.client.model.Filters.and;
 import static com.mongodb.client.model.Filters.eq;
+import static com.mongodb.client.model.Filters.in;
 
 /**
  * Instantiates a connection to the MongoDB database used to 
@@ -98,6 +99,28 @@ public class MongoConnectorSingleton {
         return db.getCollection(collectionName).find();
     }
     
+    /**
+     * Fetches the ids of all documents in the collection, without the rest
+     * of the documents.
+     * @param collectionName Collection to query
+     * @return Documents with just the _id
+     */
+    public FindIterable<Document> readIds(String collectionName)
+    {
+        return db.getCollection(collectionName).find().projection(new Document("_id", 1));
+    }
+    
+    /**
+     * Fetches the documents with the given ids.
+     * @param collectionName Collection to query
+     * @param ids The _id values
+     * @return The documents
+     */
+    public FindIterable<Document> readDocuments(String collectionName, List<Object> ids)
+    {
+        return db.getCollection(collectionName).find(in("_id", ids));
+    }
+    
     public Document getDocument(String collectionName, String fileName, String filePath, String fileType)
     {
         FindIterable docs = 
@@ -0,0 +1,258 @@
+/*
+ * Copyright (C) 2016 Toby Scholz 2016
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package NepTune;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Finds out whether a text contains any of a number of search terms in a
+ * single pass over the text, however many terms there are (Aho-Corasick).
+ *
+ * The terms are put into a trie, and every state gets a failure link to the
+ * state of the longest proper suffix of its string that is also in the trie.
+ * For ASCII characters, which is most of the text in practice, the resulting
+ * transitions are precomputed into a table, so matching costs one array
+ * lookup per character. Other characters follow the failure links.
+ *
+ * Matching the automaton is a chain of dependent lookups, whereas
+ * String.contains is vectorized by the JVM, so for a few terms checking
+ * each term in turn is faster. MultiPatternBenchmark (in the test sources)
+ * puts the break-even point at about 13 terms, so the automaton is only used
+ * from there on.
+ *
+ * The text and terms must already be in lower case (see SearchCorpus); the
+ * matcher is immutable and can be shared by the threads of a scan.
+ */
+final class MultiPatternMatcher {
+
+    private static final int ASCII = 128;
+    static final int AUTOMATON_THRESHOLD = 13; // terms, see MultiPatternBenchmark
+
+    private final String[] terms;     // checked in turn if there are few
+    private final boolean automaton;
+
+    private final int[] table;        // next state by state * ASCII + char, negated if it matches
+    private final char[][] labels;    // non-ASCII transitions by state, sorted
+    private final int[][] targets;
+    private final int[] failure;
+    private final boolean[] matches;  // a term ends here, or at a state on the failure chain
+    private final boolean matchesEverything; // an empty term
+
+    /**
+     * @param lowerTerms The search terms, in lower case
+     */
+    MultiPatternMatcher(List<String> lowerTerms)
+    {
+        this(lowerTerms, lowerTerms.size() >= AUTOMATON_THRESHOLD);
+    }
+
+    /**
+     * @param lowerTerms The search terms, in lower case
+     * @param automaton Use the automaton, however few terms there are
+     */
+    MultiPatternMatcher(List<String> lowerTerms, boolean automaton)
+    {
+        this.terms = lowerTerms.toArray(new String[0]);
+        this.automaton = automaton;
+        // The trie, with growing per-state transition lists
+        List<StringBuilder> stateLabels = new ArrayList<>();
+        List<List<Integer>> stateTargets = new ArrayList<>();
+        List<Boolean> ends = new ArrayList<>();
+        stateLabels.add(new StringBuilder());
+        stateTargets.add(new ArrayList<>());
+        ends.add(false);
+        boolean empty = false;
+        for (String term : lowerTerms)
+        {
+            empty |= term.isEmpty();
+            int state = 0;
+            for (int ii = 0; ii < term.length(); ii++)
+            {
+                int pos = stateLabels.get(state).indexOf(String.valueOf(term.charAt(ii)));
+                if (pos >= 0)
+                {
+                    state = stateTargets.get(state).get(pos);
+                    continue;
+                }
+                stateLabels.get(state).append(term.charAt(ii));
+                stateTargets.get(state).add(stateLabels.size());
+                state = stateLabels.size();
+                stateLabels.add(new StringBuilder());
+                stateTargets.add(new ArrayList<>());
+                ends.add(false);
+            }
+            ends.set(state, true);
+        }
+        matchesEverything = empty;
+
+        int count = stateLabels.size();
+        labels = new char[count][];
+        targets = new int[count][];
+        matches = new boolean[count];
+        for (int state = 0; state < count; state++)
+        {
+            sortTransitions(state, stateLabels.get(state), stateTargets.get(state));
+            matches[state] = ends.get(state);
+        }
+
+        // Failure links and the ASCII table, breadth first so shorter strings come first
+        failure = new int[count];
+        table = new int[count * ASCII];
+        ArrayDeque<Integer> queue = new ArrayDeque<>();
+        for (int c = 0; c < ASCII; c++)
+        {
+            int next = goTo(0, (char) c);
+            table[c] = next < 0 ? 0 : next;
+            if (next > 0)
+            {
+                queue.add(next);
+            }
+        }
+        for (int ii = 0; ii < labels[0].length; ii++)
+        {
+            if (labels[0][ii] >= ASCII)
+            {
+                queue.add(targets[0][ii]);
+            }
+        }
+        while (!queue.isEmpty())
+        {
+            int state = queue.poll();
+            matches[state] |= matches[failure[state]];
+            for (int c = 0; c < ASCII; c++)
+            {
+                int next = goTo(state, (char) c);
+                if (next < 0)
+                {
+                    table[state * ASCII + c] = table[failure[state] * ASCII + c];
+                }
+                else
+                {
+                    table[state * ASCII + c] = next;
+                    failure[next] = table[failure[state] * ASCII + c];
+                    queue.add(next);
+                }
+            }
+            for (int ii = 0; ii < labels[state].length; ii++)
+            {
+                char c = labels[state][ii];
+                if (c >= ASCII)
+                {
+                    failure[targets[state][ii]] = step(failure[state], c);
+                    queue.add(targets[state][ii]);
+                }
+            }
+        }
+        for (int ii = 0; ii < table.length; ii++) // so matching needs a single lookup per character
+        {
+            if (matches[table[ii]])
+            {
+                table[ii] = -table[ii];
+            }
+        }
+    }
+
+    /**
+     * @param text Text in lower case
+     * @return True if the text contains any of the terms
+     */
+    boolean matchesAny(String text)
+    {
+        if (matchesEverything)
+        {
+            return true;
+        }
+        if (!automaton)
+        {
+            for (String term : terms)
+            {
+                if (text.contains(term))
+                {
+                    return true;
+                }
+            }
+            return false;
+        }
+        int state = 0;
+        for (int ii = 0; ii < text.length(); ii++)
+        {
+            char c = text.charAt(ii);
+            if (c < ASCII)
+            {
+                state = table[state * ASCII + c];
+                if (state < 0)
+                {
+                    return true;
+                }
+            }
+            else
+            {
+                state = step(state, c);
+                if (matches[state])
+                {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /** Transition for a non-ASCII character, following failure links */
+    private int step(int state, char c)
+    {
+        while (true)
+        {
+            int next = goTo(state, c);
+            if (next >= 0)
+            {
+                return next;
+            }
+            if (state == 0)
+            {
+                return 0;
+            }
+            state = failure[state];
+        }
+    }
+
+    /** @return The trie child of the state for the character, -1 if none */
+    private int goTo(int state, char c)
+    {
+        int pos = Arrays.binarySearch(labels[state], c);
+        return pos < 0 ? -1 : targets[state][pos];
+    }
+
+    private void sortTransitions(int state, StringBuilder stateLabels, List<Integer> stateTargets)
+    {
+        Integer[] order = new Integer[stateLabels.length()];
+        for (int ii = 0; ii < order.length; ii++)
+        {
+            order[ii] = ii;
+        }
+        Arrays.sort(order, (a, b) -> Character.compare(stateLabels.charAt(a), stateLabels.charAt(b)));
+        labels[state] = new char[order.length];
+        targets[state] = new int[order.length];
+        for (int ii = 0; ii < order.length; ii++)
+        {
+            labels[state][ii] = stateLabels.charAt(order[ii]);
+            targets[state][ii] = stateTargets.get(order[ii]);
+        }
+    }
+}
@@ -96,6 +96,11 @@ public class NepTune {
             else if ( args[0] != null && args[0].equals("--daemon"))
             {
                 dp.readDb();
+                if (!SearchIndexSingleton.getInstance().isBuilt()) // unless read from the snapshot file
+                {
+                    SearchIndexSingleton.getInstance().build();
+                }
+                SuggestIndexSingleton.getInstance().build();
                 Thread maint = new Thread(new Maintenance());
                 maint.setPriority(Thread.MIN_PRIORITY);
                 maint.start();
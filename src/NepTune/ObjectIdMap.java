@@ -0,0 +1,240 @@
+/*
+ * Copyright (C) 2016 Toby Scholz 2016
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package NepTune;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Map from document id to ordinal, for the DataStoreSingleton.
+ * The ids are MongoDB ObjectIds as 24 hex digits, i.e. 12 bytes, which are
+ * held as a long and an int in an open addressing table rather than as
+ * String keys of a hash map, which takes about a quarter of the memory.
+ * An id is looked up by parsing its hex digits straight from the String (or
+ * any other CharSequence), so lookups allocate nothing.
+ * Ids that are not ObjectIds (never the case for documents from the
+ * database) are kept in a plain map instead.
+ *
+ * There is a single writer (the one of the DataStoreSingleton), and any
+ * number of readers, which do not lock. Entries are never removed, an id
+ * that is added again gets its new ordinal.
+ */
+final class ObjectIdMap {
+
+    private static final int LENGTH = 24; // hex digits of an ObjectId
+    private static final int EMPTY = -1;  // value of free slots
+    private static final byte[] HEX_DIGITS = new byte[128]; // value by ASCII char, -1 if not a hex digit
+
+    static
+    {
+        for (int c = 0; c < HEX_DIGITS.length; c++)
+        {
+            HEX_DIGITS[c] = (byte) Character.digit(c, 16);
+        }
+    }
+
+    private volatile Table table = new Table(16);
+    private final Map<String, Integer> others = new ConcurrentHashMap<>(); // ids that are not ObjectIds
+
+    /**
+     * @param id A document id
+     * @return Its ordinal, or -1 if not held
+     */
+    int get(CharSequence id)
+    {
+        if (id.length() == LENGTH)
+        {
+            int digits = 0; // negative once there is a char that is no hex digit
+            long high = 0;
+            for (int ii = 0; ii < 16; ii++)
+            {
+                int digit = hexDigit(id.charAt(ii));
+                digits |= digit;
+                high = (high << 4) | digit;
+            }
+            int low = 0;
+            for (int ii = 16; ii < LENGTH; ii++)
+            {
+                int digit = hexDigit(id.charAt(ii));
+                digits |= digit;
+                low = (low << 4) | digit;
+            }
+            if (digits >= 0)
+            {
+                return table.get(high, low);
+            }
+        }
+        Integer ordinal = others.get(id.toString());
+        return ordinal == null ? EMPTY : ordinal;
+    }
+
+    /**
+     * Adds an id, or changes its ordinal. Only for the writer.
+     * @param id A document id
+     * @param ordinal Its ordinal
+     */
+    void put(String id, int ordinal)
+    {
+        if (!isObjectId(id))
+        {
+            others.put(id, ordinal);
+            return;
+        }
+        Table current = table;
+        if ((current.size + 1) * 2 > current.capacity)
+        {
+            current = current.grow();
+        }
+        current.put(high(id), low(id), ordinal);
+        table = current; // volatile write, publishes the entry
+    }
+
+    /**
+     * @param id Text to check
+     * @return True if it is 24 hex digits
+     */
+    static boolean isObjectId(CharSequence id)
+    {
+        if (id == null || id.length() != LENGTH)
+        {
+            return false;
+        }
+        for (int ii = 0; ii < LENGTH; ii++)
+        {
+            if (hexDigit(id.charAt(ii)) < 0)
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** @return The first 8 bytes of an ObjectId */
+    private static long high(CharSequence id)
+    {
+        long high = 0;
+        for (int ii = 0; ii < 16; ii++)
+        {
+            high = (high << 4) | hexDigit(id.charAt(ii));
+        }
+        return high;
+    }
+
+    /** @return The last 4 bytes of an ObjectId */
+    private static int low(CharSequence id)
+    {
+        int low = 0;
+        for (int ii = 16; ii < LENGTH; ii++)
+        {
+            low = (low << 4) | hexDigit(id.charAt(ii));
+        }
+        return low;
+    }
+
+    /** @return Value of a hex digit, -1 if it is none */
+    private static int hexDigit(char c)
+    {
+        return c < HEX_DIGITS.length ? HEX_DIGITS[c] : -1;
+    }
+
+    /**
+     * The entries, in slots found by linear probing. Each slot is two longs
+     * next to each other (one cache line): the first 8 bytes of the id, then
+     * the last 4 bytes and the ordinal. The table is replaced by one twice
+     * the size once half full, so probe sequences stay short.
+     */
+    private static final class Table {
+
+        private static final long FREE = -1L; // second long of free slots (ordinal EMPTY)
+
+        final long[] slots;
+        final int capacity;
+        int size = 0;
+
+        Table(int capacity)
+        {
+            this.capacity = capacity;
+            slots = new long[capacity * 2];
+            for (int slot = 1; slot < slots.length; slot += 2)
+            {
+                slots[slot] = FREE;
+            }
+        }
+
+        int get(long high, int low)
+        {
+            int mask = capacity - 1;
+            for (int slot = slot(high, low, mask); ; slot = (slot + 1) & mask)
+            {
+                long entry = slots[slot * 2 + 1];
+                if ((int) entry == EMPTY)
+                {
+                    return EMPTY;
+                }
+                if (slots[slot * 2] == high && (int) (entry >>> 32) == low)
+                {
+                    return (int) entry;
+                }
+            }
+        }
+
+        void put(long high, int low, int ordinal)
+        {
+            int mask = capacity - 1;
+            int slot = slot(high, low, mask);
+            long entry;
+            while ((int) (entry = slots[slot * 2 + 1]) != EMPTY && (slots[slot * 2] != high || (int) (entry >>> 32) != low))
+            {
+                slot = (slot + 1) & mask;
+            }
+            if ((int) entry == EMPTY)
+            {
+                slots[slot * 2] = high;
+                size++;
+            }
+            // last: a reader racing with this at worst misses the entry, which is not published yet
+            slots[slot * 2 + 1] = ((long) low << 32) | (ordinal & 0xffffffffL);
+        }
+
+        /** @return A new table twice the size, with the same entries */
+        Table grow()
+        {
+            Table grown = new Table(capacity * 2);
+            for (int slot = 0; slot < capacity; slot++)
+            {
+                long entry = slots[slot * 2 + 1];
+                if ((int) entry != EMPTY)
+                {
+                    grown.put(slots[slot * 2], (int) (entry >>> 32), (int) entry);
+                }
+            }
+            return grown;
+        }
+
+        /**
+         * ObjectIds start with a timestamp and end with a counter, so the
+         * bits are mixed (as in MurmurHash3) before picking a slot.
+         */
+        private static int slot(long high, int low, int mask)
+        {
+            long hash = high * 31 + low;
+            hash = (hash ^ (hash >>> 33)) * 0xff51afd7ed558ccdL;
+            hash = (hash ^ (hash >>> 33)) * 0xc4ceb9fe1a85ec53L;
+            return (int) (hash ^ (hash >>> 33)) & mask;
+        }
+    }
+}
@@ -0,0 +1,515 @@
+/*
+ * Copyright (C) 2016 Toby Scholz 2016
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package NepTune;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.function.IntPredicate;
+
+/**
+ * Compressed set of document ordinals, used to combine the matches of
+ * search terms.
+ * Ordinals are grouped into chunks of 65536 by their upper 16 bits. A chunk
+ * with few entries stores its lower 16 bits as a sorted array, a chunk with
+ * more than 4096 entries (where the array would be larger) as a plain
+ * bitmap of 1024 longs. Empty chunks are not stored at all, so a sparse
+ * result costs little more than a sorted int array, and a dense one about
+ * one bit per document.
+ */
+final class OrdinalBitmap {
+
+    private static final int MAX_ARRAY = 4096; // entries; beyond this a bitmap is smaller
+    private static final int WORDS = 1024;     // longs per bitmap chunk
+
+    private int[] keys = new int[4];               // upper 16 bits of each chunk, ascending
+    private Object[] chunks = new Object[4];       // char[] (sorted lower bits) or long[WORDS]
+    private int[] cardinalities = new int[4];      // entries per chunk
+    private int size = 0;                          // number of chunks
+
+    /**
+     * @param ordinals Ordinals in any order
+     * @return A bitmap holding them
+     */
+    static OrdinalBitmap of(int... ordinals)
+    {
+        OrdinalBitmap result = new OrdinalBitmap();
+        for (int ordinal : ordinals)
+        {
+            result.add(ordinal);
+        }
+        return result;
+    }
+
+    /**
+     * @param ordinals Ordinals as set bits
+     * @return A bitmap holding them
+     */
+    static OrdinalBitmap of(BitSet ordinals)
+    {
+        OrdinalBitmap result = new OrdinalBitmap();
+        for (int ordinal = ordinals.nextSetBit(0); ordinal >= 0; ordinal = ordinals.nextSetBit(ordinal + 1))
+        {
+            result.add(ordinal); // ascending, so always appends
+        }
+        return result;
+    }
+
+    void clear()
+    {
+        Arrays.fill(chunks, null);
+        size = 0;
+    }
+
+    void add(int ordinal)
+    {
+        int key = ordinal >>> 16;
+        char low = (char) ordinal;
+        int index = findChunk(key);
+        if (index < 0)
+        {
+            index = -(index + 1);
+            insertChunk(index, key, new char[4], 0);
+        }
+        if (chunks[index] instanceof long[])
+        {
+            long[] words = (long[]) chunks[index];
+            long bit = 1L << low;
+            if ((words[low >>> 6] & bit) == 0)
+            {
+                words[low >>> 6] |= bit;
+                cardinalities[index]++;
+            }
+            return;
+        }
+        char[] array = (char[]) chunks[index];
+        int card = cardinalities[index];
+        int pos = Arrays.binarySearch(array, 0, card, low);
+        if (pos >= 0)
+        {
+            return;
+        }
+        pos = -(pos + 1);
+        if (card == MAX_ARRAY)
+        {
+            long[] words = toWords(array, card);
+            words[low >>> 6] |= 1L << low;
+            chunks[index] = words;
+            cardinalities[index] = card + 1;
+            return;
+        }
+        if (card == array.length)
+        {
+            array = Arrays.copyOf(array, Math.min(MAX_ARRAY, card * 2));
+            chunks[index] = array;
+        }
+        System.arraycopy(array, pos, array, pos + 1, card - pos);
+        array[pos] = low;
+        cardinalities[index] = card + 1;
+    }
+
+    void remove(int ordinal)
+    {
+        int index = findChunk(ordinal >>> 16);
+        if (index < 0)
+        {
+            return;
+        }
+        char low = (char) ordinal;
+        if (chunks[index] instanceof long[])
+        {
+            long[] words = (long[]) chunks[index];
+            long bit = 1L << low;
+            if ((words[low >>> 6] & bit) != 0)
+            {
+                words[low >>> 6] &= ~bit;
+                cardinalities[index]--;
+            }
+        }
+        else
+        {
+            char[] array = (char[]) chunks[index];
+            int card = cardinalities[index];
+            int pos = Arrays.binarySearch(array, 0, card, low);
+            if (pos >= 0)
+            {
+                System.arraycopy(array, pos + 1, array, pos, card - pos - 1);
+                cardinalities[index]--;
+            }
+        }
+        if (cardinalities[index] == 0)
+        {
+            System.arraycopy(keys, index + 1, keys, index, size - index - 1);
+            System.arraycopy(chunks, index + 1, chunks, index, size - index - 1);
+            System.arraycopy(cardinalities, index + 1, cardinalities, index, size - index - 1);
+            size--;
+            chunks[size] = null;
+        }
+    }
+
+    boolean contains(int ordinal)
+    {
+        int index = findChunk(ordinal >>> 16);
+        if (index < 0)
+        {
+            return false;
+        }
+        char low = (char) ordinal;
+        if (chunks[index] instanceof long[])
+        {
+            return (((long[]) chunks[index])[low >>> 6] & (1L << low)) != 0;
+        }
+        return Arrays.binarySearch((char[]) chunks[index], 0, cardinalities[index], low) >= 0;
+    }
+
+    int cardinality()
+    {
+        int result = 0;
+        for (int ii = 0; ii < size; ii++)
+        {
+            result += cardinalities[ii];
+        }
+        return result;
+    }
+
+    boolean isEmpty()
+    {
+        return size == 0;
+    }
+
+    /**
+     * Passes the ordinals to the consumer in ascending order.
+     * @param consumer Returns false to stop
+     * @return False if the consumer stopped early
+     */
+    boolean forEach(IntPredicate consumer)
+    {
+        for (int ii = 0; ii < size; ii++)
+        {
+            int high = keys[ii] << 16;
+            if (chunks[ii] instanceof long[])
+            {
+                long[] words = (long[]) chunks[ii];
+                for (int ww = 0; ww < WORDS; ww++)
+                {
+                    long word = words[ww];
+                    while (word != 0)
+                    {
+                        if (!consumer.test(high | (ww << 6) | Long.numberOfTrailingZeros(word)))
+                        {
+                            return false;
+                        }
+                        word &= word - 1;
+                    }
+                }
+            }
+            else
+            {
+                char[] array = (char[]) chunks[ii];
+                for (int jj = 0; jj < cardinalities[ii]; jj++)
+                {
+                    if (!consumer.test(high | array[jj]))
+                    {
+                        return false;
+                    }
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return The ordinals in ascending order
+     */
+    int[] toArray()
+    {
+        int[] result = new int[cardinality()];
+        int[] pos = {0};
+        forEach(ordinal -> {
+            result[pos[0]++] = ordinal;
+            return true;
+        });
+        return result;
+    }
+
+    /**
+     * @return Ordinals in both bitmaps
+     */
+    static OrdinalBitmap and(OrdinalBitmap a, OrdinalBitmap b)
+    {
+        OrdinalBitmap result = new OrdinalBitmap();
+        int ia = 0;
+        int ib = 0;
+        while (ia < a.size && ib < b.size)
+        {
+            if (a.keys[ia] < b.keys[ib])
+            {
+                ia++;
+            }
+            else if (a.keys[ia] > b.keys[ib])
+            {
+                ib++;
+            }
+            else
+            {
+                if (a.chunks[ia] instanceof char[] && b.chunks[ib] instanceof char[])
+                {
+                    char[] x = (char[]) a.chunks[ia];
+                    char[] y = (char[]) b.chunks[ib];
+                    char[] out = new char[Math.min(a.cardinalities[ia], b.cardinalities[ib])];
+                    int card = 0;
+                    int ix = 0;
+                    int iy = 0;
+                    while (ix < a.cardinalities[ia] && iy < b.cardinalities[ib])
+                    {
+                        if (x[ix] < y[iy]) ix++;
+                        else if (x[ix] > y[iy]) iy++;
+                        else { out[card++] = x[ix]; ix++; iy++; }
+                    }
+                    result.appendArray(a.keys[ia], out, card);
+                }
+                else if (a.chunks[ia] instanceof char[] || b.chunks[ib] instanceof char[])
+                {
+                    boolean aIsArray = a.chunks[ia] instanceof char[];
+                    char[] array = (char[]) (aIsArray ? a.chunks[ia] : b.chunks[ib]);
+                    int arrayCard = aIsArray ? a.cardinalities[ia] : b.cardinalities[ib];
+                    long[] words = (long[]) (aIsArray ? b.chunks[ib] : a.chunks[ia]);
+                    char[] out = new char[arrayCard];
+                    int card = 0;
+                    for (int jj = 0; jj < arrayCard; jj++)
+                    {
+                        if ((words[array[jj] >>> 6] & (1L << array[jj])) != 0)
+                        {
+                            out[card++] = array[jj];
+                        }
+                    }
+                    result.appendArray(a.keys[ia], out, card);
+                }
+                else
+                {
+                    long[] x = (long[]) a.chunks[ia];
+                    long[] y = (long[]) b.chunks[ib];
+                    long[] out = new long[WORDS];
+                    for (int ww = 0; ww < WORDS; ww++)
+                    {
+                        out[ww] = x[ww] & y[ww];
+                    }
+                    result.appendWords(a.keys[ia], out);
+                }
+                ia++;
+                ib++;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return Ordinals in either bitmap
+     */
+    static OrdinalBitmap or(OrdinalBitmap a, OrdinalBitmap b)
+    {
+        OrdinalBitmap result = new OrdinalBitmap();
+        int ia = 0;
+        int ib = 0;
+        while (ia < a.size || ib < b.size)
+        {
+            if (ib >= b.size || (ia < a.size && a.keys[ia] < b.keys[ib]))
+            {
+                result.appendCopy(a, ia++);
+            }
+            else if (ia >= a.size || a.keys[ia] > b.keys[ib])
+            {
+                result.appendCopy(b, ib++);
+            }
+            else
+            {
+                if (a.chunks[ia] instanceof char[] && b.chunks[ib] instanceof char[]
+                        && a.cardinalities[ia] + b.cardinalities[ib] <= MAX_ARRAY)
+                {
+                    char[] x = (char[]) a.chunks[ia];
+                    char[] y = (char[]) b.chunks[ib];
+                    char[] out = new char[a.cardinalities[ia] + b.cardinalities[ib]];
+                    int card = 0;
+                    int ix = 0;
+                    int iy = 0;
+                    while (ix < a.cardinalities[ia] || iy < b.cardinalities[ib])
+                    {
+                        if (iy >= b.cardinalities[ib] || (ix < a.cardinalities[ia] && x[ix] < y[iy])) out[card++] = x[ix++];
+                        else if (ix >= a.cardinalities[ia] || x[ix] > y[iy]) out[card++] = y[iy++];
+                        else { out[card++] = x[ix]; ix++; iy++; }
+                    }
+                    result.appendArray(a.keys[ia], out, card);
+                }
+                else
+                {
+                    long[] out = a.wordsOf(ia);
+                    long[] y = b.wordsOf(ib);
+                    for (int ww = 0; ww < WORDS; ww++)
+                    {
+                        out[ww] |= y[ww];
+                    }
+                    result.appendWords(a.keys[ia], out);
+                }
+                ia++;
+                ib++;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return Ordinals in a but not in b
+     */
+    static OrdinalBitmap andNot(OrdinalBitmap a, OrdinalBitmap b)
+    {
+        OrdinalBitmap result = new OrdinalBitmap();
+        int ib = 0;
+        for (int ia = 0; ia < a.size; ia++)
+        {
+            while (ib < b.size && b.keys[ib] < a.keys[ia])
+            {
+                ib++;
+            }
+            if (ib >= b.size || b.keys[ib] != a.keys[ia])
+            {
+                result.appendCopy(a, ia);
+            }
+            else if (a.chunks[ia] instanceof char[])
+            {
+                char[] array = (char[]) a.chunks[ia];
+                char[] out = new char[a.cardinalities[ia]];
+                int card = 0;
+                for (int jj = 0; jj < a.cardinalities[ia]; jj++)
+                {
+                    if (!b.containsLow(ib, array[jj]))
+                    {
+                        out[card++] = array[jj];
+                    }
+                }
+                result.appendArray(a.keys[ia], out, card);
+            }
+            else
+            {
+                long[] out = a.wordsOf(ia);
+                long[] y = b.wordsOf(ib);
+                for (int ww = 0; ww < WORDS; ww++)
+                {
+                    out[ww] &= ~y[ww];
+                }
+                result.appendWords(a.keys[ia], out);
+            }
+        }
+        return result;
+    }
+
+    private boolean containsLow(int index, char low)
+    {
+        if (chunks[index] instanceof long[])
+        {
+            return (((long[]) chunks[index])[low >>> 6] & (1L << low)) != 0;
+        }
+        return Arrays.binarySearch((char[]) chunks[index], 0, cardinalities[index], low) >= 0;
+    }
+
+    /** @return A copy of the chunk as bitmap words */
+    private long[] wordsOf(int index)
+    {
+        if (chunks[index] instanceof long[])
+        {
+            return ((long[]) chunks[index]).clone();
+        }
+        return toWords((char[]) chunks[index], cardinalities[index]);
+    }
+
+    private static long[] toWords(char[] array, int card)
+    {
+        long[] words = new long[WORDS];
+        for (int ii = 0; ii < card; ii++)
+        {
+            words[array[ii] >>> 6] |= 1L << array[ii];
+        }
+        return words;
+    }
+
+    private int findChunk(int key)
+    {
+        return Arrays.binarySearch(keys, 0, size, key);
+    }
+
+    private void insertChunk(int index, int key, Object chunk, int card)
+    {
+        if (size == keys.length)
+        {
+            keys = Arrays.copyOf(keys, size * 2);
+            chunks = Arrays.copyOf(chunks, size * 2);
+            cardinalities = Arrays.copyOf(cardinalities, size * 2);
+        }
+        System.arraycopy(keys, index, keys, index + 1, size - index);
+        System.arraycopy(chunks, index, chunks, index + 1, size - index);
+        System.arraycopy(cardinalities, index, cardinalities, index + 1, size - index);
+        keys[index] = key;
+        chunks[index] = chunk;
+        cardinalities[index] = card;
+        size++;
+    }
+
+    /** Appends a chunk with a key larger than all present, unless empty */
+    private void appendArray(int key, char[] array, int card)
+    {
+        if (card > 0)
+        {
+            insertChunk(size, key, array, card);
+        }
+    }
+
+    /** As appendArray, turning the words back into an array if small */
+    private void appendWords(int key, long[] words)
+    {
+        int card = 0;
+        for (long word : words)
+        {
+            card += Long.bitCount(word);
+        }
+        if (card == 0)
+        {
+            return;
+        }
+        if (card > MAX_ARRAY)
+        {
+            insertChunk(size, key, words, card);
+            return;
+        }
+        char[] array = new char[card];
+        int pos = 0;
+        for (int ww = 0; ww < WORDS; ww++)
+        {
+            long word = words[ww];
+            while (word != 0)
+            {
+                array[pos++] = (char) ((ww << 6) | Long.numberOfTrailingZeros(word));
+                word &= word - 1;
+            }
+        }
+        insertChunk(size, key, array, card);
+    }
+
+    private void appendCopy(OrdinalBitmap from, int index)
+    {
+        Object chunk = from.chunks[index];
+        Object copy = chunk instanceof long[] ? ((long[]) chunk).clone() : Arrays.copyOf((char[]) chunk, from.cardinalities[index]);
+        insertChunk(size, from.keys[index], copy, from.cardinalities[index]);
+    }
+}
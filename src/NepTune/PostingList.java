@@ -0,0 +1,280 @@
+/*
+ * Copyright (C) 2016 Toby Scholz 2016
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package NepTune;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * Sorted list of document ordinals for a single entry of the search index.
+ * Ordinals are handed out in increasing order by DataStoreSingleton, so
+ * adding is nearly always a plain append.
+ */
+class PostingList {
+
+    private int[] ordinals = new int[4];
+    private int[] frequencies = null; // per ordinal, only kept for token postings
+    private int size = 0;
+
+    /**
+     * Adds an ordinal, keeping the list sorted and free of duplicates.
+     * @param ordinal The document ordinal
+     */
+    void add(int ordinal)
+    {
+        insert(ordinal);
+    }
+
+    /**
+     * Adds an ordinal together with the number of times the entry occurs
+     * in the document, as needed for relevance ranking.
+     * @param ordinal The document ordinal
+     * @param frequency Number of occurrences
+     */
+    void add(int ordinal, int frequency)
+    {
+        if (frequencies == null)
+        {
+            frequencies = new int[ordinals.length];
+            Arrays.fill(frequencies, 0, size, 1);
+        }
+        int pos = insert(ordinal);
+        frequencies[pos] = frequency;
+    }
+
+    /** @return Position of the ordinal */
+    private int insert(int ordinal)
+    {
+        if (size == 0 || ordinals[size - 1] < ordinal) // the usual case
+        {
+            ensureCapacity();
+            ordinals[size] = ordinal;
+            return size++;
+        }
+        int pos = Arrays.binarySearch(ordinals, 0, size, ordinal);
+        if (pos >= 0)
+        {
+            return pos; // already there
+        }
+        pos = -(pos + 1);
+        ensureCapacity();
+        System.arraycopy(ordinals, pos, ordinals, pos + 1, size - pos);
+        if (frequencies != null)
+        {
+            System.arraycopy(frequencies, pos, frequencies, pos + 1, size - pos);
+        }
+        ordinals[pos] = ordinal;
+        size++;
+        return pos;
+    }
+
+    /**
+     * Removes an ordinal, if present.
+     * @param ordinal The document ordinal
+     */
+    void remove(int ordinal)
+    {
+        int pos = Arrays.binarySearch(ordinals, 0, size, ordinal);
+        if (pos >= 0)
+        {
+            System.arraycopy(ordinals, pos + 1, ordinals, pos, size - pos - 1);
+            if (frequencies != null)
+            {
+                System.arraycopy(frequencies, pos + 1, frequencies, pos, size - pos - 1);
+            }
+            size--;
+        }
+    }
+
+    /**
+     * @param ordinal The document ordinal
+     * @return True if the ordinal is in the list
+     */
+    boolean contains(int ordinal)
+    {
+        return Arrays.binarySearch(ordinals, 0, size, ordinal) >= 0;
+    }
+
+    /**
+     * @param ordinal The document ordinal
+     * @return Position of the ordinal in the list, negative if not present
+     */
+    int indexOf(int ordinal)
+    {
+        return Arrays.binarySearch(ordinals, 0, size, ordinal);
+    }
+
+    int get(int index)
+    {
+        return ordinals[index];
+    }
+
+    /**
+     * @param index Position in the list
+     * @return Number of occurrences in the document at that position
+     */
+    int getFrequency(int index)
+    {
+        return frequencies == null ? 1 : frequencies[index];
+    }
+
+    int size()
+    {
+        return size;
+    }
+
+    boolean isEmpty()
+    {
+        return size == 0;
+    }
+
+    /**
+     * Writes the list to a snapshot file (see SnapshotFile).
+     * @param out The file
+     * @param newOrdinals The ordinal each ordinal has in the file, -1 for
+     * documents left out
+     * @throws IOException
+     */
+    void write(DataOutputStream out, int[] newOrdinals) throws IOException
+    {
+        int count = 0;
+        for (int ii = 0; ii < size; ii++)
+        {
+            if (ordinals[ii] < newOrdinals.length && newOrdinals[ordinals[ii]] >= 0)
+            {
+                count++;
+            }
+        }
+        out.writeInt(count);
+        out.writeBoolean(frequencies != null);
+        for (int ii = 0; ii < size; ii++)
+        {
+            if (ordinals[ii] < newOrdinals.length && newOrdinals[ordinals[ii]] >= 0)
+            {
+                out.writeInt(newOrdinals[ordinals[ii]]);
+            }
+        }
+        for (int ii = 0; frequencies != null && ii < size; ii++)
+        {
+            if (ordinals[ii] < newOrdinals.length && newOrdinals[ordinals[ii]] >= 0)
+            {
+                out.writeInt(frequencies[ii]);
+            }
+        }
+    }
+
+    /**
+     * @param in A snapshot file
+     * @return The list as written by write()
+     * @throws IOException
+     */
+    static PostingList read(SnapshotFile.Input in) throws IOException
+    {
+        PostingList postings = new PostingList();
+        postings.size = in.readCount();
+        boolean withFrequencies = in.readByte() != 0;
+        postings.ordinals = in.readInts(postings.size);
+        postings.frequencies = withFrequencies ? in.readInts(postings.size) : null;
+        return postings;
+    }
+
+    /**
+     * Writes an index of posting lists by text to a snapshot file.
+     * @param out The file
+     * @param index The index
+     * @param newOrdinals As for write()
+     * @throws IOException
+     */
+    static void writeIndex(DataOutputStream out, Map<String, PostingList> index, int[] newOrdinals) throws IOException
+    {
+        out.writeInt(index.size());
+        for (Map.Entry<String, PostingList> entry : index.entrySet())
+        {
+            SnapshotFile.writeString(out, entry.getKey());
+            entry.getValue().write(out, newOrdinals);
+        }
+    }
+
+    /**
+     * Reads an index as written by writeIndex().
+     * @param in The snapshot file
+     * @param index The (empty) index to add the posting lists to
+     * @throws IOException
+     */
+    static void readIndex(SnapshotFile.Input in, Map<String, PostingList> index) throws IOException
+    {
+        for (int count = in.readCount(); count > 0; count--)
+        {
+            String key = in.readString();
+            PostingList postings = read(in);
+            if (!postings.isEmpty()) // all its documents were left out
+            {
+                index.put(key, postings);
+            }
+        }
+    }
+
+    /**
+     * Writes an index of posting lists by trigram to a snapshot file.
+     * @param out The file
+     * @param index The index
+     * @param newOrdinals As for write()
+     * @throws IOException
+     */
+    static void writeTrigramIndex(DataOutputStream out, Map<Long, PostingList> index, int[] newOrdinals) throws IOException
+    {
+        out.writeInt(index.size());
+        for (Map.Entry<Long, PostingList> entry : index.entrySet())
+        {
+            out.writeLong(entry.getKey());
+            entry.getValue().write(out, newOrdinals);
+        }
+    }
+
+    /**
+     * Reads an index as written by writeTrigramIndex().
+     * @param in The snapshot file
+     * @param index The (empty) index to add the posting lists to
+     * @throws IOException
+     */
+    static void readTrigramIndex(SnapshotFile.Input in, Map<Long, PostingList> index) throws IOException
+    {
+        for (int count = in.readCount(); count > 0; count--)
+        {
+            long trigram = in.readLong();
+            PostingList postings = read(in);
+            if (!postings.isEmpty())
+            {
+                index.put(trigram, postings);
+            }
+        }
+    }
+
+    private void ensureCapacity()
+    {
+        if (size == ordinals.length)
+        {
+            ordinals = Arrays.copyOf(ordinals, size + (size >> 1) + 1);
+            if (frequencies != null)
+            {
+                frequencies = Arrays.copyOf(frequencies, ordinals.length);
+            }
+        }
+    }
+}
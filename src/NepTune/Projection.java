@@ -0,0 +1,94 @@
+/*
+ * Copyright (C) 2016 Toby Scholz 2016
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package NepTune;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Writes only some of the metadata of documents as JSON, e.g. for list
+ * views that need no more than _id, fileName, title and artist.
+ * The JSON is put together from the values of the ColumnStore, which are
+ * turned into JSON once per distinct value, so documents are neither
+ * copied nor serialized as a whole.
+ */
+final class Projection {
+
+    private final ColumnStore store;
+    private final List<String> keys = new ArrayList<>();
+    private final List<FieldColumn> columns = new ArrayList<>();
+
+    /**
+     * @param fieldNames Comma separated field names as supplied by the
+     * client. Case and namespace can be left out, as for field:value terms
+     * (see SearchIndexSingleton.resolveField).
+     * @param index Resolves the field names to metadata keys
+     */
+    Projection(String fieldNames, SearchIndexSingleton index)
+    {
+        store = ColumnStore.getCurrent();
+        for (String name : fieldNames.split(","))
+        {
+            List<String> resolved = index.resolveField(name.trim());
+            Collections.sort(resolved);
+            for (String key : resolved)
+            {
+                if (!keys.contains(key))
+                {
+                    keys.add(key);
+                    columns.add(store.getColumn(key));
+                }
+            }
+        }
+    }
+
+    /**
+     * @param ordinal Ordinal of the document
+     * @param snapshot Version of the data store to read the values from,
+     * only if the document was added after the column store was built
+     * @return The JSON of the projected fields the document has
+     */
+    String toJson(int ordinal, DataSnapshot snapshot)
+    {
+        StringBuilder json = new StringBuilder("{ ");
+        boolean covered = store.covers(ordinal);
+        for (int ii = 0; ii < keys.size(); ii++)
+        {
+            String member;
+            if (covered)
+            {
+                int code = columns.get(ii).getCode(ordinal);
+                member = code == FieldColumn.MISSING ? null : columns.get(ii).getJsonMember(code);
+            }
+            else
+            {
+                Object value = snapshot.getValue(ordinal, keys.get(ii));
+                member = value == null ? null : FieldColumn.jsonMember(keys.get(ii), value);
+            }
+            if (member != null)
+            {
+                if (json.length() > 2)
+                {
+                    json.append(", ");
+                }
+                json.append(member);
+            }
+        }
+        return json.length() == 2 ? "{ }" : json.append(" }").toString();
+    }
+}
@@ -0,0 +1,385 @@
+/*
+ * Copyright (C) 2016 Toby Scholz 2016
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package NepTune;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeSet;
+import org.bson.Document;
+
+/**
+ * A parsed search, made up of search terms combined with AND, OR and NOT
+ * (see QueryParser). Evaluating a query turns every term into a bitmap of
+ * the matching document ordinals, and combines those with set operations.
+ */
+abstract class Query {
+
+    /**
+     * @param evaluator Looks up the matches of single terms
+     * @return Ordinals of the matching documents
+     */
+    abstract OrdinalBitmap evaluate(QueryEvaluator evaluator);
+
+    /**
+     * @return The terms, if the query only ORs terms (as all searches did
+     * before AND and NOT were supported), else null.
+     */
+    abstract List<SearchTerm> disjunctionTerms();
+
+    /**
+     * Collects the terms documents are matched by, i.e. all but the negated
+     * ones, for relevance ranking.
+     * @param terms List to add the terms to
+     */
+    abstract void positiveTerms(List<SearchTerm> terms);
+
+    /**
+     * Matches a single document, without any index, e.g. for standing
+     * queries when a document is added.
+     * @param doc The document
+     * @param text Its searchable text (SearchIndexSingleton.searchableText)
+     * @param index Resolves field names
+     * @return True if the document matches
+     */
+    abstract boolean matches(Document doc, String text, SearchIndexSingleton index);
+
+    /**
+     * @return Canonical form of the query, e.g. for cache keys. Operands of
+     * AND and OR are sorted and de-duplicated, as their order does not matter.
+     */
+    @Override
+    public abstract String toString();
+
+    /**
+     * @return A query matching any of the parts
+     */
+    static Query or(List<Query> parts)
+    {
+        return parts.size() == 1 ? parts.get(0) : new Or(parts);
+    }
+
+    /**
+     * @return A query matching all of the parts
+     */
+    static Query and(List<Query> parts)
+    {
+        return parts.size() == 1 ? parts.get(0) : new And(parts);
+    }
+
+    /** A single search term */
+    static final class Term extends Query {
+
+        final SearchTerm term;
+
+        Term(SearchTerm term)
+        {
+            this.term = term;
+        }
+
+        @Override
+        OrdinalBitmap evaluate(QueryEvaluator evaluator)
+        {
+            return evaluator.termMatches(term);
+        }
+
+        @Override
+        List<SearchTerm> disjunctionTerms()
+        {
+            List<SearchTerm> terms = new ArrayList<>();
+            terms.add(term);
+            return terms;
+        }
+
+        @Override
+        void positiveTerms(List<SearchTerm> terms)
+        {
+            terms.add(term);
+        }
+
+        @Override
+        boolean matches(Document doc, String text, SearchIndexSingleton index)
+        {
+            if (!term.isScoped())
+            {
+                return text.contains(term.text);
+            }
+            for (String key : index.resolveField(term.field))
+            {
+                Object value = doc.get(key);
+                if (value != null && FieldIndex.normalize(value).contains(term.text))
+                {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public String toString()
+        {
+            return "\"" + term + "\"";
+        }
+    }
+
+    /**
+     * Matches documents whose value of a field compares true with a bound,
+     * e.g. duration>10m, using the typed columns rather than the text.
+     */
+    static final class Range extends Query {
+
+        final String field;
+        final String operator; // >, >=, < or <=
+        final String bound;
+        final long now;        // what now in the bound means
+
+        Range(String field, String operator, String bound)
+        {
+            this.field = field;
+            this.operator = operator;
+            this.bound = bound;
+            this.now = System.currentTimeMillis();
+        }
+
+        /**
+         * @return True if the bound is a number or date at all
+         */
+        boolean isValid()
+        {
+            return !Double.isNaN(TypedColumn.parseBound(bound, TypedColumn.Type.NUMBER, now))
+                    || !Double.isNaN(TypedColumn.parseBound(bound, TypedColumn.Type.DATE, now));
+        }
+
+        /**
+         * @return True if the bound depends on the time, e.g. now-7d
+         */
+        boolean isRelative()
+        {
+            return bound.toLowerCase().startsWith("now");
+        }
+
+        @Override
+        OrdinalBitmap evaluate(QueryEvaluator evaluator)
+        {
+            return evaluator.rangeMatches(this);
+        }
+
+        @Override
+        List<SearchTerm> disjunctionTerms()
+        {
+            return null;
+        }
+
+        @Override
+        void positiveTerms(List<SearchTerm> terms)
+        {
+            // nothing to rank by
+        }
+
+        @Override
+        boolean matches(Document doc, String text, SearchIndexSingleton index)
+        {
+            for (String key : index.resolveField(field))
+            {
+                Object value = doc.get(key);
+                if (value != null && TypedColumn.compares(value, operator, bound, now))
+                {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public String toString()
+        {
+            // a relative bound means something else a moment later, so is not worth caching
+            return field.toLowerCase() + operator + bound.toLowerCase() + (isRelative() ? "@" + now : "");
+        }
+    }
+
+    /** Matches documents matching any part */
+    static final class Or extends Query {
+
+        final List<Query> parts;
+
+        Or(List<Query> parts)
+        {
+            this.parts = parts;
+        }
+
+        @Override
+        OrdinalBitmap evaluate(QueryEvaluator evaluator)
+        {
+            OrdinalBitmap result = new OrdinalBitmap();
+            for (Query part : parts)
+            {
+                result = OrdinalBitmap.or(result, part.evaluate(evaluator));
+            }
+            return result;
+        }
+
+        @Override
+        List<SearchTerm> disjunctionTerms()
+        {
+            List<SearchTerm> terms = new ArrayList<>();
+            for (Query part : parts)
+            {
+                List<SearchTerm> partTerms = part.disjunctionTerms();
+                if (partTerms == null)
+                {
+                    return null;
+                }
+                terms.addAll(partTerms);
+            }
+            return terms;
+        }
+
+        @Override
+        void positiveTerms(List<SearchTerm> terms)
+        {
+            for (Query part : parts)
+            {
+                part.positiveTerms(terms);
+            }
+        }
+
+        @Override
+        boolean matches(Document doc, String text, SearchIndexSingleton index)
+        {
+            for (Query part : parts)
+            {
+                if (part.matches(doc, text, index))
+                {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public String toString()
+        {
+            return join(parts, " OR ");
+        }
+    }
+
+    /**
+     * Matches documents matching all parts. The QueryEvaluator decides in
+     * which order, and how, the parts are applied (see QueryPlanner), so the
+     * more selective a query the less work it is.
+     */
+    static final class And extends Query {
+
+        final List<Query> parts;
+
+        And(List<Query> parts)
+        {
+            this.parts = parts;
+        }
+
+        @Override
+        OrdinalBitmap evaluate(QueryEvaluator evaluator)
+        {
+            return evaluator.andMatches(parts);
+        }
+
+        @Override
+        List<SearchTerm> disjunctionTerms()
+        {
+            return null;
+        }
+
+        @Override
+        void positiveTerms(List<SearchTerm> terms)
+        {
+            for (Query part : parts)
+            {
+                part.positiveTerms(terms);
+            }
+        }
+
+        @Override
+        boolean matches(Document doc, String text, SearchIndexSingleton index)
+        {
+            for (Query part : parts)
+            {
+                if (!part.matches(doc, text, index))
+                {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public String toString()
+        {
+            return join(parts, " AND ");
+        }
+    }
+
+    /** Matches documents not matching the part */
+    static final class Not extends Query {
+
+        final Query part;
+
+        Not(Query part)
+        {
+            this.part = part;
+        }
+
+        @Override
+        OrdinalBitmap evaluate(QueryEvaluator evaluator)
+        {
+            return OrdinalBitmap.andNot(evaluator.allDocuments(), part.evaluate(evaluator));
+        }
+
+        @Override
+        List<SearchTerm> disjunctionTerms()
+        {
+            return null;
+        }
+
+        @Override
+        void positiveTerms(List<SearchTerm> terms)
+        {
+            // documents match by not containing these
+        }
+
+        @Override
+        boolean matches(Document doc, String text, SearchIndexSingleton index)
+        {
+            return !part.matches(doc, text, index);
+        }
+
+        @Override
+        public String toString()
+        {
+            return "NOT " + part;
+        }
+    }
+
+    private static String join(List<Query> parts, String operator)
+    {
+        TreeSet<String> sorted = new TreeSet<>();
+        for (Query part : parts)
+        {
+            sorted.add(part.toString());
+        }
+        return "(" + String.join(operator, sorted) + ")";
+    }
+}
@@ -0,0 +1,265 @@
+/*
+ * Copyright (C) 2016 Toby Scholz 2016
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package NepTune;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import org.bson.Document;
+
+/**
+ * Looks up the matches of single search terms for a Query, from the search
+ * index where possible, and by scanning with Speedy Gonzales where not (or
+ * where that is cheaper), and applies the parts of AND queries in the order
+ * the QueryPlanner estimates to be cheapest.
+ */
+class QueryEvaluator {
+
+    private static final int STOP_CHECK_INTERVAL = 1024; // documents verified between deadline checks
+
+    SearchIndexSingleton index = SearchIndexSingleton.getInstance();
+    DataStoreSingleton ds = DataStoreSingleton.getInstance();
+    private final SearchDeadline deadline;
+    private final QueryPlanner planner;
+    private OrdinalBitmap allDocuments = null;
+
+    /**
+     * @param deadline When to give up scanning. As a partial match of one
+     * term can make the whole query wrong (e.g. with NOT), evaluation fails
+     * with a CancellationException then.
+     */
+    QueryEvaluator(SearchDeadline deadline)
+    {
+        this(deadline, false);
+    }
+
+    /**
+     * @param deadline As above
+     * @param explain True to record the plan and timings (see getPlanner)
+     */
+    QueryEvaluator(SearchDeadline deadline, boolean explain)
+    {
+        this.deadline = deadline;
+        this.planner = new QueryPlanner(index, explain);
+    }
+
+    /**
+     * @return The planner, with the stages recorded if explaining
+     */
+    QueryPlanner getPlanner()
+    {
+        return planner;
+    }
+
+    /**
+     * @param query The query to evaluate
+     * @return Ordinals of the matching documents
+     */
+    OrdinalBitmap evaluate(Query query)
+    {
+        return query.evaluate(this);
+    }
+
+    /**
+     * @param term A search term
+     * @return Ordinals of the documents matching the term
+     */
+    OrdinalBitmap termMatches(SearchTerm term)
+    {
+        long start = System.nanoTime();
+        if (!planner.prefersScan(term))
+        {
+            OrdinalBitmap matches = index.findTerm(term, Integer.MAX_VALUE);
+            if (matches != null)
+            {
+                planner.record("index", term, start, matches);
+                return matches;
+            }
+        }
+        LOG.DEBUG("Scanning for search term " + term);
+        List<String> terms = new ArrayList<>();
+        terms.add(term.text);
+        try
+        {
+            int[] ordinals = new SpeedyGonzales().findOrdinals(terms, deadline);
+            if (deadline.isStopped())
+            {
+                throw new CancellationException("Scan for " + term + " stopped");
+            }
+            OrdinalBitmap matches = OrdinalBitmap.of(ordinals);
+            planner.record("scan", term, start, matches);
+            return matches;
+        }
+        catch(InterruptedException | ExecutionException e)
+        {
+            throw new IllegalStateException("Scan for " + term + " failed: " + e.toString(), e);
+        }
+    }
+
+    /**
+     * @param range A range query
+     * @return Ordinals of the documents with a value in the range, in any
+     * of the metadata keys the field refers to whose values are numbers or
+     * dates (as the bound)
+     */
+    OrdinalBitmap rangeMatches(Query.Range range)
+    {
+        long start = System.nanoTime();
+        ColumnStore store = ColumnStore.getCurrent();
+        OrdinalBitmap matches = new OrdinalBitmap();
+        for (String key : index.resolveField(range.field))
+        {
+            TypedColumn column = store.getColumn(key).getTypedColumn();
+            double bound = column == null ? Double.NaN : TypedColumn.parseBound(range.bound, column.type, range.now);
+            if (!Double.isNaN(bound))
+            {
+                matches = OrdinalBitmap.or(matches, column.range(range.operator, bound));
+            }
+        }
+        planner.record("range", range, start, matches);
+        return matches;
+    }
+
+    /**
+     * Evaluates an AND: the parts are applied in the order of their
+     * estimated matches, fewest first, and NOT parts last. Each part is
+     * either evaluated and intersected with (or subtracted from) the
+     * documents left, or, if there are few enough of these, checked against
+     * each of them instead.
+     * @param parts The parts of the AND
+     * @return Ordinals of the documents matching all parts
+     */
+    OrdinalBitmap andMatches(List<Query> parts)
+    {
+        Map<Query, long[]> estimates = new IdentityHashMap<>();
+        List<Query> included = new ArrayList<>();
+        List<Query> excluded = new ArrayList<>();
+        for (Query part : parts)
+        {
+            if (part instanceof Query.Not)
+            {
+                excluded.add(((Query.Not) part).part);
+            }
+            else
+            {
+                included.add(part);
+            }
+            estimates.put(part, planner.estimate(part));
+        }
+        included.sort((a, b) -> estimates.get(a)[0] != estimates.get(b)[0]
+                ? Long.compare(estimates.get(a)[0], estimates.get(b)[0]) : Long.compare(estimates.get(a)[1], estimates.get(b)[1]));
+        OrdinalBitmap result = null;
+        for (Query part : included)
+        {
+            if (result == null)
+            {
+                result = part.evaluate(this);
+            }
+            else if (planner.prefersVerifying(result.cardinality(), part))
+            {
+                result = verify(result, part, true);
+            }
+            else
+            {
+                OrdinalBitmap matches = part.evaluate(this);
+                long start = System.nanoTime();
+                result = OrdinalBitmap.and(result, matches);
+                planner.record("and", part, start, result);
+            }
+            if (result.isEmpty())
+            {
+                return result; // nothing left to intersect
+            }
+        }
+        if (result == null) // only NOTs
+        {
+            result = allDocuments();
+        }
+        for (int ii = 0; ii < excluded.size() && !result.isEmpty(); ii++)
+        {
+            Query part = excluded.get(ii);
+            if (planner.prefersVerifying(result.cardinality(), part))
+            {
+                result = verify(result, part, false);
+            }
+            else
+            {
+                OrdinalBitmap matches = part.evaluate(this);
+                long start = System.nanoTime();
+                result = OrdinalBitmap.andNot(result, matches);
+                planner.record("and not", part, start, result);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Checks a part of a query against each candidate document.
+     * @param candidates The documents to check
+     * @param part The part
+     * @param wanted True to keep the documents matching the part, false to
+     * keep the others (for NOT)
+     * @return The documents kept
+     */
+    private OrdinalBitmap verify(OrdinalBitmap candidates, Query part, boolean wanted)
+    {
+        long start = System.nanoTime();
+        SearchCorpus corpus = SearchCorpus.getCurrent();
+        BitSet kept = new BitSet();
+        int[] ordinals = candidates.toArray();
+        for (int ii = 0; ii < ordinals.length; ii++)
+        {
+            if (ii % STOP_CHECK_INTERVAL == STOP_CHECK_INTERVAL - 1 && deadline.check())
+            {
+                throw new CancellationException("Verifying " + part + " stopped");
+            }
+            Document doc = ds.getDocument(ordinals[ii]);
+            if (doc == null)
+            {
+                continue; // removed meanwhile
+            }
+            String text = corpus.getText(ordinals[ii]);
+            if (text == null) // newer than the corpus
+            {
+                text = SearchIndexSingleton.searchableText(doc);
+            }
+            if (part.matches(doc, text, index) == wanted)
+            {
+                kept.set(ordinals[ii]);
+            }
+        }
+        OrdinalBitmap result = OrdinalBitmap.of(kept);
+        planner.record(wanted ? "verify" : "verify not", part, start, result);
+        return result;
+    }
+
+    /**
+     * @return Ordinals of all documents, needed to evaluate NOT
+     */
+    OrdinalBitmap allDocuments()
+    {
+        if (allDocuments == null)
+        {
+            allDocuments = index.allDocuments();
+        }
+        return allDocuments;
+    }
+}
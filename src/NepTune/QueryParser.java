@@ -0,0 +1,323 @@
+/*
+ * Copyright (C) 2016 Toby Scholz 2016
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package NepTune;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Parses the searchString supplied by a client into a Query.
+ *
+ * Terms are separated by spaces; terms enclosed in "" or '' are treated as
+ * a single string. A term of the form field:value only searches that field.
+ * Terms can be combined with the (upper case) operators AND, OR and NOT, and
+ * grouped with brackets. NOT binds strongest, then AND, then OR. Terms
+ * without an operator between them are OR-ed, as they always have been,
+ * except that a NOT straight after a term means AND NOT, as that is what
+ * leaving out the AND means, so
+ *   beatles AND (abbey OR help) NOT live
+ * finds documents containing beatles and either abbey or help, but not
+ * live (to find any documents not containing live as well, use OR NOT).
+ * Parsing is lenient: stray brackets and operators are ignored.
+ *
+ * A term of the form field&gt;value (or &gt;=, &lt;, &lt;=) compares the
+ * field's values as numbers or dates, e.g. duration&gt;10m or
+ * Last-Modified&gt;=now-7d (see TypedColumn.parseBound for the forms of the
+ * value).
+ *
+ * For fuzzy searches, each word (not scoped to a field) also matches the
+ * tokens in the index within one or two edits of it, so beatels finds
+ * beatles. Short words allow fewer edits, as almost anything is within two
+ * edits of them.
+ */
+final class QueryParser {
+
+    // http://stackoverflow.com/questions/366202/regex-for-splitting-a-string-using-space-when-not-surrounded-by-single-or-double
+    private static final Pattern RANGE = Pattern.compile("([^<>]+?)(>=|<=|>|<)([^<>]+)");
+    private static final Pattern REGEX = Pattern.compile("([^\\s\"']+):\"([^\"]*)\"|([^\\s\"']+):'([^']*)'|[^\\s\"']+|\"([^\"]*)\"|'([^']*)'");
+    private static final String OPEN = "(";
+    private static final String CLOSE = ")";
+    private static final String AND = "AND";
+    private static final String OR = "OR";
+    private static final String NOT = "NOT";
+
+    private final SearchIndexSingleton index;
+    private final int fuzzy; // maximum edits, 0 for exact search
+    private final List<Object> tokens = new ArrayList<>(); // operators and brackets as String, terms as SearchTerm, ranges as Query.Range
+    private int pos = 0;
+
+    private QueryParser(SearchIndexSingleton index, int fuzzy)
+    {
+        this.index = index;
+        this.fuzzy = fuzzy;
+    }
+
+    /**
+     * @param searchString The (URL decoded) search string
+     * @param index Used to tell field names from other text containing colons
+     * @return The query
+     */
+    static Query parse(String searchString, SearchIndexSingleton index)
+    {
+        return parse(searchString, index, 0);
+    }
+
+    /**
+     * @param searchString The (URL decoded) search string
+     * @param index Used to tell field names from other text containing
+     * colons, and to look up similar words
+     * @param fuzzy Maximum number of edits (1 or 2) for words to match
+     * similar words, 0 for exact search
+     * @return The query
+     */
+    static Query parse(String searchString, SearchIndexSingleton index, int fuzzy)
+    {
+        QueryParser parser = new QueryParser(index, fuzzy);
+        parser.tokenize(searchString);
+        return parser.parseOr(0);
+    }
+
+    private void tokenize(String searchString)
+    {
+        Matcher regexMatcher = REGEX.matcher(searchString);
+        while (regexMatcher.find())
+        {
+            if (regexMatcher.group(1) != null || regexMatcher.group(3) != null)
+            {
+                // Field with quoted value, e.g. album:"abbey road"
+                String field = regexMatcher.group(1) != null ? regexMatcher.group(1) : regexMatcher.group(3);
+                String value = regexMatcher.group(1) != null ? regexMatcher.group(2) : regexMatcher.group(4);
+                int opened = addOpeningBrackets(field);
+                field = field.substring(opened);
+                if (!index.resolveField(field).isEmpty())
+                {
+                    tokens.add(new SearchTerm(field, value));
+                }
+                else // not a field we know, search for both parts
+                {
+                    tokens.add(new SearchTerm(field + ":"));
+                    tokens.add(new SearchTerm(value));
+                }
+            }
+            else if (regexMatcher.group(5) != null)
+            {
+                // Double-quoted string without the quotes, e.g. "apple pie"
+                tokens.add(new SearchTerm(regexMatcher.group(5)));
+            }
+            else if (regexMatcher.group(6) != null)
+            {
+                // Single-quoted string without the quotes, e.g. 'apple pie'
+                tokens.add(new SearchTerm(regexMatcher.group(6)));
+            }
+            else
+            {
+                addWord(regexMatcher.group());
+            }
+        }
+    }
+
+    /**
+     * Adds an unquoted word, which may be an operator, have brackets
+     * attached, or be field and value, e.g. artist:beatles. Field names can
+     * contain colons themselves, e.g. xmpDM:artist:beatles, so the colons are
+     * tried from left to right.
+     */
+    private void addWord(String word)
+    {
+        int opened = addOpeningBrackets(word);
+        Query.Range range;
+        int closed = 0;
+        while (closed < word.length() - opened && word.charAt(word.length() - 1 - closed) == ')')
+        {
+            closed++;
+        }
+        word = word.substring(opened, word.length() - closed);
+        if (word.equals(AND) || word.equals(OR) || word.equals(NOT))
+        {
+            tokens.add(word);
+        }
+        else if (!word.isEmpty() && (range = parseRange(word)) != null)
+        {
+            tokens.add(range);
+        }
+        else if (!word.isEmpty())
+        {
+            SearchTerm term = new SearchTerm(word);
+            for (int colon = word.indexOf(':'); colon > 0 && colon < word.length() - 1; colon = word.indexOf(':', colon + 1))
+            {
+                if (!index.resolveField(word.substring(0, colon)).isEmpty())
+                {
+                    term = new SearchTerm(word.substring(0, colon), word.substring(colon + 1));
+                    break;
+                }
+            }
+            tokens.add(term);
+        }
+        for (int ii = 0; ii < closed; ii++)
+        {
+            tokens.add(CLOSE);
+        }
+    }
+
+    /**
+     * @return The range, if the word compares a field we know with a number
+     * or date, else null and the word is searched for as it is
+     */
+    private Query.Range parseRange(String word)
+    {
+        Matcher matcher = RANGE.matcher(word);
+        if (!matcher.matches() || index.resolveField(matcher.group(1)).isEmpty())
+        {
+            return null;
+        }
+        Query.Range range = new Query.Range(matcher.group(1), matcher.group(2), matcher.group(3));
+        return range.isValid() ? range : null;
+    }
+
+    /** Adds a token for each leading opening bracket of the word */
+    private int addOpeningBrackets(String word)
+    {
+        int count = 0;
+        while (count < word.length() && word.charAt(count) == '(')
+        {
+            tokens.add(OPEN);
+            count++;
+        }
+        return count;
+    }
+
+    private Object peek()
+    {
+        return pos < tokens.size() ? tokens.get(pos) : null;
+    }
+
+    /** or := and { [OR] and } */
+    private Query parseOr(int depth)
+    {
+        List<Query> parts = new ArrayList<>();
+        while (pos < tokens.size())
+        {
+            Object token = peek();
+            if (CLOSE.equals(token))
+            {
+                if (depth > 0)
+                {
+                    break;
+                }
+                pos++; // unmatched, ignore
+                continue;
+            }
+            if (OR.equals(token))
+            {
+                pos++;
+                continue;
+            }
+            Query part = parseAnd(depth);
+            if (part != null)
+            {
+                parts.add(part);
+            }
+        }
+        return Query.or(parts);
+    }
+
+    /** and := not { AND not | not-starting-with-NOT } */
+    private Query parseAnd(int depth)
+    {
+        List<Query> parts = new ArrayList<>();
+        Query part = parseNot(depth);
+        if (part != null)
+        {
+            parts.add(part);
+        }
+        while (AND.equals(peek()) || !parts.isEmpty() && NOT.equals(peek())) // a NOT after a term means AND NOT
+        {
+            if (AND.equals(peek()))
+            {
+                pos++;
+            }
+            part = parseNot(depth);
+            if (part != null)
+            {
+                parts.add(part);
+            }
+        }
+        return parts.isEmpty() ? null : Query.and(parts);
+    }
+
+    /** not := NOT not | primary */
+    private Query parseNot(int depth)
+    {
+        if (NOT.equals(peek()))
+        {
+            pos++;
+            Query part = parseNot(depth);
+            return part == null ? null : new Query.Not(part);
+        }
+        return parsePrimary(depth);
+    }
+
+    /** primary := ( or ) | term | range */
+    private Query parsePrimary(int depth)
+    {
+        Object token = peek();
+        if (OPEN.equals(token))
+        {
+            pos++;
+            Query group = parseOr(depth + 1);
+            if (CLOSE.equals(peek()))
+            {
+                pos++;
+            }
+            return group;
+        }
+        if (token instanceof SearchTerm)
+        {
+            pos++;
+            return termQuery((SearchTerm) token);
+        }
+        if (token instanceof Query.Range)
+        {
+            pos++;
+            return (Query) token;
+        }
+        return null; // an operator or bracket where a term should be
+    }
+
+    /** A term, or for fuzzy searches the term or any similar word */
+    private Query termQuery(SearchTerm term)
+    {
+        Query exact = new Query.Term(term);
+        int edits = term.text.length() < 3 ? 0 : term.text.length() < 6 ? Math.min(fuzzy, 1) : fuzzy;
+        if (edits == 0 || term.isScoped() || !SearchIndexSingleton.isToken(term.text))
+        {
+            return exact;
+        }
+        List<Query> parts = new ArrayList<>();
+        parts.add(exact);
+        for (String similar : index.fuzzyTokens(term.text, edits))
+        {
+            if (!similar.equals(term.text))
+            {
+                parts.add(new Query.Term(new SearchTerm(similar)));
+            }
+        }
+        return Query.or(parts);
+    }
+}
@@ -0,0 +1,246 @@
+/*
+ * Copyright (C) 2016 Toby Scholz 2016
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package NepTune;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.bson.Document;
+
+/**
+ * Decides how the QueryEvaluator goes about a query, from statistics the
+ * indexes keep anyway: the length of posting lists for terms, the number
+ * of documents and distinct values per field, and the sorted values of
+ * typed columns for ranges. From these it estimates how many documents a
+ * part of a query matches (an upper bound), and how much work it is to
+ * find them, counted in postings or values looked at.
+ *
+ * The parts of an AND are then evaluated most selective first. Once few
+ * documents are left, the remaining parts are checked against just these
+ * documents (verified), where that is cheaper than looking them up. And a
+ * term is found by scanning all documents rather than from the index only
+ * if the index would have to verify more candidates than a scan costs.
+ *
+ * The estimates are rough, but only need to get the order of magnitude
+ * right. If asked to, the planner also records what was done and how long
+ * it took, for explain=1.
+ */
+final class QueryPlanner {
+
+    static final int VERIFY_COST = 8; // searching the text of one document, in postings looked at
+
+    private final SearchIndexSingleton index;
+    private final long documentCount;
+    private final List<Document> stages; // null unless explaining
+
+    /**
+     * @param index The search index, for its statistics
+     * @param explain True to record the stages of evaluation
+     */
+    QueryPlanner(SearchIndexSingleton index, boolean explain)
+    {
+        this.index = index;
+        this.documentCount = index.getDocumentCount();
+        this.stages = explain ? new ArrayList<>() : null;
+    }
+
+    /**
+     * @param query A query or part of one
+     * @return Estimated number of matching documents (at most) and the
+     * cost of finding them
+     */
+    long[] estimate(Query query)
+    {
+        if (query instanceof Query.Term)
+        {
+            return estimate(((Query.Term) query).term);
+        }
+        if (query instanceof Query.Range)
+        {
+            return estimate((Query.Range) query);
+        }
+        if (query instanceof Query.Not)
+        {
+            long[] part = estimate(((Query.Not) query).part);
+            return new long[] { documentCount, part[1] + documentCount / 64 }; // at most all, and a bitmap operation
+        }
+        List<Query> parts = query instanceof Query.And ? ((Query.And) query).parts : ((Query.Or) query).parts;
+        long matches = query instanceof Query.And ? documentCount : 0;
+        long cost = 0;
+        for (Query part : parts)
+        {
+            long[] estimate = estimate(part);
+            matches = query instanceof Query.And ? Math.min(matches, estimate[0]) : Math.min(documentCount, matches + estimate[0]);
+            cost += estimate[1];
+        }
+        return new long[] { matches, cost };
+    }
+
+    /**
+     * @param term A search term
+     * @return Estimated matches and cost, as for queries
+     */
+    long[] estimate(SearchTerm term)
+    {
+        if (!index.covers(term))
+        {
+            return new long[] { documentCount, scanCost() };
+        }
+        long[] statistics = index.termStatistics(term);
+        if (!term.isScoped() && term.text.length() >= 3) // candidates are verified
+        {
+            statistics[1] += statistics[0] * VERIFY_COST;
+        }
+        return statistics;
+    }
+
+    private long[] estimate(Query.Range range)
+    {
+        ColumnStore store = ColumnStore.getCurrent();
+        long matches = 0;
+        long cost = 0;
+        for (String key : index.resolveField(range.field))
+        {
+            TypedColumn column = store.getColumn(key).getTypedColumn();
+            double bound = column == null ? Double.NaN : TypedColumn.parseBound(range.bound, column.type, range.now);
+            if (!Double.isNaN(bound))
+            {
+                int size = column.rangeSize(range.operator, bound);
+                matches += size;
+                cost += size + 32; // the binary searches
+            }
+        }
+        return new long[] { Math.min(documentCount, matches), cost };
+    }
+
+    /** @return Cost of scanning all documents, spread over the search threads */
+    long scanCost()
+    {
+        return documentCount * VERIFY_COST / SpeedyGonzales.PARALLELISM;
+    }
+
+    /**
+     * @param term A search term
+     * @return True if scanning is expected to be cheaper than the index.
+     * Terms scoped to a field are always found from the index, as a scan
+     * searches the whole text.
+     */
+    boolean prefersScan(SearchTerm term)
+    {
+        return !term.isScoped() && index.covers(term) && estimate(term)[1] > scanCost();
+    }
+
+    /**
+     * @param candidates Number of documents left
+     * @param part A part of an AND still to apply
+     * @return True if checking the part against each candidate is expected
+     * to be cheaper than finding all its matches
+     */
+    boolean prefersVerifying(int candidates, Query part)
+    {
+        return isVerifiable(part) && (long) candidates * VERIFY_COST < estimate(part)[1];
+    }
+
+    /**
+     * Ranges compare the values of a column as the type of the whole
+     * column, which a single document does not tell, so are not verified.
+     */
+    private static boolean isVerifiable(Query query)
+    {
+        if (query instanceof Query.Term)
+        {
+            return true;
+        }
+        if (query instanceof Query.Not)
+        {
+            return isVerifiable(((Query.Not) query).part);
+        }
+        if (query instanceof Query.And || query instanceof Query.Or)
+        {
+            for (Query part : query instanceof Query.And ? ((Query.And) query).parts : ((Query.Or) query).parts)
+            {
+                if (!isVerifiable(part))
+                {
+                    return false;
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Records a stage of evaluation with its estimate, if explaining.
+     * @param step What was done, e.g. index, scan or verify
+     * @param query The Query or SearchTerm it was done for
+     * @param startNanos When the stage started (System.nanoTime())
+     * @param result Its result
+     */
+    void record(String step, Object query, long startNanos, OrdinalBitmap result)
+    {
+        if (stages != null)
+        {
+            record(step, query, startNanos, result.cardinality());
+        }
+    }
+
+    /**
+     * Records a stage of evaluation with its estimate, if explaining, e.g.
+     * of a search not done by the QueryEvaluator.
+     * @param step What was done, e.g. index or scan
+     * @param query The Query or SearchTerm it was done for
+     * @param startNanos When the stage started (System.nanoTime())
+     * @param matches Number of documents found
+     */
+    void record(String step, Object query, long startNanos, int matches)
+    {
+        if (stages == null)
+        {
+            return;
+        }
+        long nanos = System.nanoTime() - startNanos;
+        long[] estimate = query instanceof SearchTerm ? estimate((SearchTerm) query) : estimate((Query) query);
+        stages.add(new Document("step", step)
+                .append("query", query.toString())
+                .append("estimatedMatches", (int) Math.min(Integer.MAX_VALUE, estimate[0])) // long would be {"$numberLong" : ...}
+                .append("estimatedCost", (int) Math.min(Integer.MAX_VALUE, estimate[1]))
+                .append("matches", matches)
+                .append("ms", nanos / 1e6));
+    }
+
+    /**
+     * Records a stage not about a part of the query, e.g. sorting.
+     */
+    void record(String step, long startNanos)
+    {
+        if (stages != null)
+        {
+            stages.add(new Document("step", step).append("ms", (System.nanoTime() - startNanos) / 1e6));
+        }
+    }
+
+    /** @return True if the stages are recorded */
+    boolean isExplaining()
+    {
+        return stages != null;
+    }
+
+    /** @return The stages recorded, in order */
+    List<Document> getStages()
+    {
+        return stages;
+    }
+}
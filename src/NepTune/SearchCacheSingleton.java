@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2016 Toby Scholz 2016
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package NepTune;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Least recently used cache of search results (as document ordinals).
+ * Every entry remembers the data store version it was computed for, and is
+ * discarded instead of returned once the data store has changed. The search
+ * index is updated before a version is published, so the version stands for
+ * the state of the index as well (see DataStoreSingleton.publish).
+ * The size is set with 'searchCacheSize' in the config file (default 1000,
+ * 0 disables the cache).
+ */
+public class SearchCacheSingleton {
+
+    private static final int DEFAULT_SIZE = 1000;
+    private static SearchCacheSingleton instance = null;
+
+    private final int maxEntries;
+    private final Map<String, CachedResult> entries;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    DataStoreSingleton ds = DataStoreSingleton.getInstance();
+
+    public static synchronized SearchCacheSingleton getInstance()
+    {
+        if(instance==null)
+        {
+            instance = new SearchCacheSingleton();
+        }
+        return instance;
+    }
+
+    SearchCacheSingleton()
+    {
+        int size = DEFAULT_SIZE;
+        String property = ConfigReaderSingleton.getInstance().getProperty("searchCacheSize");
+        if (property != null && !property.isEmpty())
+        {
+            try
+            {
+                size = Integer.parseInt(property.trim());
+            }
+            catch(NumberFormatException e)
+            {
+                LOG.WARNING("Invalid searchCacheSize " + property + ", using " + DEFAULT_SIZE);
+            }
+        }
+        maxEntries = size;
+        entries = new LinkedHashMap<String, CachedResult>(16, 0.75f, true) // access order, eldest is least recently used
+        {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedResult> eldest)
+            {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * @param key Canonical form of the query (see Query.toString())
+     * @return The cached ordinals, or null if not cached or out of date.
+     */
+    synchronized int[] get(String key)
+    {
+        CachedResult entry = entries.get(key);
+        if (entry != null && entry.version == ds.getVersion())
+        {
+            hits.incrementAndGet();
+            return entry.ordinals;
+        }
+        if (entry != null)
+        {
+            entries.remove(key);
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * @param key Canonical form of the query (see Query.toString())
+     * @param version Data store version read before the search was run
+     * @param ordinals The search result
+     */
+    synchronized void put(String key, long version, int[] ordinals)
+    {
+        if (maxEntries > 0 && version == ds.getVersion())
+        {
+            entries.put(key, new CachedResult(version, ordinals));
+        }
+    }
+
+    public long getHits()
+    {
+        return hits.get();
+    }
+
+    public long getMisses()
+    {
+        return misses.get();
+    }
+
+    public synchronized int getSize()
+    {
+        return entries.size();
+    }
+
+    private static class CachedResult {
+        final long version;
+        final int[] ordinals;
+
+        CachedResult(long version, int[] ordinals)
+        {
+            this.version = version;
+            this.ordinals = ordinals;
+        }
+    }
+}
@@ -0,0 +1,256 @@
+/*
+ * Copyright (C) 2016 Toby Scholz 2016
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package NepTune;
+
+import java.util.List;
+
+/**
+ * The documents of a version of the DataStoreSingleton as searched by text,
+ * split into sections of consecutive ordinals, which are scanned in
+ * parallel.
+ * The searchable text of a document is its keys and values in lower case
+ * (see SearchIndexSingleton.searchableText), but it is not held as such:
+ * documents are matched key by key and value by value from their encoding,
+ * whose dictionaries keep the text of every value shared by documents (see
+ * DocumentCodec). A Scan remembers which of these matched, so each is only
+ * matched once per search, however many documents have it.
+ * A corpus is only a view of a version, and all searches of the version
+ * share it. The data store makes the corpus of a version when it publishes
+ * it (update()).
+ */
+final class SearchCorpus {
+
+    private static final int SECTION_SIZE = 16384; // documents per section
+    private static final byte UNKNOWN = 0;          // states of a value in a Scan
+    private static final byte MATCH = 1;
+    private static final byte NO_MATCH = 2;
+    private static volatile SearchCorpus current = new SearchCorpus(DataSnapshot.EMPTY);
+
+    private final DataSnapshot snapshot;
+    private final DocumentCodec codec;
+    private final int lyrics;         // key code of the lyrics, which are not searched
+    private final int[] sectionStart; // section ii covers ordinals sectionStart[ii] to sectionStart[ii+1]
+
+    /**
+     * @return The corpus for the current state of the data store
+     */
+    static SearchCorpus getCurrent()
+    {
+        return current;
+    }
+
+    /**
+     * Makes the corpus of a new version current. Only called by the writer,
+     * before the version is published (see DataStoreSingleton.publish()).
+     * @param next The new version
+     */
+    static void update(DataSnapshot next)
+    {
+        current = new SearchCorpus(next);
+    }
+
+    private SearchCorpus(DataSnapshot snapshot)
+    {
+        this.snapshot = snapshot;
+        codec = snapshot.getCodec();
+        lyrics = codec.getKeyCode(SearchIndexSingleton.LYRICS);
+        int size = snapshot.getOrdinalCount();
+        int sections = Math.max(1, (size + SECTION_SIZE - 1) / SECTION_SIZE);
+        sectionStart = new int[sections + 1];
+        for (int ii = 0; ii <= sections; ii++)
+        {
+            sectionStart[ii] = Math.min(size, ii * SECTION_SIZE);
+        }
+    }
+
+    /**
+     * @param ordinal Document ordinal
+     * @return True if the document is in the corpus, false if it was
+     * removed, or added after the corpus was made
+     */
+    boolean contains(int ordinal)
+    {
+        return snapshot.contains(ordinal);
+    }
+
+    /**
+     * @param ordinal Document ordinal
+     * @return The searchable text of the document, newly built, or null if
+     * it is not in the corpus
+     */
+    String getText(int ordinal)
+    {
+        int[] row = snapshot.getRow(ordinal);
+        if (row == null)
+        {
+            return null;
+        }
+        StringBuilder text = new StringBuilder();
+        for (int pos = 0; pos < row.length; pos += 2)
+        {
+            if (row[pos] != lyrics)
+            {
+                text.append(codec.getKeyText(row[pos])).append('\n').append(codec.getText(row[pos], row[pos + 1])).append('\n');
+            }
+        }
+        return text.toString();
+    }
+
+    /**
+     * @param ordinal Document ordinal, of a document in the corpus
+     * @param term Search term, in lower case
+     * @return True if the searchable text of the document contains the term
+     */
+    boolean contains(int ordinal, String term)
+    {
+        int[] row = snapshot.getRow(ordinal);
+        for (int pos = 0; pos < row.length; pos += 2)
+        {
+            if (row[pos] != lyrics && (codec.getKeyText(row[pos]).contains(term) || codec.getText(row[pos], row[pos + 1]).contains(term)))
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param terms Search terms, in lower case
+     * @return A new scan of the corpus for the terms, to be shared by the
+     * threads of a search
+     */
+    Scan scan(List<String> terms)
+    {
+        return new Scan(terms);
+    }
+
+    /** @return Number of ordinals covered, including removed documents */
+    int getSize()
+    {
+        return snapshot.getOrdinalCount();
+    }
+
+    int getSectionCount()
+    {
+        return sectionStart.length - 1;
+    }
+
+    /** @return First ordinal of the section */
+    int getSectionStart(int section)
+    {
+        return sectionStart[section];
+    }
+
+    /** @return Last ordinal of the section, exclusive */
+    int getSectionEnd(int section)
+    {
+        return sectionStart[section + 1];
+    }
+
+    /**
+     * Matches documents of the corpus against the terms of a search. The
+     * outcome for each key, and each value of a dictionary, is kept, so
+     * documents sharing it do not match it again, and the values of keys
+     * that cannot contain a term are skipped (DocumentCodec.mayContain).
+     */
+    final class Scan {
+
+        private final MultiPatternMatcher matcher;
+        private final boolean nullMatches;
+        private final boolean[] keyMatches;    // by key code
+        private final boolean[] valuesMatched; // by key code, false if no value of the key can match
+        private final byte[][] valueMatches;   // by key code, then value code; null for raw values
+
+        private Scan(List<String> terms)
+        {
+            matcher = new MultiPatternMatcher(terms);
+            nullMatches = matcher.matchesAny(SearchIndexSingleton.searchableValue(null));
+            int keyCount = codec.getKeyCount(); // at least the keys of the snapshot
+            keyMatches = new boolean[keyCount];
+            valuesMatched = new boolean[keyCount];
+            valueMatches = new byte[keyCount][];
+            for (int key = 0; key < keyCount; key++)
+            {
+                keyMatches[key] = key != lyrics && matcher.matchesAny(codec.getKeyText(key));
+                for (String term : terms)
+                {
+                    valuesMatched[key] |= key != lyrics && codec.mayContain(key, term);
+                }
+                valueMatches[key] = codec.isRaw(key) ? null : new byte[codec.getValueCount(key)];
+            }
+        }
+
+        /**
+         * @param ordinal Document ordinal
+         * @return True if the document is in the corpus, and its searchable
+         * text contains any of the terms
+         */
+        boolean matches(int ordinal)
+        {
+            int[] row = snapshot.getRow(ordinal);
+            if (row == null)
+            {
+                return false;
+            }
+            for (int pos = 0; pos < row.length; pos += 2)
+            {
+                int key = row[pos];
+                if (key == lyrics)
+                {
+                    continue;
+                }
+                if (keyMatches[key])
+                {
+                    return true;
+                }
+                int value = row[pos + 1];
+                if (value < 0) // null
+                {
+                    if (nullMatches)
+                    {
+                        return true;
+                    }
+                    continue;
+                }
+                if (!valuesMatched[key])
+                {
+                    continue;
+                }
+                byte[] states = valueMatches[key];
+                if (states == null) // raw, so not shared
+                {
+                    if (matcher.matchesAny(codec.getText(key, value)))
+                    {
+                        return true;
+                    }
+                    continue;
+                }
+                byte state = states[value];
+                if (state == UNKNOWN)
+                {
+                    state = matcher.matchesAny(codec.getText(key, value)) ? MATCH : NO_MATCH;
+                    states[value] = state; // if two threads get here, both come to the same
+                }
+                if (state == MATCH)
+                {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+}
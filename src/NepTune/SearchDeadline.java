@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) 2016 Toby Scholz 2016
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package NepTune;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Tells a search when to stop: once its time is up, or once the client
+ * it is for has gone away. Whatever was found until then is returned as
+ * an incomplete result.
+ * The default time is set with 'searchTimeout' (milliseconds) in the config
+ * file (default 10000, 0 for no limit); clients can ask for a different one.
+ *
+ * The thread waiting for the search result calls check(), which looks at
+ * the clock and the client connection. The worker threads only look at the
+ * flag check() sets, with isStopped().
+ */
+final class SearchDeadline {
+
+    private static final long DEFAULT_TIMEOUT = 10000; // ms
+    private static final long CONNECTION_CHECK_INTERVAL = TimeUnit.MILLISECONDS.toNanos(50);
+    private static Long configuredTimeout = null;
+
+    private final long deadline; // System.nanoTime(), Long.MAX_VALUE for none
+    private final BooleanSupplier disconnected; // may be null
+    private long lastConnectionCheck;
+    private volatile boolean stopped = false;
+
+    /**
+     * @param timeout Milliseconds from now, 0 for no limit
+     * @param disconnected Tells whether the client has gone away, null if
+     * there is no client to check
+     */
+    SearchDeadline(long timeout, BooleanSupplier disconnected)
+    {
+        long now = System.nanoTime();
+        this.deadline = timeout <= 0 ? Long.MAX_VALUE : now + TimeUnit.MILLISECONDS.toNanos(timeout);
+        this.disconnected = disconnected;
+        this.lastConnectionCheck = now;
+    }
+
+    /**
+     * @return A deadline after the configured search timeout, not checking
+     * any client
+     */
+    static SearchDeadline afterDefaultTimeout()
+    {
+        return new SearchDeadline(getDefaultTimeout(), null);
+    }
+
+    /**
+     * @param requested Timeout in milliseconds asked for by a client, 0 for
+     * none given
+     * @return The timeout to use: the requested one, but no longer than the
+     * configured search timeout, so only the config file can lift the limit
+     */
+    static long limit(long requested)
+    {
+        long configured = getDefaultTimeout();
+        if (requested <= 0)
+        {
+            return configured;
+        }
+        return configured <= 0 ? requested : Math.min(requested, configured);
+    }
+
+    /** @return The configured search timeout in milliseconds */
+    static synchronized long getDefaultTimeout()
+    {
+        if (configuredTimeout == null)
+        {
+            long timeout = DEFAULT_TIMEOUT;
+            String property = ConfigReaderSingleton.getInstance().getProperty("searchTimeout");
+            if (property != null && !property.isEmpty())
+            {
+                try
+                {
+                    timeout = Long.parseLong(property.trim());
+                }
+                catch(NumberFormatException e)
+                {
+                    LOG.WARNING("Invalid searchTimeout " + property + ", using " + DEFAULT_TIMEOUT);
+                }
+            }
+            configuredTimeout = timeout;
+        }
+        return configuredTimeout;
+    }
+
+    /**
+     * Stops the search, e.g. because the result can no longer be sent.
+     */
+    void stop()
+    {
+        stopped = true;
+    }
+
+    /**
+     * @return True if the search should stop. Cheap, for the worker threads.
+     */
+    boolean isStopped()
+    {
+        return stopped;
+    }
+
+    /**
+     * Stops the search if the time is up or the client has disconnected.
+     * Only to be called by the thread waiting for the result.
+     * @return True if the search should stop
+     */
+    boolean check()
+    {
+        if (stopped)
+        {
+            return true;
+        }
+        long now = System.nanoTime();
+        if (now - deadline >= 0 && deadline != Long.MAX_VALUE)
+        {
+            LOG.INFO("Search timed out, returning what was found so far");
+            stopped = true;
+        }
+        else if (disconnected != null && now - lastConnectionCheck >= CONNECTION_CHECK_INTERVAL)
+        {
+            lastConnectionCheck = now;
+            if (disconnected.getAsBoolean())
+            {
+                LOG.INFO("Client disconnected, stopping search");
+                stopped = true;
+            }
+        }
+        return stopped;
+    }
+
+    /**
+     * @return Nanoseconds until the time is up, at most maxWait
+     */
+    long remaining(long maxWait)
+    {
+        return deadline == Long.MAX_VALUE ? maxWait : Math.max(0, Math.min(maxWait, deadline - System.nanoTime()));
+    }
+}
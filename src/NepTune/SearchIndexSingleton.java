@@ -0,0 +1,1019 @@
+/*
+ * Copyright (C) 2016 Toby Scholz 2016
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package NepTune;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import org.bson.Document;
+
+/**
+ * Inverted index over the documents in the DataStoreSingleton, mapping every
+ * token of a document to the ordinals of the documents containing it.
+ * It is built once in '--daemon' mode after the database has been read, and
+ * kept up to date by DataStoreSingleton.publish(), whenever Maintenance
+ * publishes changes.
+ *
+ * Search semantics are the same as for Speedy Gonzales: a document matches
+ * if one of its keys or values, in lower case, contains any of the search
+ * terms (see searchableText).
+ * Terms of three or more characters are looked up in the trigram index: only
+ * documents containing all trigrams of a term can contain the term, and these
+ * candidates are then verified against the document text.
+ * Shorter terms are looked up in the token index. A token is a run of letters
+ * or digits, so a term made up of letters and digits only is contained in a
+ * document exactly if it is contained in one of its tokens. Anything else can
+ * not be answered from the index, and the caller has to fall back to scanning.
+ *
+ * In addition, there is a FieldIndex per metadata key, for terms scoped to a
+ * field (e.g. artist:beatles), which are always answered from the index.
+ * Lyrics are the exception: they would be most of the text to index and
+ * scan, so they are left out of the searchable text (and so of unscoped
+ * searches), and get a full text index of their own instead, only searched
+ * by terms scoped to lyrics (lyrics:love).
+ *
+ * The token index also keeps how often each token occurs in a document, and
+ * the number of tokens per document, to rank results by relevance (BM25).
+ *
+ * Building the index takes much longer than reading it, so it is written to
+ * the snapshot file too (see SnapshotFile), and read from there at startup.
+ */
+public class SearchIndexSingleton {
+
+    private static SearchIndexSingleton instance = null;
+    private static final double BM25_K1 = 1.2; // how quickly repeating a token stops adding to the score
+    private static final double BM25_B = 0.75; // how much longer documents are penalized
+    private static final int TOKENS_PER_DOCUMENT_CHECK = 16; // a document's text is much longer than a token
+    static final String LYRICS = "lyrics"; // metadata key added by MetaDataParser_tikaGeneric
+    private final Map<String, PostingList> tokens = new HashMap<>();
+    private final Map<Long, PostingList> trigrams = new HashMap<>(); // three chars packed into a long
+    private final Map<String, FieldIndex> fields = new HashMap<>(); // by metadata key, except lyrics
+    private TextIndex lyrics = new TextIndex();
+    private final OrdinalBitmap documents = new OrdinalBitmap(); // all indexed, for NOT queries
+    private int[] lengths = new int[0]; // tokens per document, by ordinal
+    private long totalLength = 0; // of all indexed documents
+    private volatile String[] sortedTokens = null; // the token dictionary for fuzzy search, null when changed
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock(); // Maintenance writes while clients read
+    private volatile boolean built = false; // by build() or read()
+    DataStoreSingleton ds = DataStoreSingleton.getInstance();
+
+    public static synchronized SearchIndexSingleton getInstance()
+    {
+        if(instance==null)
+        {
+            instance = new SearchIndexSingleton();
+        }
+        return instance;
+    }
+
+    /**
+     * (Re-)creates the index from scratch from the documents currently
+     * held by the DataStoreSingleton.
+     */
+    void build()
+    {
+        long start = System.currentTimeMillis();
+        lock.writeLock().lock();
+        try
+        {
+            tokens.clear();
+            trigrams.clear();
+            fields.clear();
+            lyrics = new TextIndex();
+            documents.clear();
+            sortedTokens = null;
+            DataSnapshot snapshot = ds.getSnapshot();
+            lengths = new int[snapshot.getOrdinalCount()];
+            totalLength = 0;
+            for (int ordinal = 0; ordinal < snapshot.getOrdinalCount(); ordinal++)
+            {
+                Document doc = snapshot.getDocument(ordinal);
+                if (doc != null)
+                {
+                    indexDocument(ordinal, doc);
+                }
+            }
+            built = true;
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
+        LOG.INFO("Search index built with " + tokens.size() + " tokens and " + trigrams.size() + " trigrams in " + (System.currentTimeMillis() - start) + "ms");
+    }
+
+    /**
+     * @return True once the index has been built, or read from the snapshot
+     * file
+     */
+    boolean isBuilt()
+    {
+        return built;
+    }
+
+    /**
+     * Writes the index to a snapshot file (see SnapshotFile), after the
+     * version of the DataStoreSingleton it indexes.
+     * @param out The file
+     * @param newOrdinals The ordinal each document has in the file, -1 for
+     * removed ones
+     * @throws IOException
+     */
+    void write(DataOutputStream out, int[] newOrdinals) throws IOException
+    {
+        lock.readLock().lock();
+        try
+        {
+            PostingList.writeIndex(out, tokens, newOrdinals);
+            PostingList.writeTrigramIndex(out, trigrams, newOrdinals);
+            out.writeInt(fields.size());
+            for (Map.Entry<String, FieldIndex> entry : fields.entrySet())
+            {
+                SnapshotFile.writeString(out, entry.getKey());
+                entry.getValue().write(out, newOrdinals);
+            }
+            lyrics.write(out, newOrdinals);
+            SnapshotFile.writeOrdinals(out, documents, newOrdinals);
+            int count = 0;
+            for (int newOrdinal : newOrdinals)
+            {
+                count += newOrdinal >= 0 ? 1 : 0;
+            }
+            out.writeInt(count);
+            for (int ordinal = 0; ordinal < newOrdinals.length; ordinal++)
+            {
+                if (newOrdinals[ordinal] >= 0)
+                {
+                    out.writeInt(ordinal < lengths.length ? lengths[ordinal] : 0);
+                }
+            }
+        }
+        finally
+        {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Replaces the index with the one in a snapshot file, as written by
+     * write(). The DataStoreSingleton must hold the documents of the file.
+     * The index only counts as built once readComplete() is called, after
+     * the rest of the file has been checked and the documents loaded; if
+     * anything fails before, it is left incomplete, to be built instead.
+     * @param in The file, after the documents
+     * @throws IOException
+     */
+    void read(SnapshotFile.Input in) throws IOException
+    {
+        lock.writeLock().lock();
+        try
+        {
+            built = false;
+            tokens.clear();
+            trigrams.clear();
+            fields.clear();
+            documents.clear();
+            sortedTokens = null;
+            PostingList.readIndex(in, tokens);
+            PostingList.readTrigramIndex(in, trigrams);
+            for (int count = in.readCount(); count > 0; count--)
+            {
+                String key = in.readString();
+                FieldIndex field = FieldIndex.read(in);
+                if (!field.isEmpty())
+                {
+                    fields.put(key, field);
+                }
+            }
+            lyrics = TextIndex.read(in);
+            for (int ordinal : in.readInts(in.readCount()))
+            {
+                documents.add(ordinal);
+            }
+            lengths = in.readInts(in.readCount());
+            totalLength = 0;
+            for (int length : lengths)
+            {
+                totalLength += length;
+            }
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Marks the index last read by read() as built, once the whole snapshot
+     * file has been read.
+     */
+    void readComplete()
+    {
+        built = true;
+    }
+
+    /**
+     * Brings the index from one version of the DataStoreSingleton to the
+     * next, before that is published (see DataStoreSingleton.publish), so
+     * readers never see a version the index does not cover yet. Searches
+     * wait for the index to be updated, but only for the changes of one
+     * publish.
+     * Until the index is built, changes are left to build().
+     * @param before The current version
+     * @param after The version to be published
+     * @param ordinals The documents that may differ between the two
+     */
+    void update(DataSnapshot before, DataSnapshot after, int[] ordinals)
+    {
+        List<Integer> changed = new ArrayList<>();
+        List<Document> removed = new ArrayList<>(); // decoded before locking
+        List<Document> added = new ArrayList<>();
+        for (int ordinal : ordinals)
+        {
+            if (before.getRow(ordinal) != after.getRow(ordinal))
+            {
+                changed.add(ordinal);
+                removed.add(before.getDocument(ordinal));
+                added.add(after.getDocument(ordinal));
+            }
+        }
+        lock.writeLock().lock();
+        try
+        {
+            if (!built)
+            {
+                return;
+            }
+            for (int ii = 0; ii < changed.size(); ii++)
+            {
+                if (removed.get(ii) != null)
+                {
+                    unindexDocument(changed.get(ii), removed.get(ii));
+                }
+                if (added.get(ii) != null)
+                {
+                    indexDocument(changed.get(ii), added.get(ii));
+                }
+            }
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Finds the documents containing any of the search terms.
+     * @param searchTerms The terms we want to find in the collection
+     * @param maxResults Lookup may stop once this many matches are found.
+     * The first maxResults ordinals returned are always those of the full
+     * result, as each term finds its own first maxResults, in ascending
+     * order, and the union of those holds the first ones of all terms.
+     * Terms scoped to a field do not stop early.
+     * @return Ordinals of the matching documents in ascending order, or null
+     * if the query cannot be answered from the index.
+     */
+    int[] search(List<SearchTerm> searchTerms, int maxResults)
+    {
+        for (SearchTerm term : searchTerms)
+        {
+            if (!covers(term))
+            {
+                return null;
+            }
+        }
+        OrdinalBitmap matches = new OrdinalBitmap();
+        for (SearchTerm term : searchTerms)
+        {
+            matches = OrdinalBitmap.or(matches, findTerm(term, maxResults));
+        }
+        return matches.toArray();
+    }
+
+    /**
+     * @param term A search term
+     * @return True if findTerm can answer it
+     */
+    boolean covers(SearchTerm term)
+    {
+        return term.isScoped() || term.text.length() >= 3 || isToken(term.text);
+    }
+
+    /**
+     * Finds the documents matching a single search term.
+     * @param term The term
+     * @param maxResults Lookup may stop once the first (lowest) this many
+     * matches are found
+     * @return Ordinals of the matching documents, or null if the term cannot
+     * be answered from the index.
+     */
+    OrdinalBitmap findTerm(SearchTerm term, int maxResults)
+    {
+        if (!covers(term))
+        {
+            return null;
+        }
+        List<SearchTerm> terms = new ArrayList<>();
+        terms.add(term);
+        if (term.isScoped())
+        {
+            return findScoped(terms);
+        }
+        BitSet matches = new BitSet();
+        lock.readLock().lock();
+        try
+        {
+            if (term.text.length() >= 3)
+            {
+                findInTrigrams(term.text, matches, maxResults);
+            }
+            else
+            {
+                findInTokens(term.text, matches, maxResults);
+            }
+        }
+        finally
+        {
+            lock.readLock().unlock();
+        }
+        return OrdinalBitmap.of(matches);
+    }
+
+    /**
+     * Finds the documents matching any of the scoped search terms, looking
+     * only at the values of the fields they are scoped to.
+     * @param scopedTerms Terms with a field
+     * @return The ordinals of the matching documents
+     */
+    OrdinalBitmap findScoped(List<SearchTerm> scopedTerms)
+    {
+        BitSet matches = new BitSet();
+        if (scopedTerms.isEmpty())
+        {
+            return new OrdinalBitmap();
+        }
+        lock.readLock().lock();
+        try
+        {
+            for (SearchTerm term : scopedTerms)
+            {
+                for (String key : resolveFieldLocked(term.field))
+                {
+                    if (key.equals(LYRICS))
+                    {
+                        lyrics.find(term.text, this::getLyrics, matches);
+                    }
+                    else
+                    {
+                        fields.get(key).find(term.text, matches);
+                    }
+                }
+            }
+        }
+        finally
+        {
+            lock.readLock().unlock();
+        }
+        return OrdinalBitmap.of(matches);
+    }
+
+    /**
+     * @return Ordinals of all documents in the index
+     */
+    OrdinalBitmap allDocuments()
+    {
+        lock.readLock().lock();
+        try
+        {
+            return OrdinalBitmap.or(documents, new OrdinalBitmap()); // a copy, as Maintenance changes it
+        }
+        finally
+        {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Finds the tokens in the index within a number of edits of a term,
+     * e.g. beatles for beatels, by running a Levenshtein automaton over the
+     * sorted token dictionary.
+     * @param term The term, in lower case
+     * @param maxEdits Maximum number of edits
+     * @return The tokens, which may include the term itself
+     */
+    List<String> fuzzyTokens(String term, int maxEdits)
+    {
+        lock.readLock().lock();
+        try
+        {
+            String[] dictionary = sortedTokens;
+            if (dictionary == null) // sorted again after the index changed, writers are locked out
+            {
+                dictionary = tokens.keySet().toArray(new String[0]);
+                Arrays.sort(dictionary);
+                sortedTokens = dictionary;
+            }
+            return new LevenshteinAutomaton(term, maxEdits).intersect(dictionary);
+        }
+        finally
+        {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Orders documents by their BM25 relevance for a query, using the tokens
+     * of the query's terms that are not negated, scored from their own
+     * posting lists. Documents matching only part of a token (beat in
+     * beatles) score nothing for it, so whole-word matches come first.
+     * Only the best topK are selected, with a bounded heap, rather than
+     * sorting all of them.
+     * @param ordinals Ordinals of the documents matching the query, ascending
+     * @param query The query
+     * @param topK Number of documents wanted
+     * @return Ordinals of the best documents, best first. Equal scores are in
+     * ascending order of ordinal.
+     */
+    int[] rank(int[] ordinals, Query query, int topK)
+    {
+        List<SearchTerm> terms = new ArrayList<>();
+        query.positiveTerms(terms);
+        Set<String> queryTokens = new HashSet<>();
+        for (SearchTerm term : terms)
+        {
+            queryTokens.addAll(tokenize(term.text));
+        }
+        float[] scores = new float[ordinals.length];
+        lock.readLock().lock();
+        try
+        {
+            int count = documents.cardinality();
+            double averageLength = count == 0 ? 1 : Math.max(1, (double) totalLength / count);
+            for (String queryToken : queryTokens)
+            {
+                PostingList postings = tokens.get(queryToken);
+                if (postings != null)
+                {
+                    score(postings, count, averageLength, ordinals, scores);
+                }
+            }
+        }
+        finally
+        {
+            lock.readLock().unlock();
+        }
+        return top(ordinals, scores, topK);
+    }
+
+    /**
+     * Adds the BM25 score of a token to the scores of the documents
+     * containing it. Walks whichever is shorter, the posting list or the
+     * ordinals, and looks up the other.
+     */
+    private void score(PostingList postings, int count, double averageLength, int[] ordinals, float[] scores)
+    {
+        int df = postings.size();
+        double idf = Math.log(1 + (count - df + 0.5) / (df + 0.5));
+        if (df < ordinals.length)
+        {
+            for (int ii = 0; ii < df; ii++)
+            {
+                int pos = Arrays.binarySearch(ordinals, postings.get(ii));
+                if (pos >= 0)
+                {
+                    scores[pos] += bm25(idf, postings.getFrequency(ii), postings.get(ii), averageLength);
+                }
+            }
+        }
+        else
+        {
+            for (int pos = 0; pos < ordinals.length; pos++)
+            {
+                int ii = postings.indexOf(ordinals[pos]);
+                if (ii >= 0)
+                {
+                    scores[pos] += bm25(idf, postings.getFrequency(ii), ordinals[pos], averageLength);
+                }
+            }
+        }
+    }
+
+    private float bm25(double idf, int tf, int ordinal, double averageLength)
+    {
+        int length = ordinal < lengths.length ? lengths[ordinal] : 0;
+        return (float) (idf * tf * (BM25_K1 + 1) / (tf + BM25_K1 * (1 - BM25_B + BM25_B * length / averageLength)));
+    }
+
+    /**
+     * @return The ordinals with the topK highest scores, best first
+     */
+    private static int[] top(int[] ordinals, float[] scores, int topK)
+    {
+        // worst of the best so far on top, so it can be replaced
+        PriorityQueue<Integer> heap = new PriorityQueue<>((a, b) -> scores[a] != scores[b] ? Float.compare(scores[a], scores[b]) : Integer.compare(b, a));
+        int k = Math.min(topK, ordinals.length);
+        for (int pos = 0; pos < ordinals.length && k > 0; pos++)
+        {
+            if (heap.size() < k)
+            {
+                heap.add(pos);
+            }
+            else if (heap.comparator().compare(pos, heap.peek()) > 0)
+            {
+                heap.poll();
+                heap.add(pos);
+            }
+        }
+        int[] result = new int[heap.size()];
+        for (int ii = result.length - 1; ii >= 0; ii--)
+        {
+            result[ii] = ordinals[heap.poll()];
+        }
+        return result;
+    }
+
+    /**
+     * @return Number of documents in the index
+     */
+    int getDocumentCount()
+    {
+        lock.readLock().lock();
+        try
+        {
+            return documents.cardinality();
+        }
+        finally
+        {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Statistics of a term for query planning: an upper bound of the number
+     * of documents matching it, and the number of postings or values
+     * findTerm looks at to find them.
+     * @param term A search term covered by the index
+     * @return The estimated matches and the cost of finding them
+     */
+    long[] termStatistics(SearchTerm term)
+    {
+        lock.readLock().lock();
+        try
+        {
+            int all = documents.cardinality();
+            if (term.isScoped())
+            {
+                long matches = 0;
+                long cost = 0;
+                for (String key : resolveFieldLocked(term.field))
+                {
+                    if (key.equals(LYRICS))
+                    {
+                        matches += lyrics.getDocumentCount();
+                        cost += lyrics.getDocumentCount();
+                    }
+                    else
+                    {
+                        matches += fields.get(key).getDocumentCount();
+                        cost += fields.get(key).getLookupCost(term.text);
+                    }
+                }
+                return new long[] { Math.min(all, matches), cost };
+            }
+            if (term.text.length() < 3) // walks the token dictionary
+            {
+                PostingList postings = tokens.get(term.text);
+                return new long[] { all, tokens.size() + (postings == null ? 0 : postings.size()) };
+            }
+            Set<Long> termTrigrams = trigrams(term.text);
+            int shortest = all;
+            for (Long trigram : termTrigrams)
+            {
+                PostingList postings = trigrams.get(trigram);
+                shortest = Math.min(shortest, postings == null ? 0 : postings.size());
+            }
+            return new long[] { shortest, (long) shortest * termTrigrams.size() };
+        }
+        finally
+        {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Finds the metadata keys a field name supplied by a client refers to.
+     * Case is ignored, and the namespace may be left out, so 'artist' finds
+     * 'xmpDM:artist', and 'title' finds both 'title' and 'dc:title'.
+     * @param name Field name
+     * @return The matching metadata keys, empty if there are none
+     */
+    List<String> resolveField(String name)
+    {
+        lock.readLock().lock();
+        try
+        {
+            return resolveFieldLocked(name);
+        }
+        finally
+        {
+            lock.readLock().unlock();
+        }
+    }
+
+    private List<String> resolveFieldLocked(String name)
+    {
+        List<String> keys = new ArrayList<>();
+        for (String key : fields.keySet())
+        {
+            if (key.equalsIgnoreCase(name) || key.substring(key.lastIndexOf(':') + 1).equalsIgnoreCase(name))
+            {
+                keys.add(key);
+            }
+        }
+        if (LYRICS.equalsIgnoreCase(name) && !lyrics.isEmpty())
+        {
+            keys.add(LYRICS);
+        }
+        return keys;
+    }
+
+    /**
+     * @param ordinal Document ordinal
+     * @return Its lyrics in lower case, null if it has none
+     */
+    private String getLyrics(int ordinal)
+    {
+        Object value = ds.getValue(ordinal, LYRICS);
+        return value == null ? null : FieldIndex.normalize(value);
+    }
+
+    /**
+     * Adds the documents with a token containing the term to the (empty)
+     * matches.
+     * Short terms are mostly common, so if not all matches are wanted, the
+     * documents are first checked in ascending order, which for a common
+     * term finds maxResults among the first few. Terms are letters and digits
+     * only, so a document contains one exactly if one of its tokens does.
+     * Only for a rare term, where that gives up after a share of the
+     * documents, is the token dictionary searched, and once more than
+     * maxResults documents are found there, those after the first
+     * maxResults are dropped, and the rest of each posting list (being
+     * ascending) is only read up to the last one kept.
+     */
+    private void findInTokens(String term, BitSet matches, int maxResults)
+    {
+        if (maxResults < documents.cardinality() && findInDocuments(term, matches, maxResults, tokens.size() / TOKENS_PER_DOCUMENT_CHECK))
+        {
+            return;
+        }
+        int found = matches.cardinality();
+        int cutoff = Integer.MAX_VALUE; // no document from here on can be among the first maxResults
+        for (Map.Entry<String, PostingList> entry : tokens.entrySet())
+        {
+            if (entry.getKey().contains(term))
+            {
+                PostingList postings = entry.getValue();
+                for (int ii = 0; ii < postings.size(); ii++)
+                {
+                    int ordinal = postings.get(ii);
+                    if (ordinal >= cutoff)
+                    {
+                        break;
+                    }
+                    if (!matches.get(ordinal))
+                    {
+                        matches.set(ordinal);
+                        found++;
+                    }
+                }
+                if (found - maxResults >= maxResults) // twice as many as needed, so not for every list
+                {
+                    cutoff = matches.nextSetBit(0);
+                    for (int kept = 1; kept < maxResults; kept++)
+                    {
+                        cutoff = matches.nextSetBit(cutoff + 1);
+                    }
+                    cutoff++;
+                    matches.clear(cutoff, matches.length());
+                    found = maxResults;
+                }
+            }
+        }
+    }
+
+    /**
+     * Checks the indexed documents for the term in ascending order, adding
+     * those containing it to the matches, until there are maxResults or
+     * budget documents have been checked.
+     * @return True if the matches hold the first maxResults documents
+     * containing the term, or all of them
+     */
+    private boolean findInDocuments(String term, BitSet matches, int maxResults, int budget)
+    {
+        SearchCorpus corpus = SearchCorpus.getCurrent();
+        int[] counts = {0, 0}; // checked, found
+        boolean all = documents.forEach((int ordinal) -> {
+            if (contains(ordinal, term, corpus))
+            {
+                matches.set(ordinal);
+                counts[1]++;
+            }
+            return ++counts[0] < budget && counts[1] < maxResults;
+        });
+        return all || counts[1] >= maxResults;
+    }
+
+    /**
+     * @return True if the searchable text of a document contains the term,
+     * checked in the corpus unless the document is newer than the corpus,
+     * false if it has been removed
+     */
+    private boolean contains(int ordinal, String term, SearchCorpus corpus)
+    {
+        if (corpus.contains(ordinal))
+        {
+            return corpus.contains(ordinal, term);
+        }
+        Document doc = ds.getDocument(ordinal); // newer than the corpus
+        return doc != null && searchableText(doc).contains(term);
+    }
+
+    /**
+     * Adds the documents containing the term to the matches. Candidates are
+     * the documents in all posting lists of the term's trigrams, starting with
+     * the shortest list. Each candidate not yet matched is then verified, in
+     * ascending order, until there are maxResults matches.
+     */
+    private void findInTrigrams(String term, BitSet matches, int maxResults)
+    {
+        List<PostingList> lists = new ArrayList<>();
+        for (Long trigram : trigrams(term))
+        {
+            PostingList postings = trigrams.get(trigram);
+            if (postings == null)
+            {
+                return; // no document contains this trigram, so none the term
+            }
+            lists.add(postings);
+        }
+        lists.sort((a, b) -> Integer.compare(a.size(), b.size()));
+        SearchCorpus corpus = SearchCorpus.getCurrent();
+
+        PostingList shortest = lists.get(0);
+        int found = matches.cardinality();
+        for (int ii = 0; ii < shortest.size() && found < maxResults; ii++)
+        {
+            int candidate = shortest.get(ii);
+            if (matches.get(candidate))
+            {
+                continue;
+            }
+            boolean inAll = true;
+            for (int jj = 1; jj < lists.size() && inAll; jj++)
+            {
+                inAll = lists.get(jj).contains(candidate);
+            }
+            if (inAll)
+            {
+                if (contains(candidate, term, corpus))
+                {
+                    matches.set(candidate);
+                    found++;
+                }
+            }
+        }
+    }
+
+    /**
+     * The text a document is searched by, for the index as well as
+     * for scanning: its keys and values, one per line, in lower case, so a
+     * term is only found within a key or value. The lyrics are left out.
+     * Scans match the keys and values one by one instead (see SearchCorpus).
+     * @param doc The document
+     * @return Its searchable text
+     */
+    static String searchableText(Document doc)
+    {
+        StringBuilder text = new StringBuilder();
+        for (Map.Entry<String, Object> entry : doc.entrySet())
+        {
+            if (!entry.getKey().equals(LYRICS))
+            {
+                text.append(searchableValue(entry.getKey())).append('\n').append(searchableValue(entry.getValue())).append('\n');
+            }
+        }
+        return text.toString();
+    }
+
+    /**
+     * @param value A key or value of a document
+     * @return Its part of the searchable text, without the line break
+     */
+    static String searchableValue(Object value)
+    {
+        return String.valueOf(value).toLowerCase();
+    }
+
+    /**
+     * Splits text into its distinct runs of letters and digits.
+     * @param text Text to split, should already be in lower case
+     * @return The set of tokens
+     */
+    static Set<String> tokenize(String text)
+    {
+        return countTokens(text).keySet();
+    }
+
+    /**
+     * Splits text into its runs of letters and digits.
+     * @param text Text to split, should already be in lower case
+     * @return Number of occurrences by token
+     */
+    static Map<String, Integer> countTokens(String text)
+    {
+        Map<String, Integer> result = new HashMap<>();
+        int start = -1;
+        for (int ii = 0; ii <= text.length(); ii++)
+        {
+            boolean tokenChar = ii < text.length() && Character.isLetterOrDigit(text.charAt(ii));
+            if (tokenChar && start < 0)
+            {
+                start = ii;
+            }
+            else if (!tokenChar && start >= 0)
+            {
+                result.merge(text.substring(start, ii), 1, Integer::sum);
+                start = -1;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Every distinct three character sequence of the text, packed into a
+     * long (16 bits per char).
+     * @param text Text to split, should already be in lower case
+     * @return The set of trigrams
+     */
+    static Set<Long> trigrams(String text)
+    {
+        Set<Long> result = new HashSet<>();
+        for (int ii = 0; ii + 3 <= text.length(); ii++)
+        {
+            result.add(((long) text.charAt(ii) << 32) | ((long) text.charAt(ii + 1) << 16) | text.charAt(ii + 2));
+        }
+        return result;
+    }
+
+    /**
+     * @param term Search term
+     * @return True if the term is a single non-empty run of letters and digits
+     */
+    static boolean isToken(String term)
+    {
+        if (term.isEmpty())
+        {
+            return false;
+        }
+        for (int ii = 0; ii < term.length(); ii++)
+        {
+            if (!Character.isLetterOrDigit(term.charAt(ii)))
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void indexDocument(int ordinal, Document doc)
+    {
+        documents.add(ordinal);
+        String text = searchableText(doc);
+        int length = 0;
+        for (Map.Entry<String, Integer> token : countTokens(text).entrySet())
+        {
+            PostingList postings = tokens.get(token.getKey());
+            if (postings == null)
+            {
+                postings = new PostingList();
+                tokens.put(token.getKey(), postings);
+                sortedTokens = null;
+            }
+            postings.add(ordinal, token.getValue());
+            length += token.getValue();
+        }
+        if (ordinal >= lengths.length)
+        {
+            lengths = Arrays.copyOf(lengths, Math.max(ordinal + 1, lengths.length + (lengths.length >> 1)));
+        }
+        totalLength += length - lengths[ordinal];
+        lengths[ordinal] = length;
+        for (Long trigram : trigrams(text))
+        {
+            addPosting(trigrams, trigram, ordinal);
+        }
+        for (Map.Entry<String, Object> entry : doc.entrySet())
+        {
+            if (entry.getValue() == null)
+            {
+                continue;
+            }
+            if (entry.getKey().equals(LYRICS))
+            {
+                lyrics.add(ordinal, FieldIndex.normalize(entry.getValue()));
+                continue;
+            }
+            FieldIndex field = fields.get(entry.getKey());
+            if (field == null)
+            {
+                field = new FieldIndex();
+                fields.put(entry.getKey(), field);
+            }
+            field.add(FieldIndex.normalize(entry.getValue()), ordinal);
+        }
+    }
+
+    private void unindexDocument(int ordinal, Document doc)
+    {
+        String text = searchableText(doc);
+        documents.remove(ordinal);
+        sortedTokens = null;
+        if (ordinal < lengths.length)
+        {
+            totalLength -= lengths[ordinal];
+            lengths[ordinal] = 0;
+        }
+        for (String token : tokenize(text))
+        {
+            removePosting(tokens, token, ordinal);
+        }
+        for (Long trigram : trigrams(text))
+        {
+            removePosting(trigrams, trigram, ordinal);
+        }
+        for (Map.Entry<String, Object> entry : doc.entrySet())
+        {
+            if (entry.getKey().equals(LYRICS) && entry.getValue() != null)
+            {
+                lyrics.remove(ordinal, FieldIndex.normalize(entry.getValue()));
+                continue;
+            }
+            FieldIndex field = fields.get(entry.getKey());
+            if (field != null && entry.getValue() != null)
+            {
+                field.remove(FieldIndex.normalize(entry.getValue()), ordinal);
+                if (field.isEmpty())
+                {
+                    fields.remove(entry.getKey());
+                }
+            }
+        }
+    }
+
+    private static <K> void addPosting(Map<K, PostingList> index, K key, int ordinal)
+    {
+        PostingList postings = index.get(key);
+        if (postings == null)
+        {
+            postings = new PostingList();
+            index.put(key, postings);
+        }
+        postings.add(ordinal);
+    }
+
+    private static <K> void removePosting(Map<K, PostingList> index, K key, int ordinal)
+    {
+        PostingList postings = index.get(key);
+        if (postings != null)
+        {
+            postings.remove(ordinal);
+            if (postings.isEmpty())
+            {
+                index.remove(key);
+            }
+        }
+    }
+}
@@ -0,0 +1,57 @@
+/*
+ * Copyright (C) 2016 Toby Scholz 2016
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package NepTune;
+
+/**
+ * A single term of a search, e.g. beatles or artist:beatles.
+ * Without a field, the term is searched for in the whole document.
+ * With a field, only in the values of the metadata keys the field name
+ * resolves to (see SearchIndexSingleton.resolveField).
+ */
+final class SearchTerm {
+
+    final String field; // as supplied by the client, null for the whole document
+    final String text;  // lower case
+
+    SearchTerm(String field, String text)
+    {
+        this.field = field;
+        this.text = text.toLowerCase();
+    }
+
+    /**
+     * @param text Term to search for in the whole document
+     */
+    SearchTerm(String text)
+    {
+        this(null, text);
+    }
+
+    boolean isScoped()
+    {
+        return field != null;
+    }
+
+    /**
+     * @return Normalized form, e.g. for cache keys
+     */
+    @Override
+    public String toString()
+    {
+        return field == null ? text : field.toLowerCase() + ":" + text;
+    }
+}
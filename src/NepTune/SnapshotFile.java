@@ -0,0 +1,477 @@
+/*
+ * Copyright (C) 2016 Toby Scholz 2016
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package NepTune;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Date;
+import org.bson.Document;
+import org.bson.json.JsonMode;
+import org.bson.json.JsonWriterSettings;
+import org.bson.types.ObjectId;
+
+/**
+ * Keeps a copy of the data store and search index on local disk 
+ * ('snapshotFile' in the config file), so '--daemon' can start from it 
+ * rather than from reading every document from the database and indexing
+ * it, which takes minutes for a large collection.
+ * The file holds the documents as encoded in the data store (see
+ * DocumentCodec): the keys, the values of each key, then the id and codes
+ * of each document. After these comes the SearchIndexSingleton, as posting
+ * lists. It is memory mapped when read, and the codes and ordinals go into
+ * the data store and index as they are, so no Document is built at startup.
+ * Only the documents held and the values they use are written, with new
+ * ordinals and codes.
+ *
+ * The file is written once the data store is up to date and indexed at
+ * startup, and after every Maintenance pass that changed anything. It is
+ * replaced as a whole, so it is never seen half written.
+ */
+final class SnapshotFile {
+
+    private static final int MAGIC = 0x4E545331; // "NTS1"
+    private static final int FORMAT = 2;          // change whenever the layout (or the searchable text) changes
+    private static final int WINDOW = 1 << 28;    // bytes mapped at a time
+    // Types of values
+    private static final byte STRING = 0;
+    private static final byte OBJECT_ID = 1;
+    private static final byte INTEGER = 2;
+    private static final byte LONG = 3;
+    private static final byte DOUBLE = 4;
+    private static final byte BOOLEAN = 5;
+    private static final byte DATE = 6;
+    private static final byte JSON = 7; // anything else, as {"v" : value}
+    private static final JsonWriterSettings SETTINGS = new JsonWriterSettings(JsonMode.STRICT);
+
+    private static volatile long savedVersion = -1; // data store version in the file
+
+    private SnapshotFile()
+    {
+    }
+
+    /**
+     * @return The snapshot file set in the config file, or null if none is
+     * set, in which case no snapshot is kept.
+     */
+    static File getFile()
+    {
+        String property = ConfigReaderSingleton.getInstance().getProperty("snapshotFile");
+        return property == null || property.trim().isEmpty() ? null : new File(property.trim());
+    }
+
+    /**
+     * Fills the empty data store and the search index from the snapshot file,
+     * and publishes the data store.
+     * @param file The snapshot file
+     * @return True if it was read, false if it could not be, e.g. because it
+     * was written by a different version of NepTune, and the data store is
+     * still empty and the index not built.
+     */
+    static boolean load(File file)
+    {
+        long start = System.currentTimeMillis();
+        DataStoreSingleton ds = DataStoreSingleton.getInstance();
+        try
+        {
+            read(file, ds, SearchIndexSingleton.getInstance());
+        }
+        catch (IOException | RuntimeException e)
+        {
+            LOG.WARNING("Could not read snapshot file " + file + ", reading the database instead: " + e.toString());
+            return false;
+        }
+        savedVersion = ds.publish().getVersion();
+        LOG.INFO(ds.getSize() + " documents read from snapshot file " + file + " in " + (System.currentTimeMillis() - start) + "ms");
+        return true;
+    }
+
+    /**
+     * Writes the current version of the data store, and the search index, to
+     * the snapshot file, if there is one, and it has changed since it was 
+     * last written or read. Must be called by the thread changing the data
+     * store and index (the one reading the database, then Maintenance), so
+     * the index is that of the version written.
+     * Errors are logged, as the snapshot is only there to start faster.
+     */
+    static void save()
+    {
+        File file = getFile();
+        DataStoreSingleton ds = DataStoreSingleton.getInstance();
+        SearchIndexSingleton index = SearchIndexSingleton.getInstance();
+        DataSnapshot snapshot = ds.getSnapshot();
+        if (file == null || snapshot.getVersion() == savedVersion || !index.isBuilt())
+        {
+            return;
+        }
+        long start = System.currentTimeMillis();
+        try
+        {
+            write(snapshot, snapshot.getCodec(), index, file);
+            savedVersion = snapshot.getVersion();
+            LOG.INFO(snapshot.getSize() + " documents written to snapshot file " + file + " in " + (System.currentTimeMillis() - start) + "ms");
+        }
+        catch (IOException e)
+        {
+            LOG.ERROR("Could not write snapshot file " + file + ": " + e.toString());
+        }
+    }
+
+    /**
+     * Writes a version of the data store and its search index to a file,
+     * replacing it once complete.
+     * @param snapshot The version
+     * @param codec The codec its documents are encoded with
+     * @param index The search index of the version
+     * @param file The file
+     * @throws IOException
+     */
+    static void write(DataSnapshot snapshot, DocumentCodec codec, SearchIndexSingleton index, File file) throws IOException
+    {
+        // Number the documents held, and the values they use, key by key
+        int[] newOrdinals = new int[snapshot.getOrdinalCount()];
+        int held = 0;
+        int keyCount = codec.getKeyCount();
+        int[][] newCodes = new int[keyCount][];
+        int[] used = new int[keyCount];
+        for (int key = 0; key < keyCount; key++)
+        {
+            newCodes[key] = new int[codec.getValueCount(key)];
+            Arrays.fill(newCodes[key], -1);
+        }
+        for (int ordinal = 0; ordinal < snapshot.getOrdinalCount(); ordinal++)
+        {
+            int[] row = snapshot.getRow(ordinal);
+            newOrdinals[ordinal] = row == null ? -1 : held++;
+            for (int pos = 0; row != null && pos < row.length; pos += 2)
+            {
+                if (row[pos + 1] >= 0 && newCodes[row[pos]][row[pos + 1]] < 0)
+                {
+                    newCodes[row[pos]][row[pos + 1]] = used[row[pos]]++;
+                }
+            }
+        }
+
+        File temp = new File(file.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp), 1 << 16)))
+        {
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT);
+            out.writeInt(keyCount);
+            for (int key = 0; key < keyCount; key++)
+            {
+                writeString(out, codec.getKey(key));
+                Object[] values = new Object[used[key]];
+                for (int value = 0; value < newCodes[key].length; value++)
+                {
+                    if (newCodes[key][value] >= 0)
+                    {
+                        values[newCodes[key][value]] = codec.getValue(key, value);
+                    }
+                }
+                out.writeInt(values.length);
+                for (Object value : values)
+                {
+                    writeValue(out, value);
+                }
+            }
+            out.writeInt(snapshot.getSize());
+            for (int ordinal = 0; ordinal < snapshot.getOrdinalCount(); ordinal++)
+            {
+                int[] row = snapshot.getRow(ordinal);
+                if (row == null)
+                {
+                    continue;
+                }
+                writeString(out, snapshot.getId(ordinal));
+                out.writeInt(row.length);
+                for (int pos = 0; pos < row.length; pos += 2)
+                {
+                    out.writeInt(row[pos]);
+                    out.writeInt(row[pos + 1] < 0 ? row[pos + 1] : newCodes[row[pos]][row[pos + 1]]);
+                }
+            }
+            index.write(out, newOrdinals);
+            out.writeInt(MAGIC); // at the end too, so a file cut short is noticed
+        }
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Reads a file as written by write() into an empty data store and the
+     * search index. The data store is only changed once the whole file has
+     * been read, the index is left unbuilt if reading fails.
+     * @param file The file
+     * @param ds The data store
+     * @param index The search index
+     * @return Number of documents read
+     * @throws IOException If the file cannot be read, or is not a complete
+     * snapshot file of the current format
+     */
+    static int read(File file, DataStoreSingleton ds, SearchIndexSingleton index) throws IOException
+    {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ))
+        {
+            ByteBuffer end = ByteBuffer.allocate(4);
+            if (channel.size() < 12 || channel.read(end, channel.size() - 4) != 4 || end.getInt(0) != MAGIC)
+            {
+                throw new IOException("Snapshot file is incomplete");
+            }
+            Input in = new Input(channel);
+            if (in.readInt() != MAGIC || in.readInt() != FORMAT)
+            {
+                throw new IOException("Not a snapshot file of this version of NepTune");
+            }
+            int keyCount = in.readCount();
+            String[] keys = new String[keyCount];
+            Object[][] values = new Object[keyCount][];
+            for (int key = 0; key < keyCount; key++)
+            {
+                keys[key] = in.readString();
+                values[key] = new Object[in.readCount()];
+                for (int value = 0; value < values[key].length; value++)
+                {
+                    values[key][value] = readValue(in);
+                }
+            }
+            int count = in.readCount();
+            String[] ids = new String[count];
+            int[][] rows = new int[count][];
+            for (int ii = 0; ii < count; ii++)
+            {
+                ids[ii] = in.readString();
+                int[] row = new int[in.readCount()];
+                for (int pos = 0; pos < row.length; pos++)
+                {
+                    row[pos] = in.readInt();
+                }
+                for (int pos = 0; pos < row.length; pos += 2) // so a damaged file cannot break the data store
+                {
+                    if (row.length % 2 != 0 || row[pos] < 0 || row[pos] >= keyCount || row[pos + 1] < -1 || row[pos + 1] >= values[row[pos]].length)
+                    {
+                        throw new IOException("Damaged document " + ids[ii]);
+                    }
+                }
+                rows[ii] = row;
+            }
+            index.read(in);
+            if (in.readInt() != MAGIC)
+            {
+                throw new IOException("Snapshot file is damaged");
+            }
+            ds.load(keys, values, ids, rows);
+            index.readComplete(); // only now, so a damaged file leaves it to be built
+            return count;
+        }
+    }
+
+    static void writeString(DataOutputStream out, String text) throws IOException
+    {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Writes the ordinals of a bitmap, as read by Input.readInts().
+     * @param out The file
+     * @param ordinals The ordinals
+     * @param newOrdinals The ordinal each ordinal has in the file, -1 for
+     * documents left out
+     * @throws IOException
+     */
+    static void writeOrdinals(DataOutputStream out, OrdinalBitmap ordinals, int[] newOrdinals) throws IOException
+    {
+        int[] written = Arrays.stream(ordinals.toArray()).filter(ordinal -> ordinal < newOrdinals.length && newOrdinals[ordinal] >= 0).map(ordinal -> newOrdinals[ordinal]).toArray();
+        out.writeInt(written.length);
+        for (int ordinal : written)
+        {
+            out.writeInt(ordinal);
+        }
+    }
+
+    private static void writeValue(DataOutputStream out, Object value) throws IOException
+    {
+        if (value instanceof String)
+        {
+            out.writeByte(STRING);
+            writeString(out, (String) value);
+        }
+        else if (value instanceof ObjectId)
+        {
+            out.writeByte(OBJECT_ID);
+            out.write(((ObjectId) value).toByteArray());
+        }
+        else if (value instanceof Integer)
+        {
+            out.writeByte(INTEGER);
+            out.writeInt((Integer) value);
+        }
+        else if (value instanceof Long)
+        {
+            out.writeByte(LONG);
+            out.writeLong((Long) value);
+        }
+        else if (value instanceof Double)
+        {
+            out.writeByte(DOUBLE);
+            out.writeDouble((Double) value);
+        }
+        else if (value instanceof Boolean)
+        {
+            out.writeByte(BOOLEAN);
+            out.writeBoolean((Boolean) value);
+        }
+        else if (value instanceof Date)
+        {
+            out.writeByte(DATE);
+            out.writeLong(((Date) value).getTime());
+        }
+        else
+        {
+            out.writeByte(JSON);
+            writeString(out, new Document("v", value).toJson(SETTINGS));
+        }
+    }
+
+    private static Object readValue(Input in) throws IOException
+    {
+        byte type = in.readByte();
+        switch (type)
+        {
+            case STRING:    return in.readString();
+            case OBJECT_ID: return new ObjectId(in.readBytes(12));
+            case INTEGER:   return in.readInt();
+            case LONG:      return in.readLong();
+            case DOUBLE:    return Double.longBitsToDouble(in.readLong());
+            case BOOLEAN:   return in.readByte() != 0;
+            case DATE:      return new Date(in.readLong());
+            case JSON:      return Document.parse(in.readString()).get("v");
+            default:        throw new IOException("Unknown value type " + type);
+        }
+    }
+
+    /**
+     * Reads a file from start to end through a memory mapped window, which
+     * moves on when the next value does not fit in it any more, so files
+     * larger than one mapping (2GB) can be read.
+     */
+    static final class Input {
+
+        private final FileChannel channel;
+        private final long length;
+        private long base = 0; // file position of the start of the buffer
+        private MappedByteBuffer buffer;
+
+        Input(FileChannel channel) throws IOException
+        {
+            this.channel = channel;
+            length = channel.size();
+            map(0, 0);
+        }
+
+        byte readByte() throws IOException
+        {
+            require(1);
+            return buffer.get();
+        }
+
+        int readInt() throws IOException
+        {
+            require(4);
+            return buffer.getInt();
+        }
+
+        /** @return A count or length, which cannot be negative */
+        int readCount() throws IOException
+        {
+            int count = readInt();
+            if (count < 0)
+            {
+                throw new IOException("Invalid count " + count + " at " + (base + buffer.position() - 4));
+            }
+            return count;
+        }
+
+        long readLong() throws IOException
+        {
+            require(8);
+            return buffer.getLong();
+        }
+
+        byte[] readBytes(int count) throws IOException
+        {
+            require(count);
+            byte[] bytes = new byte[count];
+            buffer.get(bytes);
+            return bytes;
+        }
+
+        /**
+         * @param count Number of ints
+         * @return The ints
+         */
+        int[] readInts(int count) throws IOException
+        {
+            if (count > Integer.MAX_VALUE / 4)
+            {
+                throw new IOException("Invalid count " + count);
+            }
+            require(count * 4);
+            int[] ints = new int[count];
+            buffer.asIntBuffer().get(ints);
+            buffer.position(buffer.position() + count * 4);
+            return ints;
+        }
+
+        String readString() throws IOException
+        {
+            return new String(readBytes(readCount()), StandardCharsets.UTF_8);
+        }
+
+        /** Makes sure the next bytes are mapped */
+        private void require(int bytes) throws IOException
+        {
+            if (buffer.remaining() < bytes)
+            {
+                long position = base + buffer.position();
+                if (position + bytes > length)
+                {
+                    throw new EOFException("Snapshot file ends early");
+                }
+                map(position, bytes);
+            }
+        }
+
+        private void map(long position, int bytes) throws IOException
+        {
+            base = position;
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.max(bytes, Math.min(WINDOW, length - position)));
+        }
+    }
+}
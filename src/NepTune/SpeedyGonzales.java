@@ -16,37 +16,48 @@
  */
 package NepTune;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Map;
 import org.bson.Document;
-import java.util.HashMap;
-import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.IntPredicate;
 
 /**
- * Implementation of multi-threaded search
+ * Implementation of multi-threaded search.
+ * All searches share one work-stealing pool with a thread per processor core.
+ * A search submits the corpus sections in order, a few ahead of the one 
+ * whose results are being passed on, and stops submitting once the caller 
+ * has enough. Section tasks split themselves further, so idle threads can 
+ * help out with whatever is left of other searches instead of more threads 
+ * competing for the cores.
+ * Each document is checked for all search terms in a single pass 
+ * (see MultiPatternMatcher), value by value, and values shared by documents
+ * are only checked once per search (see SearchCorpus.Scan).
+ * A search stops at its SearchDeadline: sections not yet submitted are 
+ * dropped, and running tasks give up at their next check.
  */
 class SpeedyGonzales extends Thread {
     
-    List<Map<String,String>> fastDocList = new ArrayList<>(); // The 'fast' list stores the document as string, making it faster to search
-    DataStoreSingleton ds = DataStoreSingleton.getInstance(); 
-    Map<String,Document> slowDocMap = ds.getMap(); //Make a copy (who knows what Java does?!?) of the document store, so we can have multiple instances without access violations)
-    
-    int numberOfProcessorCores = Runtime.getRuntime().availableProcessors(); // how many threads can we sensibly have?
-    int sectionDivisor = ( Math.round(slowDocMap.size() / numberOfProcessorCores ));
-    
+    static final int PARALLELISM = Runtime.getRuntime().availableProcessors();
+    private static final ForkJoinPool POOL = new ForkJoinPool(PARALLELISM);
+    private static final int SPLIT_THRESHOLD = 2048; // documents; below this a task scans rather than splits
+    private static final int SECTIONS_IN_FLIGHT = PARALLELISM * 2; // per search
+    private static final long WAIT_INTERVAL = TimeUnit.MILLISECONDS.toNanos(20); // between deadline checks
+    private static final int STOP_CHECK_INTERVAL = 1024; // documents scanned between checks
     
+    DataStoreSingleton ds = DataStoreSingleton.getInstance(); 
+    SearchCorpus corpus = SearchCorpus.getCurrent(); // shared and pre-split
     
     SpeedyGonzales() {
         super();
-        splitData();
-        LOG.DEBUG("Number of Processor cores found is " + numberOfProcessorCores);
+        LOG.DEBUG("Number of sections is " + corpus.getSectionCount());
         LOG.DEBUG("Number of records is " + ds.getSize()); 
-        LOG.DEBUG("SectionDivisor is " + sectionDivisor);
     }
     
    
@@ -60,89 +71,175 @@ class SpeedyGonzales extends Thread {
     public List<Document> findString(List<String> searchTerms) throws InterruptedException, ExecutionException 
     {
         List<Document> result = new ArrayList<>();
-        List<List<Document>> searchResult = new ArrayList<>(); //List of documents that holds all the results. Not sure if threadsafe atm.
-        ExecutorService executor = Executors.newFixedThreadPool(fastDocList.size()); // New thread pool the size of entries in the list, which is the same as the number of processors.
-        List<Future<List<Document>>> threadList = new ArrayList<>(); // For each thread we have a list entry, which itself is a list of documents.
+        for (int ordinal : findOrdinals(searchTerms, SearchDeadline.afterDefaultTimeout()))
+        {
+            Document doc = ds.getDocument(ordinal);
+            if (doc != null)
+            {
+                result.add(doc);
+            }
+        }
+        LOG.DEBUG("Result contains " + result.size() + " entries");
+         
+        return result;
         
-        for ( int ii = 0; ii < fastDocList.size(); ii++ )
+    }
+    
+    /** 
+     * 
+     * @param searchTerms: the terms we want to find in the collection
+     * @param deadline: when to give up
+     * @return: Ordinals of the documents that contain our search terms, 
+     * in ascending order. Only those found in time if the deadline stopped 
+     * the search.
+     * @throws InterruptedException
+     * @throws ExecutionException 
+     */
+    public int[] findOrdinals(List<String> searchTerms, SearchDeadline deadline) throws InterruptedException, ExecutionException 
+    {
+        List<Integer> ordinals = new ArrayList<>();
+        findOrdinals(searchTerms, new OrdinalBitmap(), ordinal -> ordinals.add(ordinal), deadline);
+        return ordinals.stream().mapToInt(Integer::intValue).toArray();
+    }
+    
+    /** 
+     * Passes the ordinals of the documents that contain our search terms to
+     * the sink as they are found, in ascending order.
+     * @param searchTerms: the terms we want to find in the collection
+     * @param alsoMatching: ordinals of documents already known to match 
+     * (e.g. from the index), passed on in order with the ones found
+     * @param sink: receives the ordinals, returns false once it has enough
+     * @param deadline: when to give up
+     * @return: true if the whole corpus was searched, false if the sink or 
+     * the deadline stopped it
+     * @throws InterruptedException
+     * @throws ExecutionException 
+     */
+    public boolean findOrdinals(List<String> searchTerms, OrdinalBitmap alsoMatching, IntPredicate sink, SearchDeadline deadline) throws InterruptedException, ExecutionException 
+    {
+        List<String> lowerTerms = new ArrayList<>(); // lower case once, not once per document
+        for ( String substring : searchTerms )
+        {
+            lowerTerms.add(substring.toLowerCase());
+        }
+        SearchCorpus.Scan scan = corpus.scan(lowerTerms); // shared by all tasks
+        
+        ArrayDeque<ForkJoinTask<List<Integer>>> inFlight = new ArrayDeque<>();
+        int nextSection = 0;
+        try
         {
-        final int jj = ii;
-        threadList.add( executor.submit(new Callable<List<Document>>() {
-            @Override
-            public List<Document> call() throws Exception {
-                
-            List<Document> resultList = new ArrayList<>();
-                
-                try {
-                    LOG.DEBUG("Starting thread no " + jj);
-                    Map<String,String> quickMap = fastDocList.get(jj);
-                    for (Map.Entry<String,String> entry : quickMap.entrySet() )
+            while ( nextSection < corpus.getSectionCount() || !inFlight.isEmpty() )
+            {
+                while ( nextSection < corpus.getSectionCount() && inFlight.size() < SECTIONS_IN_FLIGHT )
+                {
+                    inFlight.add(POOL.submit(new ScanTask(scan, alsoMatching, deadline, corpus.getSectionStart(nextSection), corpus.getSectionEnd(nextSection))));
+                    nextSection++;
+                }
+                List<Integer> found = null;
+                while ( found == null ) // wait for the next section in order, but not past the deadline
+                {
+                    if ( deadline.check() )
+                    {
+                        return false;
+                    }
+                    try
                     {
-                        boolean found = false;
-                        for ( String substring : searchTerms )
-                        {
-                        if ( entry.getValue().toLowerCase().contains(substring.toLowerCase()) )
-                            {
-                                resultList.add(slowDocMap.get(entry.getKey()));
-                                LOG.DEBUG("Run: " + jj + " Added " + entry.getKey() + " to list" );
-                                found = true;
-                                break;
-                            }  
-                        }
-                        if (found)
-                        {
-                            break;
-                        }
+                        found = inFlight.peek().get(deadline.remaining(WAIT_INTERVAL), TimeUnit.NANOSECONDS);
+                    }
+                    catch(TimeoutException e)
+                    {
+                        // check again
                     }
                 }
-                catch(Exception e){
-                    LOG.ERROR("Error in the Multithreaded search logic: " + e.toString());
-                    throw new UnsupportedOperationException("Not supported yet."); 
+                inFlight.poll();
+                if ( deadline.isStopped() )
+                {
+                    return false; // the section may have given up part way
                 }
-                LOG.DEBUG("Thread no " + jj + " completed");
-                return resultList;
-            } // end call()
-        }) //end executor.submit()  
-        ); // end threadList.add
-        } // end for loop
-        executor.shutdown(); // Should block until all threads have completed.
-        
-        for (Future<List<Document>> entry : threadList)
-        {
-            result.addAll(entry.get());
+                for ( int ordinal : found )
+                {
+                    if ( !sink.test(ordinal) )
+                    {
+                        return false;
+                    }
+                }
+            }
+            return true;
         }
-        
-        for (List<Document> entry : searchResult)
+        finally
         {
-            result.addAll(entry);
+            for ( ForkJoinTask<List<Integer>> task : inFlight )
+            {
+                task.cancel(false); // not started yet, or no longer needed
+            }
         }
-        LOG.DEBUG("Result contains " + result.size() + " entries");
-         
-        return result;
-        
     }
     
     /**
-     * split the data into roughly equal chunks for multi-threaded 
-     * searching
+     * Scans a range of ordinals of the corpus, splitting it in halves 
+     * while it is large.
      */
-    private void splitData() {
+    private class ScanTask extends RecursiveTask<List<Integer>> {
         
-        int ii = 1;
-        int multiplier = 1;
+        private static final long serialVersionUID = 1L;
+        final SearchCorpus.Scan scan;
+        final OrdinalBitmap alsoMatching;
+        final SearchDeadline deadline;
+        final int from;
+        final int to;
         
-        Map<String, String> temp = new HashMap<>();
-        for ( Map.Entry<String, Document> entry : slowDocMap.entrySet() )
-        {
-            temp.put( entry.getKey(), entry.getValue().toString() );
-
-            if ( ii >= sectionDivisor * multiplier || ii == slowDocMap.size() )
+        ScanTask(SearchCorpus.Scan scan, OrdinalBitmap alsoMatching, SearchDeadline deadline, int from, int to) {
+            this.scan = scan;
+            this.alsoMatching = alsoMatching;
+            this.deadline = deadline;
+            this.from = from;
+            this.to = to;
+        }
+        
+        @Override
+        protected List<Integer> compute() {
+            if ( deadline.isStopped() )
             {
-                fastDocList.add( (multiplier -1), new HashMap<>(temp) );
-                multiplier++;
-                temp.clear();
+                return new ArrayList<>(); // not needed any more
             }
-            ii++;
-        }
-    } // end splitData
+            if ( to - from > SPLIT_THRESHOLD )
+            {
+                int middle = (from + to) >>> 1;
+                ScanTask upper = new ScanTask(scan, alsoMatching, deadline, middle, to);
+                upper.fork();
+                List<Integer> resultList = new ScanTask(scan, alsoMatching, deadline, from, middle).compute();
+                resultList.addAll(upper.join());
+                return resultList;
+            }
+            
+            List<Integer> resultList = new ArrayList<>();
+            try {
+                for ( int ordinal = from; ordinal < to; ordinal++ )
+                {
+                    if ( (ordinal - from) % STOP_CHECK_INTERVAL == 0 && ordinal > from && deadline.isStopped() )
+                    {
+                        break; // the result is discarded anyway
+                    }
+                    if ( !corpus.contains(ordinal) )
+                    {
+                        continue; // removed
+                    }
+                    if ( alsoMatching.contains(ordinal) )
+                    {
+                        resultList.add(ordinal);
+                        continue;
+                    }
+                    if ( scan.matches(ordinal) )
+                    {
+                        resultList.add(ordinal);
+                    }
+                }
+            }
+            catch(Exception e){
+                LOG.ERROR("Error in the Multithreaded search logic: " + e.toString());
+                throw e;
+            }
+            return resultList;
+        } // end compute()
+    } // end ScanTask
 } // end class
@@ -0,0 +1,300 @@
+/*
+ * Copyright (C) 2016 Toby Scholz 2016
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package NepTune;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import org.bson.Document;
+
+/**
+ * Searches registered by clients to be told about changes, instead of
+ * repeating the search to find out. When Maintenance adds or removes a
+ * document, it is matched against every standing query (see Query.matches),
+ * and an event is queued for each subscription it matches. Clients pick
+ * the events up with mode=events, by long polling or as a stream of Server
+ * Sent Events (see ClientConnector).
+ *
+ * Every event has a sequence number within its subscription, and clients
+ * ask for the events after the last one they have seen. Only the last
+ * MAX_EVENTS events are kept; a client that has missed some is told so,
+ * and should search again. Subscriptions not asked for events for
+ * EXPIRY_MS are dropped.
+ */
+public class StandingQueriesSingleton {
+
+    static final int MAX_EVENTS = 1000; // per subscription
+    static final long EXPIRY_MS = 10 * 60 * 1000;
+    static final long DEFAULT_WAIT_MS = 30 * 1000; // for a long poll
+    static final long MAX_WAIT_MS = 5 * 60 * 1000;
+    private static StandingQueriesSingleton instance = null;
+
+    private final Map<String, Subscription> subscriptions = new ConcurrentHashMap<>();
+    private final AtomicLong nextId = new AtomicLong(1);
+    DataStoreSingleton ds = DataStoreSingleton.getInstance();
+    SearchIndexSingleton index = SearchIndexSingleton.getInstance();
+
+    public static synchronized StandingQueriesSingleton getInstance()
+    {
+        if(instance==null)
+        {
+            instance = new StandingQueriesSingleton();
+        }
+        return instance;
+    }
+
+    /**
+     * @param searchString The search as supplied by the client
+     * @param query The parsed search. Relative bounds like now-7d refer to
+     * the time of subscribing.
+     * @return The new subscription
+     */
+    Subscription subscribe(String searchString, Query query)
+    {
+        removeExpired();
+        Subscription subscription = new Subscription(Long.toString(nextId.getAndIncrement()), searchString, query);
+        subscriptions.put(subscription.id, subscription);
+        LOG.INFO("Standing query " + subscription.id + " registered: " + query);
+        return subscription;
+    }
+
+    /**
+     * @param id A subscription id
+     * @return True if there was such a subscription
+     */
+    boolean unsubscribe(String id)
+    {
+        Subscription subscription = subscriptions.remove(id);
+        if (subscription != null)
+        {
+            subscription.close();
+            LOG.INFO("Standing query " + id + " removed");
+        }
+        return subscription != null;
+    }
+
+    /**
+     * @param id A subscription id
+     * @return The subscription, or null if it does not exist (any more)
+     */
+    Subscription getSubscription(String id)
+    {
+        Subscription subscription = subscriptions.get(id);
+        if (subscription != null)
+        {
+            subscription.touch();
+        }
+        return subscription;
+    }
+
+    /** @return Number of subscriptions */
+    int getSize()
+    {
+        return subscriptions.size();
+    }
+
+    /**
+     * Tells the subscribers whose query matches about a document added. Must
+     * be called after the document was added to the DataStoreSingleton and
+     * SearchIndexSingleton.
+     * @param id The object id of the document
+     */
+    void documentAdded(String id)
+    {
+        publish(id, "added");
+    }
+
+    /**
+     * Tells the subscribers whose query matches about a document to be
+     * removed. Must be called before the document is removed from the
+     * DataStoreSingleton.
+     * @param id The object id of the document
+     */
+    void documentRemoved(String id)
+    {
+        publish(id, "removed");
+    }
+
+    private void publish(String id, String type)
+    {
+        removeExpired();
+        if (subscriptions.isEmpty())
+        {
+            return;
+        }
+        Document doc = ds.getDocument(ds.getOrdinal(id));
+        if (doc == null)
+        {
+            return;
+        }
+        String text = SearchIndexSingleton.searchableText(doc);
+        for (Subscription subscription : subscriptions.values())
+        {
+            try
+            {
+                if (subscription.query.matches(doc, text, index))
+                {
+                    subscription.publish(type, id, doc);
+                }
+            }
+            catch(RuntimeException e)
+            {
+                LOG.ERROR("Standing query " + subscription.id + " failed for " + id + ": " + e.toString());
+            }
+        }
+    }
+
+    private void removeExpired()
+    {
+        long now = System.currentTimeMillis();
+        Iterator<Subscription> iterator = subscriptions.values().iterator();
+        while (iterator.hasNext())
+        {
+            Subscription subscription = iterator.next();
+            if (subscription.isExpired(now))
+            {
+                iterator.remove();
+                subscription.close();
+                LOG.INFO("Standing query " + subscription.id + " expired");
+            }
+        }
+    }
+
+    /** A change to the result of a standing query */
+    static final class Event {
+
+        final long sequence;
+        final String type;   // added or removed
+        final String id;     // of the document
+        final Document doc;  // as added or removed
+
+        Event(long sequence, String type, String id, Document doc)
+        {
+            this.sequence = sequence;
+            this.type = type;
+            this.id = id;
+            this.doc = doc;
+        }
+    }
+
+    /** A standing query and the events not yet dropped */
+    static final class Subscription {
+
+        final String id;
+        final String searchString;
+        final Query query;
+        private final ArrayDeque<Event> events = new ArrayDeque<>();
+        private long sequence = 0;  // of the last event
+        private long lastUsed = System.currentTimeMillis();
+        private int waiting = 0;    // clients waiting for events, which keep it alive
+        private boolean closed = false;
+
+        private Subscription(String id, String searchString, Query query)
+        {
+            this.id = id;
+            this.searchString = searchString;
+            this.query = query;
+        }
+
+        private synchronized void publish(String type, String documentId, Document doc)
+        {
+            events.add(new Event(++sequence, type, documentId, doc));
+            if (events.size() > MAX_EVENTS)
+            {
+                events.removeFirst();
+            }
+            notifyAll();
+        }
+
+        /** @return Sequence number of the last event */
+        synchronized long getSequence()
+        {
+            return sequence;
+        }
+
+        /**
+         * @param after Sequence number of the last event the client has seen
+         * @return True if events after it have been dropped already
+         */
+        synchronized boolean hasMissed(long after)
+        {
+            return !events.isEmpty() && events.getFirst().sequence > after + 1;
+        }
+
+        /**
+         * Waits until there are events after a sequence number.
+         * @param after Sequence number of the last event the client has seen
+         * @param timeoutMs How long to wait at most
+         * @return The events after it, empty if there were none in time or
+         * the subscription was removed meanwhile
+         * @throws InterruptedException
+         */
+        synchronized List<Event> await(long after, long timeoutMs) throws InterruptedException
+        {
+            long end = System.currentTimeMillis() + timeoutMs;
+            waiting++;
+            try
+            {
+                long remaining = timeoutMs;
+                while (sequence <= after && !closed && remaining > 0)
+                {
+                    wait(remaining);
+                    remaining = end - System.currentTimeMillis();
+                }
+            }
+            finally
+            {
+                waiting--;
+                lastUsed = System.currentTimeMillis();
+            }
+            List<Event> result = new ArrayList<>();
+            for (Event event : events)
+            {
+                if (event.sequence > after)
+                {
+                    result.add(event);
+                }
+            }
+            return result;
+        }
+
+        synchronized boolean isClosed()
+        {
+            return closed;
+        }
+
+        private synchronized void touch()
+        {
+            lastUsed = System.currentTimeMillis();
+        }
+
+        private synchronized boolean isExpired(long now)
+        {
+            return waiting == 0 && now - lastUsed > EXPIRY_MS;
+        }
+
+        private synchronized void close()
+        {
+            closed = true;
+            notifyAll();
+        }
+    }
+}
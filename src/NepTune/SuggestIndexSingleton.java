@@ -0,0 +1,342 @@
+/*
+ * Copyright (C) 2016 Toby Scholz 2016
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package NepTune;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.bson.Document;
+
+/**
+ * Completions for what a user is typing, from the artist, album and title
+ * metadata and the file names of all documents.
+ *
+ * The completions are held in a trie (with chains of single children merged
+ * into one edge), where every node keeps the most frequent completions below
+ * it, so a lookup only walks the prefix. A value can be completed from the
+ * start of any of its words, so both 'abb' and 'roa' suggest 'Abbey Road'.
+ *
+ * The trie itself is never changed. Whenever the DataStoreSingleton
+ * publishes changes, the number of documents per value is updated, and a
+ * new trie built, which replaces the old one for later lookups.
+ */
+public class SuggestIndexSingleton {
+
+    static final int MAX_SUGGESTIONS = 10; // kept per node
+    private static final String[] SUGGESTED_FIELDS = {"artist", "album", "title"}; // namespace ignored
+
+    private static SuggestIndexSingleton instance = null;
+    private final Map<String, Suggestion> suggestions = new HashMap<>(); // by lower case value
+    private boolean changed = false;
+    private boolean built = false; // changes before build() are left to it
+    private volatile Trie trie = new Trie(new String[0], new Node("", null, null, new int[0]));
+    DataStoreSingleton ds = DataStoreSingleton.getInstance();
+
+    public static synchronized SuggestIndexSingleton getInstance()
+    {
+        if(instance==null)
+        {
+            instance = new SuggestIndexSingleton();
+        }
+        return instance;
+    }
+
+    /**
+     * (Re-)creates the completions from the documents currently held by
+     * the DataStoreSingleton.
+     */
+    synchronized void build()
+    {
+        long start = System.currentTimeMillis();
+        suggestions.clear();
+        DataSnapshot snapshot = ds.getSnapshot();
+        for (int ordinal = 0; ordinal < snapshot.getOrdinalCount(); ordinal++)
+        {
+            Document doc = snapshot.getDocument(ordinal);
+            if (doc != null)
+            {
+                count(doc, 1);
+            }
+        }
+        changed = true;
+        built = true;
+        publish();
+        LOG.INFO("Suggestions built with " + suggestions.size() + " values in " + (System.currentTimeMillis() - start) + "ms");
+    }
+
+    /**
+     * Counts the values of the documents changed between one version of the
+     * DataStoreSingleton and the next, and publishes a new trie, before the
+     * version is published (see DataStoreSingleton.publish).
+     * @param before The current version
+     * @param after The version to be published
+     * @param ordinals The documents that may differ between the two
+     */
+    synchronized void update(DataSnapshot before, DataSnapshot after, int[] ordinals)
+    {
+        if (!built)
+        {
+            return;
+        }
+        for (int ordinal : ordinals)
+        {
+            if (before.getRow(ordinal) == after.getRow(ordinal))
+            {
+                continue;
+            }
+            Document removed = before.getDocument(ordinal);
+            Document added = after.getDocument(ordinal);
+            if (removed != null)
+            {
+                count(removed, -1);
+                changed = true;
+            }
+            if (added != null)
+            {
+                count(added, 1);
+                changed = true;
+            }
+        }
+        publish();
+    }
+
+    /**
+     * Builds a new trie if documents were added or removed since the last.
+     */
+    private void publish()
+    {
+        if (!changed)
+        {
+            return;
+        }
+        // Ids in order of rank, so the best completions of a node are its smallest ids
+        List<Suggestion> ranked = new ArrayList<>(suggestions.values());
+        ranked.sort((a, b) -> a.count != b.count ? Integer.compare(b.count, a.count) : a.text.compareTo(b.text));
+        String[] texts = new String[ranked.size()];
+        List<Key> keys = new ArrayList<>();
+        for (int id = 0; id < texts.length; id++)
+        {
+            texts[id] = ranked.get(id).text;
+            String lower = texts[id].toLowerCase();
+            for (int ii = 0; ii < lower.length(); ii++)
+            {
+                boolean wordStart = Character.isLetterOrDigit(lower.charAt(ii)) && (ii == 0 || !Character.isLetterOrDigit(lower.charAt(ii - 1)));
+                if (ii == 0 || wordStart)
+                {
+                    keys.add(new Key(lower.substring(ii), id));
+                }
+            }
+        }
+        keys.sort((a, b) -> a.text.compareTo(b.text));
+        Node root = keys.isEmpty() ? new Node("", null, null, new int[0]) : buildNode(keys, 0, keys.size(), 0, 0);
+        trie = new Trie(texts, root);
+        changed = false;
+    }
+
+    /**
+     * @param prefix What the user typed so far
+     * @param limit Maximum number of completions, up to MAX_SUGGESTIONS
+     * @return The values starting with (a word starting with) the prefix,
+     * most frequent first
+     */
+    List<String> suggest(String prefix, int limit)
+    {
+        Trie current = trie;
+        String lower = prefix.toLowerCase();
+        Node node = current.root;
+        int pos = 0;
+        while (pos < lower.length())
+        {
+            Node child = node.child(lower.charAt(pos));
+            if (child == null)
+            {
+                return new ArrayList<>();
+            }
+            int matched = 0;
+            while (matched < child.edge.length() && pos < lower.length())
+            {
+                if (child.edge.charAt(matched) != lower.charAt(pos))
+                {
+                    return new ArrayList<>();
+                }
+                matched++;
+                pos++;
+            }
+            node = child;
+        }
+        List<String> result = new ArrayList<>();
+        for (int ii = 0; ii < node.best.length && ii < limit; ii++)
+        {
+            result.add(current.texts[node.best[ii]]);
+        }
+        return result;
+    }
+
+    private void count(Document doc, int delta)
+    {
+        for (Map.Entry<String, Object> entry : doc.entrySet())
+        {
+            if (entry.getValue() != null && isSuggested(entry.getKey()))
+            {
+                String text = entry.getValue().toString().trim();
+                if (text.isEmpty())
+                {
+                    continue;
+                }
+                String lower = text.toLowerCase();
+                Suggestion suggestion = suggestions.get(lower);
+                if (suggestion == null)
+                {
+                    suggestion = new Suggestion(text);
+                    suggestions.put(lower, suggestion);
+                }
+                suggestion.count += delta;
+                if (suggestion.count <= 0)
+                {
+                    suggestions.remove(lower);
+                }
+            }
+        }
+    }
+
+    private static boolean isSuggested(String key)
+    {
+        if (key.equals("fileName"))
+        {
+            return true;
+        }
+        String name = key.substring(key.lastIndexOf(':') + 1);
+        for (String field : SUGGESTED_FIELDS)
+        {
+            if (field.equalsIgnoreCase(name))
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Builds the node for the sorted keys [from, to), which all share their
+     * first depth characters. The node's edge continues from edgeStart, the
+     * root (depth 0) has none.
+     */
+    private static Node buildNode(List<Key> keys, int from, int to, int edgeStart, int depth)
+    {
+        String first = keys.get(from).text;
+        String last = keys.get(to - 1).text;
+        // Extend the edge while all keys go on with the same character
+        while (depth > 0 && first.length() > depth && last.length() > depth && first.charAt(depth) == last.charAt(depth))
+        {
+            depth++;
+        }
+        List<Integer> candidates = new ArrayList<>();
+        int ii = from;
+        while (ii < to && keys.get(ii).text.length() == depth) // ending here, sorted first
+        {
+            candidates.add(keys.get(ii).id);
+            ii++;
+        }
+        List<Character> labels = new ArrayList<>();
+        List<Node> children = new ArrayList<>();
+        while (ii < to)
+        {
+            char label = keys.get(ii).text.charAt(depth);
+            int end = ii + 1;
+            while (end < to && keys.get(end).text.charAt(depth) == label)
+            {
+                end++;
+            }
+            Node child = buildNode(keys, ii, end, depth, depth + 1);
+            labels.add(label);
+            children.add(child);
+            for (int id : child.best)
+            {
+                candidates.add(id);
+            }
+            ii = end;
+        }
+        char[] labelArray = new char[labels.size()];
+        for (int jj = 0; jj < labelArray.length; jj++)
+        {
+            labelArray[jj] = labels.get(jj);
+        }
+        int[] best = candidates.stream().mapToInt(Integer::intValue).sorted().distinct().limit(MAX_SUGGESTIONS).toArray();
+        return new Node(first.substring(edgeStart, depth), labelArray, children.toArray(new Node[0]), best);
+    }
+
+    /** A value and the number of documents it occurs in */
+    private static final class Suggestion {
+
+        final String text; // as first seen
+        int count = 0;
+
+        Suggestion(String text)
+        {
+            this.text = text;
+        }
+    }
+
+    /** A string to complete from, and the id of the value it belongs to */
+    private static final class Key {
+
+        final String text;
+        final int id;
+
+        Key(String text, int id)
+        {
+            this.text = text;
+            this.id = id;
+        }
+    }
+
+    private static final class Node {
+
+        final String edge;      // characters from the parent to this node
+        final char[] labels;    // first character of the children's edges, ascending
+        final Node[] children;
+        final int[] best;       // ids of the best completions below, best first
+
+        Node(String edge, char[] labels, Node[] children, int[] best)
+        {
+            this.edge = edge;
+            this.labels = labels == null ? new char[0] : labels;
+            this.children = children == null ? new Node[0] : children;
+            this.best = best;
+        }
+
+        Node child(char label)
+        {
+            int pos = Arrays.binarySearch(labels, label);
+            return pos < 0 ? null : children[pos];
+        }
+    }
+
+    /** A published trie, with the values its ids refer to */
+    private static final class Trie {
+
+        final String[] texts;
+        final Node root;
+
+        Trie(String[] texts, Node root)
+        {
+            this.texts = texts;
+            this.root = root;
+        }
+    }
+}
@@ -0,0 +1,200 @@
+/*
+ * Copyright (C) 2016 Toby Scholz 2016
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package NepTune;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.IntFunction;
+
+/**
+ * Full text index of a single long metadata value per document (the
+ * lyrics), kept apart from the SearchIndexSingleton token and trigram
+ * indexes so that these only cover the (short) rest of the metadata.
+ * Works like those: terms of three or more characters are looked up by
+ * their trigrams and the candidates verified, shorter ones by the tokens
+ * containing them. Anything else is verified against every indexed text.
+ * Not thread safe, SearchIndexSingleton takes care of locking.
+ */
+class TextIndex {
+
+    private final Map<String, PostingList> tokens = new HashMap<>();
+    private final Map<Long, PostingList> trigrams = new HashMap<>();
+    private final OrdinalBitmap documents = new OrdinalBitmap();
+
+    /**
+     * @param ordinal Document ordinal
+     * @param text Its text, in lower case
+     */
+    void add(int ordinal, String text)
+    {
+        documents.add(ordinal);
+        for (String token : SearchIndexSingleton.tokenize(text))
+        {
+            add(tokens, token, ordinal);
+        }
+        for (Long trigram : SearchIndexSingleton.trigrams(text))
+        {
+            add(trigrams, trigram, ordinal);
+        }
+    }
+
+    /**
+     * @param ordinal Document ordinal
+     * @param text The text it was added with
+     */
+    void remove(int ordinal, String text)
+    {
+        documents.remove(ordinal);
+        for (String token : SearchIndexSingleton.tokenize(text))
+        {
+            remove(tokens, token, ordinal);
+        }
+        for (Long trigram : SearchIndexSingleton.trigrams(text))
+        {
+            remove(trigrams, trigram, ordinal);
+        }
+    }
+
+    boolean isEmpty()
+    {
+        return documents.isEmpty();
+    }
+
+    /** @return Number of documents with a text */
+    int getDocumentCount()
+    {
+        return documents.cardinality();
+    }
+
+    /**
+     * Writes the index to a snapshot file (see SnapshotFile).
+     * @param out The file
+     * @param newOrdinals The ordinal each ordinal has in the file, -1 for
+     * documents left out
+     * @throws IOException
+     */
+    void write(DataOutputStream out, int[] newOrdinals) throws IOException
+    {
+        PostingList.writeIndex(out, tokens, newOrdinals);
+        PostingList.writeTrigramIndex(out, trigrams, newOrdinals);
+        SnapshotFile.writeOrdinals(out, documents, newOrdinals);
+    }
+
+    /**
+     * @param in A snapshot file
+     * @return The index as written by write()
+     * @throws IOException
+     */
+    static TextIndex read(SnapshotFile.Input in) throws IOException
+    {
+        TextIndex index = new TextIndex();
+        PostingList.readIndex(in, index.tokens);
+        PostingList.readTrigramIndex(in, index.trigrams);
+        for (int ordinal : in.readInts(in.readCount()))
+        {
+            index.documents.add(ordinal);
+        }
+        return index;
+    }
+
+    /**
+     * Adds the documents whose text contains the term to the matches.
+     * @param term Lower case text to find
+     * @param textOf Looks up the (lower case) text of a document, to verify
+     * candidates
+     * @param matches Ordinals of matching documents
+     */
+    void find(String term, IntFunction<String> textOf, BitSet matches)
+    {
+        if (term.length() < 3 && SearchIndexSingleton.isToken(term))
+        {
+            for (Map.Entry<String, PostingList> entry : tokens.entrySet())
+            {
+                if (entry.getKey().contains(term))
+                {
+                    PostingList postings = entry.getValue();
+                    for (int ii = 0; ii < postings.size(); ii++)
+                    {
+                        matches.set(postings.get(ii));
+                    }
+                }
+            }
+            return;
+        }
+        PostingList shortest = null;
+        for (Long trigram : SearchIndexSingleton.trigrams(term))
+        {
+            PostingList postings = trigrams.get(trigram);
+            if (postings == null)
+            {
+                return; // no text contains this trigram, so none the term
+            }
+            if (shortest == null || postings.size() < shortest.size())
+            {
+                shortest = postings;
+            }
+        }
+        if (shortest == null) // a short term that is not a token
+        {
+            for (int candidate : documents.toArray())
+            {
+                verify(candidate, term, textOf, matches);
+            }
+            return;
+        }
+        for (int ii = 0; ii < shortest.size(); ii++)
+        {
+            verify(shortest.get(ii), term, textOf, matches);
+        }
+    }
+
+    private static void verify(int candidate, String term, IntFunction<String> textOf, BitSet matches)
+    {
+        String text = textOf.apply(candidate);
+        if (text != null && text.contains(term))
+        {
+            matches.set(candidate);
+        }
+    }
+
+    private static <K> void add(Map<K, PostingList> index, K key, int ordinal)
+    {
+        PostingList postings = index.get(key);
+        if (postings == null)
+        {
+            postings = new PostingList();
+            index.put(key, postings);
+        }
+        postings.add(ordinal);
+    }
+
+    private static <K> void remove(Map<K, PostingList> index, K key, int ordinal)
+    {
+        PostingList postings = index.get(key);
+        if (postings != null)
+        {
+            postings.remove(ordinal);
+            if (postings.isEmpty())
+            {
+                index.remove(key);
+            }
+        }
+    }
+}
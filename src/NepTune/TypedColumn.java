@@ -0,0 +1,457 @@
+/*
+ * Copyright (C) 2016 Toby Scholz 2016
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package NepTune;
+
+import java.time.DateTimeException;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeParseException;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The values of a FieldColumn parsed as numbers or dates, if all of them
+ * are (Tika stores e.g. xmpDM:duration, samplerate and Last-Modified as
+ * strings). The documents are held in the order of their values, so a range
+ * of values is found with two binary searches, without looking at the
+ * documents outside it. Dates are held as milliseconds since 1970.
+ * The typed values of a later version of the column are made from these,
+ * with the changed documents merged in (next()).
+ */
+final class TypedColumn {
+
+    enum Type { NUMBER, DATE }
+
+    private static final Pattern NUMBER_WITH_UNIT = Pattern.compile("([-+]?[0-9]*\\.?[0-9]+)(ms|s|m|h)?");
+    private static final Pattern RELATIVE_DATE = Pattern.compile("now(?:([-+])([0-9]+)([smhdw]))?");
+
+    final Type type;
+    private final double[] valueByCode;
+    private final double[] values;   // ascending
+    private final int[] ordinals;    // of the documents with these values
+
+    private TypedColumn(Type type, double[] valueByCode, FieldColumn column)
+    {
+        this.type = type;
+        this.valueByCode = valueByCode;
+        Integer[] order = new Integer[valueByCode.length];
+        for (int code = 0; code < order.length; code++)
+        {
+            order[code] = code;
+        }
+        Arrays.sort(order, (a, b) -> Double.compare(valueByCode[a], valueByCode[b]));
+        int[] start = new int[order.length + 1]; // counting sort of the documents by value
+        int[] rank = new int[order.length];
+        for (int ii = 0; ii < order.length; ii++)
+        {
+            rank[order[ii]] = ii;
+        }
+        for (int ordinal = 0; ordinal < column.getSize(); ordinal++)
+        {
+            int code = column.getCode(ordinal);
+            if (code != FieldColumn.MISSING)
+            {
+                start[rank[code] + 1]++;
+            }
+        }
+        for (int ii = 1; ii < start.length; ii++)
+        {
+            start[ii] += start[ii - 1];
+        }
+        ordinals = new int[start[order.length]];
+        values = new double[ordinals.length];
+        for (int ordinal = 0; ordinal < column.getSize(); ordinal++)
+        {
+            int code = column.getCode(ordinal);
+            if (code != FieldColumn.MISSING)
+            {
+                int position = start[rank[code]]++;
+                ordinals[position] = ordinal;
+                values[position] = valueByCode[code];
+            }
+        }
+    }
+
+    private TypedColumn(Type type, double[] valueByCode, double[] values, int[] ordinals)
+    {
+        this.type = type;
+        this.valueByCode = valueByCode;
+        this.values = values;
+        this.ordinals = ordinals;
+    }
+
+    /**
+     * @param column A later version of the column of these typed values
+     * @param moved Ordinals of the documents whose code changed since,
+     * ascending
+     * @return The typed values of the later column, or null if its values
+     * are no longer all of this type
+     */
+    TypedColumn next(FieldColumn column, int[] moved)
+    {
+        double[] byCode = Arrays.copyOf(valueByCode, column.getValueCount());
+        for (int code = valueByCode.length; code < byCode.length; code++)
+        {
+            byCode[code] = parse(type, column.getValue(code));
+        }
+        BitSet isMoved = new BitSet();
+        for (int ordinal : moved)
+        {
+            isMoved.set(ordinal);
+            if (column.getCode(ordinal) != FieldColumn.MISSING && Double.isNaN(byCode[column.getCode(ordinal)]))
+            {
+                return null; // a new value, or one that was unused, is not of the type
+            }
+        }
+        int[] added = Arrays.stream(moved).filter(ordinal -> column.getCode(ordinal) != FieldColumn.MISSING).boxed()
+                .sorted((a, b) -> Double.compare(byCode[column.getCode(a)], byCode[column.getCode(b)]))
+                .mapToInt(Integer::intValue).toArray();
+        int[] nextOrdinals = new int[ordinals.length + added.length];
+        double[] nextValues = new double[nextOrdinals.length];
+        int count = 0;
+        int next = 0;
+        for (int ii = 0; ii < ordinals.length; ii++)
+        {
+            if (isMoved.get(ordinals[ii]))
+            {
+                continue;
+            }
+            while (next < added.length && byCode[column.getCode(added[next])] < values[ii])
+            {
+                nextValues[count] = byCode[column.getCode(added[next])];
+                nextOrdinals[count++] = added[next++];
+            }
+            nextValues[count] = values[ii];
+            nextOrdinals[count++] = ordinals[ii];
+        }
+        while (next < added.length)
+        {
+            nextValues[count] = byCode[column.getCode(added[next])];
+            nextOrdinals[count++] = added[next++];
+        }
+        return new TypedColumn(type, byCode, Arrays.copyOf(nextValues, count), Arrays.copyOf(nextOrdinals, count));
+    }
+
+    /**
+     * @param column A column
+     * @param counts Number of documents by code, values without any are
+     * left out
+     * @param notOfType Set to the code of a value that is not of the type,
+     * by type, FieldColumn.MISSING if none
+     * @return Its values as numbers or dates, or null if they are not all
+     * one or the other
+     */
+    static TypedColumn of(FieldColumn column, int[] counts, int[] notOfType)
+    {
+        Arrays.fill(notOfType, FieldColumn.MISSING);
+        for (Type type : Type.values())
+        {
+            double[] valueByCode = new double[column.getValueCount()];
+            boolean used = false;
+            for (int code = 0; code < valueByCode.length && notOfType[type.ordinal()] == FieldColumn.MISSING; code++)
+            {
+                valueByCode[code] = parse(type, column.getValue(code)); // NaN allowed if unused
+                used |= counts[code] > 0;
+                if (counts[code] > 0 && Double.isNaN(valueByCode[code]))
+                {
+                    notOfType[type.ordinal()] = code;
+                }
+            }
+            if (!used)
+            {
+                return null;
+            }
+            if (notOfType[type.ordinal()] == FieldColumn.MISSING)
+            {
+                return new TypedColumn(type, valueByCode, column);
+            }
+        }
+        return null;
+    }
+
+    /** @return The value as number, or date in milliseconds, NaN if it is not of the type */
+    private static double parse(Type type, Object value)
+    {
+        return type == Type.NUMBER ? parseNumber(value) : parseDate(value);
+    }
+
+    /**
+     * @param code Code of a value of the column
+     * @return The value as number, or date in milliseconds
+     */
+    double getValue(int code)
+    {
+        return valueByCode[code];
+    }
+
+    /**
+     * Finds the documents with a value in a range.
+     * @param operator One of &gt;, &gt;=, &lt; and &lt;=
+     * @param bound The value to compare with
+     * @return Ordinals of the documents whose value compares true
+     */
+    OrdinalBitmap range(String operator, double bound)
+    {
+        int[] positions = positions(operator, bound);
+        BitSet matches = new BitSet();
+        for (int ii = positions[0]; ii < positions[1]; ii++)
+        {
+            matches.set(ordinals[ii]);
+        }
+        return OrdinalBitmap.of(matches);
+    }
+
+    /**
+     * @return The number of documents range would find, without finding them
+     */
+    int rangeSize(String operator, double bound)
+    {
+        int[] positions = positions(operator, bound);
+        return positions[1] - positions[0];
+    }
+
+    /** @return The first position in range, and the one after the last */
+    private int[] positions(String operator, double bound)
+    {
+        switch (operator)
+        {
+            case ">":  return new int[] { firstAbove(bound, false), values.length };
+            case ">=": return new int[] { firstAbove(bound, true), values.length };
+            case "<":  return new int[] { 0, firstAbove(bound, true) };
+            case "<=": return new int[] { 0, firstAbove(bound, false) };
+            default:   throw new IllegalArgumentException("Unknown operator " + operator);
+        }
+    }
+
+    /**
+     * Compares a single value, e.g. of a document just added, as a range
+     * query on its column would. Unlike there, the value is compared as a
+     * number if it and the bound are numbers, else as a date if both are
+     * dates, without looking at the other values of the column.
+     * @param value A metadata value
+     * @param operator One of &gt;, &gt;=, &lt; and &lt;=
+     * @param bound The bound as given in the query
+     * @param now The time now in the bound refers to
+     * @return True if the value compares true
+     */
+    static boolean compares(Object value, String operator, String bound, long now)
+    {
+        for (Type type : Type.values())
+        {
+            double number = parse(type, value);
+            double limit = parseBound(bound, type, now);
+            if (!Double.isNaN(number) && !Double.isNaN(limit))
+            {
+                switch (operator)
+                {
+                    case ">":  return number > limit;
+                    case ">=": return number >= limit;
+                    case "<":  return number < limit;
+                    case "<=": return number <= limit;
+                    default:   throw new IllegalArgumentException("Unknown operator " + operator);
+                }
+            }
+        }
+        return false;
+    }
+
+    /** @return Position of the first value above (or equal to) the bound */
+    private int firstAbove(double bound, boolean orEqual)
+    {
+        int low = 0;
+        int high = values.length;
+        while (low < high)
+        {
+            int middle = (low + high) >>> 1;
+            if (values[middle] < bound || (!orEqual && values[middle] == bound))
+            {
+                low = middle + 1;
+            }
+            else
+            {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * @param value A metadata value
+     * @return The value as number, NaN if it is not one
+     */
+    static double parseNumber(Object value)
+    {
+        if (value instanceof Number)
+        {
+            return ((Number) value).doubleValue();
+        }
+        try
+        {
+            double number = Double.parseDouble(value.toString().trim());
+            return Double.isInfinite(number) ? Double.NaN : number;
+        }
+        catch(NumberFormatException e)
+        {
+            return Double.NaN;
+        }
+    }
+
+    /**
+     * @param value A metadata value, a Date or an ISO 8601 date, with or
+     * without time and offset (UTC if none)
+     * @return Milliseconds since 1970, NaN if it is not a date
+     */
+    static double parseDate(Object value)
+    {
+        if (value instanceof Date)
+        {
+            return ((Date) value).getTime();
+        }
+        String text = value.toString().trim();
+        double millis = parseIsoDateTime(text);
+        if (!Double.isNaN(millis))
+        {
+            return millis;
+        }
+        try
+        {
+            if (text.length() == 10)
+            {
+                return LocalDate.parse(text).atStartOfDay(ZoneOffset.UTC).toInstant().toEpochMilli();
+            }
+            if (text.endsWith("Z"))
+            {
+                return Instant.parse(text).toEpochMilli();
+            }
+            if (text.length() > 19 && (text.charAt(text.length() - 6) == '+' || text.charAt(text.length() - 6) == '-'))
+            {
+                return OffsetDateTime.parse(text).toInstant().toEpochMilli();
+            }
+            return LocalDateTime.parse(text).toInstant(ZoneOffset.UTC).toEpochMilli();
+        }
+        catch(DateTimeParseException e)
+        {
+            return Double.NaN;
+        }
+    }
+
+    /**
+     * Parses the usual form of dates from Tika, yyyy-MM-ddTHH:mm:ss followed
+     * by Z or nothing, without the formatters of java.time, which take
+     * several times as long (this is done for every distinct date).
+     * @return Milliseconds since 1970, NaN if the text is of another form
+     */
+    private static double parseIsoDateTime(String text)
+    {
+        if ((text.length() != 19 && (text.length() != 20 || text.charAt(19) != 'Z'))
+                || text.charAt(4) != '-' || text.charAt(7) != '-' || text.charAt(10) != 'T'
+                || text.charAt(13) != ':' || text.charAt(16) != ':')
+        {
+            return Double.NaN;
+        }
+        int year = digits(text, 0, 4);
+        int month = digits(text, 5, 2);
+        int day = digits(text, 8, 2);
+        int hour = digits(text, 11, 2);
+        int minute = digits(text, 14, 2);
+        int second = digits(text, 17, 2);
+        if (year < 0 || month < 1 || month > 12 || day < 1 || day > 31 || hour < 0 || hour > 23
+                || minute < 0 || minute > 59 || second < 0 || second > 59)
+        {
+            return Double.NaN;
+        }
+        try
+        {
+            long days = LocalDate.of(year, month, day).toEpochDay();
+            return ((days * 24 + hour) * 60 + minute) * 60000L + second * 1000L;
+        }
+        catch(DateTimeException e) // e.g. 31st of April
+        {
+            return Double.NaN;
+        }
+    }
+
+    /** @return The number in text[start, start + count), -1 if not all digits */
+    private static int digits(String text, int start, int count)
+    {
+        int number = 0;
+        for (int ii = start; ii < start + count; ii++)
+        {
+            char c = text.charAt(ii);
+            if (c < '0' || c > '9')
+            {
+                return -1;
+            }
+            number = number * 10 + c - '0';
+        }
+        return number;
+    }
+
+    /**
+     * Parses the bound of a range query.
+     * @param text A number, optionally with a unit for durations (ms, s, m
+     * or h, in milliseconds as Tika stores them, e.g. 10m), a date as for
+     * parseDate, or now, optionally plus or minus a number of s, m, h, d or
+     * w (e.g. now-7d)
+     * @param type Type of the column compared with
+     * @param now The time now refers to, in milliseconds
+     * @return The bound as for the column type, NaN if it is not of that type
+     */
+    static double parseBound(String text, Type type, long now)
+    {
+        String lower = text.toLowerCase();
+        if (type == Type.NUMBER)
+        {
+            Matcher matcher = NUMBER_WITH_UNIT.matcher(lower);
+            if (!matcher.matches())
+            {
+                return Double.NaN;
+            }
+            double number = Double.parseDouble(matcher.group(1));
+            String unit = matcher.group(2);
+            return unit == null || unit.equals("ms") ? number
+                    : number * (unit.equals("s") ? 1000 : unit.equals("m") ? 60000 : 3600000);
+        }
+        Matcher matcher = RELATIVE_DATE.matcher(lower);
+        if (matcher.matches())
+        {
+            if (matcher.group(1) == null)
+            {
+                return now;
+            }
+            // As a double, so any number of digits is just a long way off rather than an overflow
+            double amount = Double.parseDouble(matcher.group(2));
+            switch (matcher.group(3))
+            {
+                case "s": amount *= TimeUnit.SECONDS.toMillis(1); break;
+                case "m": amount *= TimeUnit.MINUTES.toMillis(1); break;
+                case "h": amount *= TimeUnit.HOURS.toMillis(1); break;
+                case "d": amount *= TimeUnit.DAYS.toMillis(1); break;
+                default:  amount *= TimeUnit.DAYS.toMillis(7); break;
+            }
+            return matcher.group(1).equals("-") ? now - amount : now + amount;
+        }
+        return parseDate(text);
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2016 Toby Scholz 2016
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package NepTune;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Compares the MultiPatternMatcher used by Speedy Gonzales with the loop it
+ * replaced (lower case every document, then contains() per term), on a
+ * synthetic corpus, for one to sixteen search terms. Not used by the server,
+ * so it is kept with the test sources. Run with
+ *   java -cp build/classes:build/test/classes NepTune.MultiPatternBenchmark [documents]
+ */
+class MultiPatternBenchmark {
+
+    private static final String[] WORDS = {"Abbey", "Road", "Beatles", "Help!", "Nevermind", "Nirvana",
+        "Master", "of", "Puppets", "Metallica", "Wall", "Pink", "Floyd", "Live", "at", "Wembley", "Queen",
+        "G\u00e4nsehaut", "Mot\u00f6rhead", "audio/mpeg", "audio/flac", "smb://server/Music/", "track", "Remastered"};
+    private static final String[] TERMS = {"zeppelin", "bowie", "remix", "prince", "madonna", "dylan", "oasis", "blur",
+        "coldplay", "radiohead", "bj\u00f6rk", "u2", "muse", "eagles", "mot\u00f6rhead", "metallica"}; // mostly not found, the common case
+    private static final int ROUNDS = 5;
+
+    public static void main(String[] args)
+    {
+        int size = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        Random random = new Random(42);
+        String[] documents = new String[size];
+        String[] lowerDocuments = new String[size];
+        for (int ii = 0; ii < size; ii++)
+        {
+            StringBuilder doc = new StringBuilder("Document{{_id=57ae33d69041ea0bef0749").append(ii % 100);
+            for (int field = 0; field < 12; field++)
+            {
+                doc.append(", field").append(field).append('=').append(WORDS[random.nextInt(WORDS.length)])
+                        .append(' ').append(WORDS[random.nextInt(WORDS.length)]).append(' ').append(random.nextInt(100000));
+            }
+            documents[ii] = doc.append("}}").toString();
+            lowerDocuments[ii] = documents[ii].toLowerCase();
+        }
+        System.out.println("terms  old loop (ms)  pre-lowercased loop (ms)  automaton (ms)  matches");
+        for (int count = 1; count <= TERMS.length; count++)
+        {
+            List<String> terms = new ArrayList<>(Arrays.asList(TERMS).subList(0, count));
+            long oldLoop = Long.MAX_VALUE;
+            long lowerLoop = Long.MAX_VALUE;
+            long matching = Long.MAX_VALUE;
+            int found = 0;
+            for (int round = 0; round < ROUNDS; round++) // best of, after warming up
+            {
+                long start = System.nanoTime();
+                int oldFound = 0;
+                for (String doc : documents)
+                {
+                    for (String term : terms)
+                    {
+                        if (doc.toLowerCase().contains(term))
+                        {
+                            oldFound++;
+                            break;
+                        }
+                    }
+                }
+                oldLoop = Math.min(oldLoop, System.nanoTime() - start);
+
+                start = System.nanoTime();
+                int lowerFound = 0;
+                for (String doc : lowerDocuments)
+                {
+                    for (String term : terms)
+                    {
+                        if (doc.contains(term))
+                        {
+                            lowerFound++;
+                            break;
+                        }
+                    }
+                }
+                lowerLoop = Math.min(lowerLoop, System.nanoTime() - start);
+
+                start = System.nanoTime();
+                MultiPatternMatcher matcher = new MultiPatternMatcher(terms, true);
+                found = 0;
+                for (String doc : lowerDocuments)
+                {
+                    if (matcher.matchesAny(doc))
+                    {
+                        found++;
+                    }
+                }
+                matching = Math.min(matching, System.nanoTime() - start);
+                if (found != oldFound || found != lowerFound)
+                {
+                    throw new IllegalStateException("Matcher found " + found + " documents, loop " + oldFound);
+                }
+            }
+            System.out.printf("%5d  %13.1f  %24.1f  %14.1f  %7d%n", count, oldLoop / 1e6, lowerLoop / 1e6, matching / 1e6, found);
+        }
+    }
+}